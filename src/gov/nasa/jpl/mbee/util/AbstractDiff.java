@@ -3,17 +3,23 @@
  */
 package gov.nasa.jpl.mbee.util;
 
-import gov.nasa.jpl.mbee.util.CompareUtils.GenericComparator;
-
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -31,7 +37,11 @@ import java.util.TreeSet;
 public abstract class AbstractDiff<T,P,ID> implements Diff<T,P,ID> {
 
     protected static boolean computeDiffOnConstruction = false;
-    //protected boolean lazy = true;
+    /**
+     * Whether the getters for the properties of a single object compute only
+     * that object's diff when the full diff has not been computed.
+     */
+    protected boolean lazy = false;
     protected boolean ignoreRemovedProperties = false;
 
     public Set<T> set1, set2;
@@ -55,7 +65,85 @@ public abstract class AbstractDiff<T,P,ID> implements Diff<T,P,ID> {
     public abstract boolean sameProperty( P prop1, P prop2 );
     public abstract String getName( T t );
     
-    public Set<ID> propertyIdsToIgnore = new TreeSet<ID>(GenericComparator.instance());
+    public Set<ID> propertyIdsToIgnore = new StrategyHashSet<ID>();
+
+    /**
+     * propertyIdsToIgnore frozen into a hash set so that each property is
+     * checked with a hash lookup instead of generic comparisons; null until
+     * needed. It is recompiled by {@link #diff()} and
+     * {@link #addPropertyIdsToIgnore(Collection)}, so call
+     * {@link #compilePropertyIdsToIgnore()} after changing
+     * propertyIdsToIgnore directly.
+     */
+    protected Set<ID> compiledPropertyIdsToIgnore = null;
+
+    /**
+     * Whether {@link #diff()} computes the property diffs of objects in
+     * parallel. The implementations of {@link #getProperties(Object, boolean)},
+     * {@link #getProperty(Object, Object, boolean)}, and
+     * {@link #sameProperty(Object, Object)} must be thread-safe to use this.
+     */
+    protected boolean parallel = false;
+    /**
+     * The number of objects below which the diff is not split into parallel
+     * tasks.
+     */
+    protected int parallelThreshold = 1024;
+    protected ForkJoinPool forkJoinPool = null;
+    protected static ForkJoinPool defaultForkJoinPool = null;
+
+    /**
+     * Whether {@link #diff()} skips the property diff of objects whose
+     * fingerprints match. Unchanged objects are then left out of the property
+     * results instead of having empty entries.
+     */
+    protected boolean useFingerprints = false;
+    protected Map< ID, Long > fingerprints1 = null;
+    protected Map< ID, Long > fingerprints2 = null;
+    protected Long snapshotFingerprint1 = null;
+    protected Long snapshotFingerprint2 = null;
+
+    /**
+     * Whether the property results are kept in a {@link CompactDiffResults},
+     * with one record per changed property and no entries for unchanged
+     * objects. The result maps are then views of that store.
+     */
+    protected boolean compactResults = false;
+
+    protected List< Set< ID > > idDiff = null;
+
+    /**
+     * The removed objects that were added with a new id, computed by
+     * {@link #getMoved()}. Objects whose properties are at least
+     * moveSimilarityThreshold similar are considered the same object. The
+     * signatures have moveBands * moveRowsPerBand hashes.
+     */
+    protected Map< ID, ID > moved = null;
+
+    /**
+     * Gets the parts of object-valued properties for
+     * {@link #getNestedChanges(Object)}; null for the default extractor.
+     */
+    protected NestedDiff.Extractor nestedExtractor = null;
+    protected NestedDiff nestedDiff = null;
+    protected double moveSimilarityThreshold = 0.8;
+    protected int moveBands = 8;
+    protected int moveRowsPerBand = 4;
+    protected Set< ID > changedIds = null;
+    protected Map< ID, ObjectDiff< P, ID > > objectDiffCache = null;
+    protected CompactDiffResults< P, ID > compactResultStore = null;
+
+    /**
+     * Collects timings and counts for each {@link #diff()} if not null.
+     */
+    protected DiffStats stats = null;
+
+    /**
+     * If not null, {@link #diff()} first calls {@link #intern(DiffPatch.Target)}
+     * with this to share equal property values between the objects of both
+     * sets.
+     */
+    protected DiffPatch.Target< T, P, ID > interner = null;
 
     public AbstractDiff( Set<T> s1, Set<T> s2, Comparator<T> comparator ) {
         this( s1, s2, comparator, null );
@@ -89,82 +177,1103 @@ public abstract class AbstractDiff<T,P,ID> implements Diff<T,P,ID> {
         if ( computeDiffOnConstruction ) diff();
     }
 
-    public Map<ID, P> getPropertyMap( T t, boolean isSet1 ) {
-        Set< P > propertiesSet = getProperties( t, isSet1 );
-        Map< ID, P > properties = convertPropertySetToMap( propertiesSet );
-        Utils.removeAll( properties, getPropertyIdsToIgnore() );
-        return properties;
+    public Map<ID, P> getPropertyMap( T t, boolean isSet1 ) {
+        long begin = beginPhase();
+        Set< P > propertiesSet = getProperties( t, isSet1 );
+        Set< ID > ignored = getCompiledPropertyIdsToIgnore();
+        Map< ID, P > properties;
+        if ( ignored.isEmpty() ) {
+            properties = convertPropertySetToMap( propertiesSet );
+        } else {
+            properties = new LinkedHashMap< ID, P >();
+            if ( propertiesSet != null ) {
+                for ( P p : propertiesSet ) {
+                    ID id = getIdOfProperty( p );
+                    if ( !ignored.contains( id ) ) properties.put( id, p );
+                }
+            }
+        }
+        if ( stats != null ) {
+            stats.countProperties( properties.size() );
+            stats.end( DiffStats.Phase.GET_PROPERTIES, begin );
+        }
+        return properties;
+    }
+
+    /**
+     * Implementations of {@link #getProperties(Object, boolean)} may call
+     * this to leave out ignored properties instead of creating them.
+     *
+     * @return whether the property with the given id is left out of the diff
+     */
+    public boolean isIgnoredProperty( ID pid ) {
+        Set< ID > ignored = getCompiledPropertyIdsToIgnore();
+        return !ignored.isEmpty() && ignored.contains( pid );
+    }
+
+    protected Set< ID > getCompiledPropertyIdsToIgnore() {
+        Set< ID > ignored = compiledPropertyIdsToIgnore;
+        if ( ignored == null ) {
+            ignored = compilePropertyIdsToIgnore();
+        }
+        return ignored;
+    }
+
+    /**
+     * Freeze the current {@link #getPropertyIdsToIgnore()} into the hash set
+     * used to filter properties.
+     *
+     * @return the compiled set
+     */
+    public Set< ID > compilePropertyIdsToIgnore() {
+        Set< ID > ids = getPropertyIdsToIgnore();
+        Set< ID > ignored;
+        if ( Utils.isNullOrEmpty( ids ) ) {
+            ignored = Collections.emptySet();
+        } else {
+            ignored = Collections.unmodifiableSet( new HashSet< ID >( ids ) );
+        }
+        compiledPropertyIdsToIgnore = ignored;
+        return ignored;
+    }
+
+    /**
+     * Replace the property values of the objects in both sets with a single
+     * shared instance for each set of equal values (by equals() and
+     * hashCode()). Property comparisons of unchanged values then succeed on
+     * identity, and the duplicate values can be garbage collected. The
+     * objects are changed with the target's
+     * {@link DiffPatch.Target#setProperty(Object, Object, Object)}, and
+     * property values must not be modified in place afterwards since they may
+     * be shared.
+     *
+     * @param target
+     *            sets the shared values, typically this diff
+     * @return the number of property values that were replaced
+     */
+    public int intern( DiffPatch.Target< T, P, ID > target ) {
+        Map< P, P > canonical = new HashMap< P, P >();
+        int count = intern( get1(), true, canonical, target );
+        count += intern( get2(), false, canonical, target );
+        return count;
+    }
+
+    protected int intern( Collection< T > objects, boolean isSet1,
+                          Map< P, P > canonical,
+                          DiffPatch.Target< T, P, ID > target ) {
+        int count = 0;
+        if ( objects == null ) return count;
+        for ( T t : objects ) {
+            Set< P > properties = getProperties( t, isSet1 );
+            if ( properties == null ) continue;
+            // copy since setProperty() may change the set
+            for ( P p : new ArrayList< P >( properties ) ) {
+                if ( p == null ) continue;
+                P c = canonical.get( p );
+                if ( c == null ) {
+                    canonical.put( p, p );
+                } else if ( c != p ) {
+                    target.setProperty( t, getIdOfProperty( p ), c );
+                    ++count;
+                }
+            }
+        }
+        return count;
+    }
+
+    protected Set<T> newObjectSet( Collection<T> c ) {
+        Set< T > s = newObjectSet();
+        s.addAll( c );
+        return s;
+    }
+    protected Set<T> newObjectSet() {
+        if ( getObjectComparator() == null ) {
+            return new LinkedHashSet<T>();
+        }
+        return new TreeSet<T>( getObjectComparator() );
+    }
+
+    /**
+     * Set the diff results to new, empty sets and maps.
+     */
+    protected void initResults() {
+        added = newObjectSet();
+        removed = newObjectSet();
+        updated = newObjectSet();
+
+        if ( isCompactResults() ) {
+            compactResultStore = new CompactDiffResults< P, ID >();
+            propertyChanges = compactResultStore.getPropertyChanges();
+            addedProperties = compactResultStore.getAddedProperties();
+            removedProperties = compactResultStore.getRemovedProperties();
+            updatedProperties = compactResultStore.getUpdatedProperties();
+            return;
+        }
+        compactResultStore = null;
+
+        propertyChanges = new LinkedHashMap< ID, Map<ID,Pair<P,P>> >();
+
+        addedProperties = new LinkedHashMap< ID, Map<ID,P> >();
+        removedProperties = new LinkedHashMap< ID, Map<ID,P> >();
+        updatedProperties = new LinkedHashMap< ID, Map<ID,Pair<P,P>> >();
+    }
+
+    public void diff() {
+        if ( stats == null ) {
+            computeDiff();
+            return;
+        }
+        stats.start();
+        try {
+            computeDiff();
+        } finally {
+            stats.stop();
+        }
+    }
+
+    protected void computeDiff() {
+        // re-initialize members
+        initResults();
+        clearLazyResults();
+        compilePropertyIdsToIgnore();
+        long begin;
+        if ( isInterning() ) {
+            begin = beginPhase();
+            intern( interner );
+            endPhase( DiffStats.Phase.INTERN, begin );
+        }
+
+        if ( isUsingFingerprints() ) {
+            begin = beginPhase();
+            boolean same = sameSnapshotFingerprints();
+            endPhase( DiffStats.Phase.FINGERPRINTS, begin );
+            if ( same ) return;
+        }
+
+        begin = beginPhase();
+        List< Set< ID > > mapDiff = getIdDiff();
+        
+        Set<ID> updatedIds = getChangedIds();
+        endPhase( DiffStats.Phase.ID_DIFF, begin );
+        if ( isUsingFingerprints() ) {
+            begin = beginPhase();
+            updatedIds = removeSameFingerprints( updatedIds );
+            endPhase( DiffStats.Phase.FINGERPRINTS, begin );
+        }
+        if ( stats != null ) stats.setObjectsTotal( updatedIds.size() );
+
+        if ( isParallel() && updatedIds.size() > getParallelThreshold() ) {
+            diffParallel( updatedIds );
+            return;
+        }
+
+        for ( ID id : updatedIds ) {
+            ObjectDiff< P, ID > objectDiff = diffObject( id );
+            begin = beginPhase();
+            putObjectDiff( id, objectDiff );
+            endPhase( DiffStats.Phase.RESULT_ASSEMBLY, begin );
+            if ( stats != null ) stats.objectDone();
+        }
+    }
+
+    /**
+     * @return the start time of a phase if collecting {@link DiffStats}
+     */
+    protected long beginPhase() {
+        return stats == null ? 0 : stats.begin();
+    }
+
+    /**
+     * Add the time since {@code begin} to a phase if collecting
+     * {@link DiffStats}.
+     */
+    protected void endPhase( DiffStats.Phase phase, long begin ) {
+        if ( stats != null ) stats.end( phase, begin );
+    }
+
+    /**
+     * Compute the property diffs of the objects with the given ids on a
+     * {@link ForkJoinPool} and merge them into the results in the iteration
+     * order of {@code ids}, so that the results are the same as those of a
+     * sequential diff.
+     *
+     * @param ids
+     *            the ids of the objects to diff
+     */
+    protected void diffParallel( Collection< ID > ids ) {
+        @SuppressWarnings( "unchecked" )
+        ID[] idArray = (ID[])ids.toArray();
+        @SuppressWarnings( "unchecked" )
+        ObjectDiff< P, ID >[] results =
+                (ObjectDiff< P, ID >[])new ObjectDiff< ?, ? >[ idArray.length ];
+        getForkJoinPool().invoke( new DiffTask( idArray, results, 0,
+                                                idArray.length ) );
+        long begin = beginPhase();
+        for ( int i = 0; i < idArray.length; ++i ) {
+            putObjectDiff( idArray[ i ], results[ i ] );
+        }
+        endPhase( DiffStats.Phase.RESULT_ASSEMBLY, begin );
+    }
+
+    /**
+     * Compute the property differences of the objects in map1 and map2 with
+     * the given id. This does not modify the diff results and may be called
+     * concurrently for different ids.
+     *
+     * @param id
+     *            the id of the object in map1 and/or map2
+     * @return the property differences of the object
+     */
+    protected ObjectDiff< P, ID > diffObject( ID id ) {
+        return newObjectDiff( diffProperties( id ), get1( id ), get2( id ) );
+    }
+
+    /**
+     * Compute the property differences of two versions of an object that are
+     * not necessarily in map1 and map2.
+     *
+     * @param t1
+     *            the object from the first set or null if it was added
+     * @param t2
+     *            the object from the second set or null if it was removed
+     * @return the property differences of the object
+     */
+    protected ObjectDiff< P, ID > diffObject( T t1, T t2 ) {
+        return newObjectDiff( diffProperties( this, t1, t2 ), t1, t2 );
+    }
+
+    protected ObjectDiff< P, ID > newObjectDiff( List< Set< ID > > mapDiff,
+                                                 T t1, T t2 ) {
+        long begin = beginPhase();
+        ObjectDiff< P, ID > objectDiff = new ObjectDiff< P, ID >();
+        Set<ID> addedPropIds = mapDiff.get( 0 );
+        Set<ID> removedPropIds = mapDiff.get( 1 );
+        Set<ID> updatedPropIds = mapDiff.get( 2 );
+
+        for ( ID pid : addedPropIds ) {
+            P p1 = getProperty1( t1, pid );
+            P p2 = getProperty2( t2, pid );
+            objectDiff.put( pid, new PropertyChange< P >( PropertyChange.Kind.ADDED,
+                                                          p1, p2 ) );
+        }
+        if ( !ignoreRemovedProperties ) {
+            for ( ID pid : removedPropIds ) {
+                P p1 = getProperty1( t1, pid );
+                P p2 = getProperty2( t2, pid );
+                objectDiff.put( pid, new PropertyChange< P >( PropertyChange.Kind.REMOVED,
+                                                              p1, p2 ) );
+            }
+        }
+        for ( ID pid : updatedPropIds ) {
+            P p1 = getProperty1( t1, pid );
+            P p2 = getProperty2( t2, pid );
+            objectDiff.put( pid, new PropertyChange< P >( PropertyChange.Kind.UPDATED,
+                                                          p1, p2 ) );
+        }
+        endPhase( DiffStats.Phase.RESULT_ASSEMBLY, begin );
+        return objectDiff;
+    }
+
+    protected P getProperty1( T t1, ID pid ) {
+        if ( t1 == null || pid == null ) return null;
+        return getProperty( t1, pid, true );
+    }
+
+    protected P getProperty2( T t2, ID pid ) {
+        if ( t2 == null || pid == null ) return null;
+        return getProperty( t2, pid, false );
+    }
+
+    /**
+     * Add the property differences of an object to the diff results and add
+     * the object to the added, removed, or updated set.
+     *
+     * @param id
+     *            the id of the object
+     * @param objectDiff
+     *            the property differences computed by {@link #diffObject(Object)}
+     */
+    protected void putObjectDiff( ID id, ObjectDiff< P, ID > objectDiff ) {
+        if ( compactResultStore != null ) {
+            compactResultStore.putAll( id, objectDiff.changes );
+        } else {
+            addedProperties.put( id, objectDiff.getAddedProperties() );
+            removedProperties.put( id, objectDiff.getRemovedProperties() );
+            updatedProperties.put( id, objectDiff.getUpdatedProperties() );
+            propertyChanges.put( id, objectDiff.getPropertyChanges() );
+        }
+        boolean c1 = getMap1().containsKey( id );
+        boolean c2 = getMap2().containsKey( id );
+        T t1 = get1( id );
+        T t2 = get2( id );
+        if ( !c1 && c2 && t2 != null ) added.add( t2 );
+        if ( c1 && !c2 && t1 != null ) removed.add( t1 );
+        if ( objectDiff.isUpdated() && t2 != null ) {
+            updated.add( t2 );
+        }
+    }
+
+    /**
+     * The property differences of a single object, one {@link PropertyChange}
+     * per changed property.
+     */
+    public static class ObjectDiff< P, ID > {
+        protected LinkedHashMap< ID, PropertyChange< P > > changes = null;
+
+        public void put( ID pid, PropertyChange< P > change ) {
+            if ( changes == null ) {
+                changes = new LinkedHashMap< ID, PropertyChange< P > >();
+            }
+            changes.put( pid, change );
+        }
+
+        /**
+         * @return the changes by property id
+         */
+        public Map< ID, PropertyChange< P > > getChanges() {
+            if ( changes == null ) return Utils.getEmptyMap();
+            return changes;
+        }
+
+        public boolean isUpdated() {
+            return changes != null && !changes.isEmpty();
+        }
+
+        public LinkedHashMap< ID, P > getAddedProperties() {
+            LinkedHashMap< ID, P > props = new LinkedHashMap< ID, P >();
+            for ( Map.Entry< ID, PropertyChange< P > > e : getChanges().entrySet() ) {
+                if ( e.getValue().kind == PropertyChange.Kind.ADDED ) {
+                    props.put( e.getKey(), e.getValue().second );
+                }
+            }
+            return props;
+        }
+
+        public LinkedHashMap< ID, P > getRemovedProperties() {
+            LinkedHashMap< ID, P > props = new LinkedHashMap< ID, P >();
+            for ( Map.Entry< ID, PropertyChange< P > > e : getChanges().entrySet() ) {
+                if ( e.getValue().kind == PropertyChange.Kind.REMOVED ) {
+                    props.put( e.getKey(), e.getValue().first );
+                }
+            }
+            return props;
+        }
+
+        public LinkedHashMap< ID, Pair< P, P > > getUpdatedProperties() {
+            LinkedHashMap< ID, Pair< P, P > > props =
+                    new LinkedHashMap< ID, Pair< P, P > >();
+            for ( Map.Entry< ID, PropertyChange< P > > e : getChanges().entrySet() ) {
+                if ( e.getValue().kind == PropertyChange.Kind.UPDATED ) {
+                    props.put( e.getKey(), e.getValue() );
+                }
+            }
+            return props;
+        }
+
+        public LinkedHashMap< ID, Pair< P, P > > getPropertyChanges() {
+            return new LinkedHashMap< ID, Pair< P, P > >( getChanges() );
+        }
+    }
+
+    /**
+     * Computes {@link ObjectDiff}s for a range of ids, splitting the range
+     * until it is no larger than the parallel threshold. Each task writes only
+     * to its own slots in the results array, so no locking is needed.
+     */
+    protected class DiffTask extends RecursiveAction {
+        private static final long serialVersionUID = -4402378462427380741L;
+
+        protected final ID[] ids;
+        protected final ObjectDiff< P, ID >[] results;
+        protected final int start;
+        protected final int end;
+
+        public DiffTask( ID[] ids, ObjectDiff< P, ID >[] results, int start,
+                         int end ) {
+            this.ids = ids;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if ( end - start <= Math.max( 1, getParallelThreshold() ) ) {
+                for ( int i = start; i < end; ++i ) {
+                    results[ i ] = diffObject( ids[ i ] );
+                    if ( stats != null ) stats.objectDone();
+                }
+                return;
+            }
+            int middle = ( start + end ) >>> 1;
+            invokeAll( new DiffTask( ids, results, start, middle ),
+                       new DiffTask( ids, results, middle, end ) );
+        }
+    }
+
+    /**
+     * Receives the property differences of each changed object from
+     * {@link AbstractDiff#diff(Iterator, Iterator, Comparator, ObjectDiffListener)}.
+     */
+    public static interface ObjectDiffListener< T, P, ID > {
+        /**
+         * @param id
+         *            the id of the object
+         * @param kind
+         *            whether the object was added, removed, or updated
+         * @param t1
+         *            the object in the first set or null if added
+         * @param t2
+         *            the object in the second set or null if removed
+         * @param objectDiff
+         *            the property differences of the object
+         */
+        public void objectDiff( ID id, SortedDiff.Kind kind, T t1, T t2,
+                                ObjectDiff< P, ID > objectDiff );
+    }
+
+    /**
+     * Diff two streams of objects sorted by id without storing the objects or
+     * the results. This uses only the abstract accessor methods, the
+     * properties to ignore, and {@link #filterValues(List)}; map1, map2, and
+     * the result members are not used. The listener gets the same objects
+     * that {@link #diff()} puts in the added, removed, and updated results:
+     * every added and removed object that passes the filter and the objects
+     * in both streams that have property differences.
+     *
+     * @param objects1
+     *            the first set of objects, sorted by id
+     * @param objects2
+     *            the second set of objects, sorted by id
+     * @param idComparator
+     *            the order of the ids or null for their natural order
+     * @param listener
+     *            receives the differences of each changed object
+     */
+    public void diff( Iterator< Map.Entry< ID, T > > objects1,
+                      Iterator< Map.Entry< ID, T > > objects2,
+                      Comparator< ? super ID > idComparator,
+                      ObjectDiffListener< T, P, ID > listener ) {
+        SortedDiff< ID, T > sortedDiff =
+                new SortedDiff< ID, T >( objects1, objects2, idComparator );
+        while ( sortedDiff.hasNext() ) {
+            SortedDiff.Change< ID, T > change = sortedDiff.next();
+            if ( !filterValues( idDiffOf( change.id, change.kind ) ).contains( change.id ) ) {
+                continue;
+            }
+            ObjectDiff< P, ID > objectDiff =
+                    diffObject( change.value1, change.value2 );
+            if ( change.kind == SortedDiff.Kind.UPDATED
+                 && !objectDiff.isUpdated() ) {
+                continue;
+            }
+            listener.objectDiff( change.id, change.kind, change.value1,
+                                 change.value2, objectDiff );
+        }
+    }
+
+    /**
+     * Add or replace an object in map1 and update the diff results for just
+     * that object.
+     *
+     * @param id
+     *            the id of the object
+     * @param t
+     *            the new object
+     * @return the object previously in map1 with the id
+     */
+    public T put1( ID id, T t ) {
+        T old = getMap1().put( id, t );
+        updateObjectSet( set1, old, t );
+        updateFingerprint( id, true );
+        rediffObject( id, old, get2( id ) );
+        return old;
+    }
+
+    /**
+     * Remove an object from map1 and update the diff results for just that
+     * object.
+     *
+     * @param id
+     *            the id of the object
+     * @return the removed object
+     */
+    public T remove1( ID id ) {
+        T old = getMap1().remove( id );
+        updateObjectSet( set1, old, null );
+        updateFingerprint( id, true );
+        rediffObject( id, old, get2( id ) );
+        return old;
+    }
+
+    /**
+     * Add or replace an object in map2 and update the diff results for just
+     * that object.
+     *
+     * @param id
+     *            the id of the object
+     * @param t
+     *            the new object
+     * @return the object previously in map2 with the id
+     */
+    public T put2( ID id, T t ) {
+        T old = getMap2().put( id, t );
+        updateObjectSet( set2, old, t );
+        updateFingerprint( id, false );
+        rediffObject( id, get1( id ), old );
+        return old;
+    }
+
+    /**
+     * Remove an object from map2 and update the diff results for just that
+     * object.
+     *
+     * @param id
+     *            the id of the object
+     * @return the removed object
+     */
+    public T remove2( ID id ) {
+        T old = getMap2().remove( id );
+        updateObjectSet( set2, old, null );
+        updateFingerprint( id, false );
+        rediffObject( id, get1( id ), old );
+        return old;
+    }
+
+    /**
+     * Update the diff results for objects that were changed in place in map1
+     * and/or map2. Objects that are replaced or removed should instead be
+     * passed to {@link #put1(Object, Object)}, {@link #put2(Object, Object)},
+     * {@link #remove1(Object)}, or {@link #remove2(Object)} so that the
+     * replaced objects can be dropped from the results.
+     *
+     * @param ids
+     *            the ids of the changed objects
+     */
+    public void objectsChanged( Collection< ID > ids ) {
+        for ( ID id : ids ) {
+            updateFingerprint( id, true );
+            updateFingerprint( id, false );
+            rediffObject( id, get1( id ), get2( id ) );
+        }
+    }
+
+    /**
+     * Update the diff results for properties of an object that were changed in
+     * place. Only the given properties are compared.
+     *
+     * @param id
+     *            the id of the object
+     * @param propertyIds
+     *            the ids of the changed properties
+     */
+    public void propertiesChanged( ID id, Collection< ID > propertyIds ) {
+        updateFingerprint( id, true );
+        updateFingerprint( id, false );
+        if ( objectDiffCache != null ) objectDiffCache.remove( id );
+        nestedDiff = null;
+        if ( propertyChanges == null ) return;
+        if ( propertyChanges.get( id ) == null ) {
+            rediffObject( id, get1( id ), get2( id ) );
+            return;
+        }
+        Map< ID, Pair< P, P > > propChanges = getPropertyChanges( id );
+        Map< ID, P > addedProps = getAddedProperties( id );
+        Map< ID, P > removedProps = getRemovedProperties( id );
+        Map< ID, Pair< P, P > > updatedProps = getUpdatedProperties( id );
+        for ( ID pid : propertyIds ) {
+            propChanges.remove( pid );
+            addedProps.remove( pid );
+            removedProps.remove( pid );
+            updatedProps.remove( pid );
+            if ( isIgnoredProperty( pid ) ) continue;
+            P p1 = get1( id, pid );
+            P p2 = get2( id, pid );
+            if ( p1 == null && p2 == null ) continue;
+            if ( p1 == null ) {
+                propChanges.put( pid, new Pair< P, P >( p1, p2 ) );
+                addedProps.put( pid, p2 );
+            } else if ( p2 == null ) {
+                if ( ignoreRemovedProperties ) continue;
+                propChanges.put( pid, new Pair< P, P >( p1, p2 ) );
+                removedProps.put( pid, p1 );
+            } else if ( !p1.equals( p2 ) && !sameProperty( p1, p2 ) ) {
+                propChanges.put( pid, new Pair< P, P >( p1, p2 ) );
+                updatedProps.put( pid, new Pair< P, P >( p1, p2 ) );
+            }
+        }
+        T t2 = get2( id );
+        updated.remove( t2 );
+        if ( !addedProps.isEmpty() || !removedProps.isEmpty()
+             || !updatedProps.isEmpty() ) {
+            updated.add( t2 );
+        }
+    }
+
+    /**
+     * Replace the diff results for the object with the given id with those of
+     * its current values in map1 and map2. Nothing is done if the diff has not
+     * yet been computed. The object's results are moved to the end of the
+     * result maps' iteration order.
+     *
+     * @param id
+     *            the id of the object
+     * @param oldT1
+     *            the object that was in map1 before the change, which may be in
+     *            the removed set
+     * @param oldT2
+     *            the object that was in map2 before the change, which may be in
+     *            the added and updated sets
+     */
+    protected void rediffObject( ID id, T oldT1, T oldT2 ) {
+        updateIdDiff( id );
+        if ( propertyChanges == null ) return;
+        addedProperties.remove( id );
+        removedProperties.remove( id );
+        updatedProperties.remove( id );
+        propertyChanges.remove( id );
+        if ( oldT1 != null ) removed.remove( oldT1 );
+        if ( oldT2 != null ) {
+            added.remove( oldT2 );
+            updated.remove( oldT2 );
+        }
+
+        if ( !idDiffOf( id, true ).contains( id ) ) return;
+        if ( isUsingFingerprints() && sameFingerprint( id ) ) return;
+
+        putObjectDiff( id, diffObject( id ) );
+    }
+
+    /**
+     * Classify an object as added, removed, or updated the same way as
+     * {@link Utils#diff(Map, Map)}.
+     *
+     * @param id
+     *            the id of the object
+     * @return the ids of the added, removed, and updated objects, which contain
+     *         at most the given id
+     */
+    protected List< Set< ID > > idDiffOf( ID id ) {
+        boolean c1 = getMap1().containsKey( id );
+        boolean c2 = getMap2().containsKey( id );
+        T t1 = get1( id );
+        T t2 = get2( id );
+        boolean same = !c1 && !c2
+                       || ( c1 && c2 && ( t1 == t2 || ( t1 != null && t1.equals( t2 ) ) ) );
+        SortedDiff.Kind kind = same ? null
+                               : !c1 ? SortedDiff.Kind.ADDED
+                               : !c2 ? SortedDiff.Kind.REMOVED
+                               : SortedDiff.Kind.UPDATED;
+        return idDiffOf( id, kind );
+    }
+
+    /**
+     * @param id
+     *            the id of an object
+     * @param kind
+     *            whether the object was added, removed, or updated, or null
+     *            if it is the same
+     * @return the ids of the added, removed, and updated objects, as returned
+     *         by {@link Utils#diff(Map, Map)}, for just the one object
+     */
+    protected List< Set< ID > > idDiffOf( ID id, SortedDiff.Kind kind ) {
+        List< Set< ID > > mapDiff = new ArrayList< Set< ID > >();
+        for ( int i = 0; i < 3; ++i ) {
+            mapDiff.add( new LinkedHashSet< ID >() );
+        }
+        // The kinds are in the same order as the sets.
+        if ( kind != null ) mapDiff.get( kind.ordinal() ).add( id );
+        return mapDiff;
+    }
+
+    /**
+     * @param id
+     *            the id of the object
+     * @param filter
+     *            whether to pass the classification through
+     *            {@link #filterValues(List)}
+     * @return a set with the id if the object is to be diffed
+     */
+    protected Set< ID > idDiffOf( ID id, boolean filter ) {
+        List< Set< ID > > mapDiff = idDiffOf( id );
+        if ( filter ) return filterValues( mapDiff );
+        Set< ID > ids = new LinkedHashSet< ID >();
+        for ( Set< ID > s : mapDiff ) ids.addAll( s );
+        return ids;
+    }
+
+    /**
+     * Update the cached id-level diff and the cached property diff of an
+     * object after it changed. The memoized nested diffs are forgotten since
+     * the object may share sub-objects with others.
+     */
+    protected void updateIdDiff( ID id ) {
+        moved = null;
+        nestedDiff = null;
+        if ( objectDiffCache != null ) objectDiffCache.remove( id );
+        if ( idDiff != null ) {
+            List< Set< ID > > mapDiff = idDiffOf( id );
+            for ( int i = 0; i < idDiff.size(); ++i ) {
+                idDiff.get( i ).remove( id );
+                idDiff.get( i ).addAll( mapDiff.get( i ) );
+            }
+        }
+        if ( changedIds != null ) {
+            changedIds.remove( id );
+            changedIds.addAll( idDiffOf( id, true ) );
+        }
+    }
+
+    /**
+     * Get the ids of the added, removed, and updated objects without diffing
+     * their properties. The result is cached and kept up to date by the
+     * incremental update methods.
+     *
+     * @return a list of the sets of added, removed, and updated ids as
+     *         returned by {@link Utils#diff(Map, Map)}
+     */
+    public List< Set< ID > > getIdDiff() {
+        if ( idDiff == null ) {
+            idDiff = Utils.diff( getMap1(), getMap2() );
+        }
+        return idDiff;
+    }
+
+    /**
+     * @return the ids of objects only in the second set
+     */
+    public Set< ID > getAddedIds() {
+        return getIdDiff().get( 0 );
+    }
+
+    /**
+     * @return the ids of objects only in the first set
+     */
+    public Set< ID > getRemovedIds() {
+        return getIdDiff().get( 1 );
+    }
+
+    /**
+     * @return the ids of the objects whose properties are diffed, as returned
+     *         by {@link #filterValues(List)}
+     */
+    public Set< ID > getChangedIds() {
+        if ( changedIds == null ) {
+            changedIds = filterValues( getIdDiff() );
+        }
+        return changedIds;
+    }
+
+    /**
+     * Get the property differences of one object, computing and caching only
+     * that object's diff if necessary.
+     *
+     * @param id
+     *            the id of the object
+     * @return the property differences of the object, which are empty if the
+     *         object is not changed
+     */
+    public ObjectDiff< P, ID > getObjectDiff( ID id ) {
+        if ( objectDiffCache == null ) {
+            objectDiffCache = new LinkedHashMap< ID, ObjectDiff< P, ID > >();
+        }
+        ObjectDiff< P, ID > objectDiff = objectDiffCache.get( id );
+        if ( objectDiff == null ) {
+            if ( getChangedIds().contains( id )
+                 && !( isUsingFingerprints() && sameFingerprint( id ) ) ) {
+                objectDiff = diffObject( id );
+            } else {
+                objectDiff = new ObjectDiff< P, ID >();
+            }
+            objectDiffCache.put( id, objectDiff );
+        }
+        return objectDiff;
+    }
+
+    /**
+     * Forget the cached id-level and per-object results, for example, after
+     * map1 or map2 were changed directly.
+     */
+    public void clearLazyResults() {
+        moved = null;
+        nestedDiff = null;
+        idDiff = null;
+        changedIds = null;
+        objectDiffCache = null;
+    }
+
+    /**
+     * @return whether the per-object getters should compute only the diff of
+     *         the requested object
+     */
+    protected boolean useLazyObjectDiff() {
+        return lazy && propertyChanges == null;
+    }
+
+    protected void updateObjectSet( Set< T > set, T oldT, T newT ) {
+        if ( set == null ) return;
+        if ( oldT != null ) set.remove( oldT );
+        if ( newT != null ) set.add( newT );
+    }
+
+    /**
+     * Compute a 64-bit hash of the non-ignored properties of an object. The
+     * hash does not depend on the order of the properties. Objects whose
+     * fingerprints match are assumed to have no property changes.
+     *
+     * @param t
+     *            the object
+     * @param isSet1
+     *            whether the object is from the first set
+     * @return the fingerprint of the object
+     */
+    public long fingerprint( T t, boolean isSet1 ) {
+        if ( t == null ) return 0;
+        long h = 0;
+        for ( Map.Entry< ID, P > e : getPropertyMap( t, isSet1 ).entrySet() ) {
+            h += mix64( 31L * hashCode( e.getKey() )
+                        + fingerprintProperty( e.getValue() ) );
+        }
+        return mix64( h );
+    }
+
+    /**
+     * Override this method to hash property values whose equals() is not
+     * consistent with {@link #sameProperty(Object, Object)} or whose
+     * toString() is slow or leaves out part of the value; see
+     * {@link #hash64(Object)}.
+     *
+     * @param p
+     *            the property
+     * @return a 64-bit hash of the property value
+     */
+    public long fingerprintProperty( P p ) {
+        return hash64( p );
+    }
+
+    protected static int hashCode( Object o ) {
+        return o == null ? 0 : o.hashCode();
+    }
+
+    /**
+     * Compute a 64-bit hash of the content of strings, numbers, enums, map
+     * entries, collections, and maps, recursively, so that values with equal
+     * hashCode()s, like "Aa" and "BB", are still told apart. Integral numbers
+     * and whole floating point numbers hash by value, consistent with
+     * {@link CompareUtils#compare(Object, Object)}. Other objects are hashed
+     * by their hashCode() and their toString(), which may differ for equal
+     * objects but then only costs a property diff that finds no changes.
+     *
+     * @param o
+     *            the value to hash
+     * @return a hash of the value that is the same for equal values
+     */
+    public static long hash64( Object o ) {
+        if ( o == null ) return 0;
+        if ( o instanceof CharSequence ) {
+            CharSequence s = (CharSequence)o;
+            long h = 0x9e3779b97f4a7c15L;
+            for ( int i = 0; i < s.length(); ++i ) {
+                h = ( h ^ s.charAt( i ) ) * 0x100000001b3L;
+            }
+            return mix64( h + s.length() );
+        }
+        if ( o instanceof Long || o instanceof Integer || o instanceof Short
+             || o instanceof Byte ) {
+            return mix64( ( (Number)o ).longValue() );
+        }
+        if ( o instanceof Double || o instanceof Float ) {
+            double d = ( (Number)o ).doubleValue();
+            long n = (long)d;
+            if ( n == d && n != Long.MAX_VALUE && n != Long.MIN_VALUE ) {
+                return mix64( n );
+            }
+            return mix64( Double.doubleToLongBits( d ) ^ 0x5555555555555555L );
+        }
+        if ( o instanceof Enum ) {
+            return mix64( hash64( ( (Enum< ? >)o ).name() ) + 1 );
+        }
+        if ( o instanceof Map.Entry ) {
+            Map.Entry< ?, ? > e = (Map.Entry< ?, ? >)o;
+            return mix64( 31L * hash64( e.getKey() ) + hash64( e.getValue() ) );
+        }
+        if ( o instanceof List ) {
+            long h = 1;
+            for ( Object e : (List< ? >)o ) {
+                h = 31L * h + hash64( e );
+            }
+            return mix64( h + 2 );
+        }
+        if ( o instanceof Set ) {
+            long h = 0;
+            for ( Object e : (Set< ? >)o ) {
+                h += mix64( hash64( e ) );
+            }
+            return mix64( h + 3 );
+        }
+        if ( o instanceof Map ) {
+            long h = 0;
+            for ( Map.Entry< ?, ? > e : ( (Map< ?, ? >)o ).entrySet() ) {
+                h += hash64( e );
+            }
+            return mix64( h + 4 );
+        }
+        return mix64( ( (long)o.hashCode() << 32 ) ^ hash64( o.toString() ) );
+    }
+
+    /**
+     * The finalizer of the SplitMix64 generator, which spreads the bits of the
+     * input across the output.
+     */
+    protected static long mix64( long z ) {
+        z = ( z ^ ( z >>> 30 ) ) * 0xbf58476d1ce4e5b9L;
+        z = ( z ^ ( z >>> 27 ) ) * 0x94d049bb133111ebL;
+        return z ^ ( z >>> 31 );
+    }
+
+    /**
+     * @return the fingerprints of the objects in map1, computed on the first
+     *         call or set by {@link #setFingerprints1(Map)}
+     */
+    public Map< ID, Long > getFingerprints1() {
+        if ( fingerprints1 == null ) {
+            fingerprints1 = computeFingerprints( getMap1(), true );
+        }
+        return fingerprints1;
+    }
+
+    /**
+     * @return the fingerprints of the objects in map2, computed on the first
+     *         call or set by {@link #setFingerprints2(Map)}
+     */
+    public Map< ID, Long > getFingerprints2() {
+        if ( fingerprints2 == null ) {
+            fingerprints2 = computeFingerprints( getMap2(), false );
+        }
+        return fingerprints2;
+    }
+
+    /**
+     * Use fingerprints saved from an earlier diff of the same first snapshot.
+     *
+     * @param fingerprints1
+     *            a map from object id to fingerprint
+     */
+    public void setFingerprints1( Map< ID, Long > fingerprints1 ) {
+        this.fingerprints1 = fingerprints1;
+        snapshotFingerprint1 = null;
+    }
+
+    /**
+     * Use fingerprints saved from an earlier diff of the same second snapshot.
+     *
+     * @param fingerprints2
+     *            a map from object id to fingerprint
+     */
+    public void setFingerprints2( Map< ID, Long > fingerprints2 ) {
+        this.fingerprints2 = fingerprints2;
+        snapshotFingerprint2 = null;
     }
 
-    protected Set<T> newObjectSet( Collection<T> c ) {
-        Set< T > s = newObjectSet();
-        s.addAll( c );
-        return s;
+    protected Map< ID, Long > computeFingerprints( Map< ID, T > map,
+                                                   boolean isSet1 ) {
+        Map< ID, Long > fingerprints = new LinkedHashMap< ID, Long >();
+        for ( Map.Entry< ID, T > e : map.entrySet() ) {
+            fingerprints.put( e.getKey(), fingerprint( e.getValue(), isSet1 ) );
+        }
+        return fingerprints;
     }
-    protected Set<T> newObjectSet() {
-        if ( getObjectComparator() == null ) {
-            return new LinkedHashSet<T>();
+
+    /**
+     * The fingerprint of a snapshot is the sum of a hash of each object's id
+     * and fingerprint, so it can be updated for a single object without
+     * visiting the others.
+     *
+     * @param isSet1
+     *            whether to get the fingerprint of the first snapshot
+     * @return the fingerprint of the whole snapshot
+     */
+    public long getSnapshotFingerprint( boolean isSet1 ) {
+        Long fp = isSet1 ? snapshotFingerprint1 : snapshotFingerprint2;
+        if ( fp == null ) {
+            long h = 0;
+            Map< ID, Long > fingerprints =
+                    isSet1 ? getFingerprints1() : getFingerprints2();
+            for ( Map.Entry< ID, Long > e : fingerprints.entrySet() ) {
+                h += snapshotTerm( e.getKey(), e.getValue() );
+            }
+            fp = h;
+            if ( isSet1 ) snapshotFingerprint1 = fp;
+            else snapshotFingerprint2 = fp;
         }
-        return new TreeSet<T>( getObjectComparator() );
+        return fp;
     }
 
-    public void diff() {
-        // re-initialize members
-        added = newObjectSet();
-        removed = newObjectSet();
-        updated = newObjectSet();
+    protected static long snapshotTerm( Object id, Long fingerprint ) {
+        if ( fingerprint == null ) return 0;
+        return mix64( mix64( hashCode( id ) ) ^ fingerprint );
+    }
 
-        propertyChanges = new LinkedHashMap< ID, Map<ID,Pair<P,P>> >();
+    /**
+     * @return whether the two snapshots have the same fingerprint and are thus
+     *         assumed to have no differences
+     */
+    public boolean sameSnapshotFingerprints() {
+        return getSnapshotFingerprint( true ) == getSnapshotFingerprint( false );
+    }
 
-        addedProperties = new LinkedHashMap< ID, Map<ID,P> >();
-        removedProperties = new LinkedHashMap< ID, Map<ID,P> >();
-        updatedProperties = new LinkedHashMap< ID, Map<ID,Pair<P,P>> >();
+    /**
+     * @param id
+     *            the id of an object
+     * @return whether the object is in both maps with the same fingerprint
+     */
+    public boolean sameFingerprint( ID id ) {
+        Long fp1 = getFingerprints1().get( id );
+        if ( fp1 == null ) return false;
+        return fp1.equals( getFingerprints2().get( id ) );
+    }
 
-        List< Set< ID > > mapDiff = Utils.diff( getMap1(), getMap2() );
-        
-        Set<ID> updatedIds = filterValues(mapDiff);
-        
-        for ( ID id : updatedIds ) {
-            mapDiff = diffProperties( id );
-            Set<ID> addedPropIds = mapDiff.get( 0 );
-            Set<ID> removedPropIds = mapDiff.get( 1 );
-            Set<ID> updatedPropIds = mapDiff.get( 2 );
-
-            LinkedHashMap< ID, P > addedProps = new LinkedHashMap< ID, P >();
-            addedProperties.put( id, addedProps );
-            LinkedHashMap< ID, P > removedProps = new LinkedHashMap< ID, P >();
-            removedProperties.put( id, removedProps  );
-            LinkedHashMap< ID, Pair<P,P> > updatedProps = new LinkedHashMap< ID, Pair<P,P> >();
-            updatedProperties.put( id, updatedProps  );
-            LinkedHashMap< ID, Pair<P,P> > propChanges = new LinkedHashMap< ID, Pair<P,P> >();
-            propertyChanges.put( id, propChanges );
-
-            for ( ID pid : addedPropIds ) {
-                P p1 = get1( id, pid );
-                P p2 = get2( id, pid );
-                propChanges.put( pid, new Pair< P, P >( p1, p2 ) );
-                addedProps.put( pid, p2 );
-            }
-            if ( !ignoreRemovedProperties ) {
-                for ( ID pid : removedPropIds ) {
-                    P p1 = get1( id, pid );
-                    P p2 = get2( id, pid );
-                    propChanges.put( pid, new Pair< P, P >( p1, p2 ) );
-                    removedProps.put( pid, p1 );
-                }
-            }
-            for ( ID pid : updatedPropIds ) {
-                P p1 = get1( id, pid );
-                P p2 = get2( id, pid );
-                propChanges.put( pid, new Pair< P, P >( p1, p2 ) );
-                updatedProps.put( pid, new Pair< P, P >( p1, p2 ) );
-            }
-            if ( !addedProps.isEmpty() || !removedProps.isEmpty() || !updatedProps.isEmpty() ) {
-                updated.add( get2( id ) );
-            }
+    protected Set< ID > removeSameFingerprints( Set< ID > ids ) {
+        Set< ID > differentIds = new LinkedHashSet< ID >();
+        for ( ID id : ids ) {
+            if ( !sameFingerprint( id ) ) differentIds.add( id );
         }
+        return differentIds;
+    }
+
+    /**
+     * Recompute the cached fingerprint of an object after it changed and
+     * adjust the snapshot fingerprint accordingly.
+     *
+     * @param id
+     *            the id of the object
+     * @param isSet1
+     *            whether the object is in the first snapshot
+     */
+    protected void updateFingerprint( ID id, boolean isSet1 ) {
+        Map< ID, Long > fingerprints = isSet1 ? fingerprints1 : fingerprints2;
+        if ( fingerprints == null ) return;
+        Map< ID, T > map = isSet1 ? getMap1() : getMap2();
+        Long newFp = map.containsKey( id ) ? fingerprint( map.get( id ), isSet1 )
+                                           : null;
+        Long oldFp = newFp == null ? fingerprints.remove( id )
+                                   : fingerprints.put( id, newFp );
+        Long snapshotFp = isSet1 ? snapshotFingerprint1 : snapshotFingerprint2;
+        if ( snapshotFp == null ) return;
+        snapshotFp = snapshotFp - snapshotTerm( id, oldFp )
+                     + snapshotTerm( id, newFp );
+        if ( isSet1 ) snapshotFingerprint1 = snapshotFp;
+        else snapshotFingerprint2 = snapshotFp;
     }
 
+    /**
+     * Forget cached fingerprints, for example, after the properties to ignore
+     * change.
+     */
+    public void clearFingerprints() {
+        setFingerprints1( null );
+        setFingerprints2( null );
+    }
 
     /**
      * Compute property changes and save them in propertyChanges.
@@ -198,45 +1307,77 @@ public abstract class AbstractDiff<T,P,ID> implements Diff<T,P,ID> {
                                                                Map< ID, P > properties1,
                                                                Map< ID, P > properties2 ) {
 
+        DiffStats stats = aDiff == null ? null : aDiff.stats;
+        long begin = stats == null ? 0 : stats.begin();
         List< Set< ID > > mapDiff = Utils.diff( properties1, properties2 );
+        if ( stats != null ) stats.end( DiffStats.Phase.PROPERTY_DIFF, begin );
         if ( mapDiff == null ) return null;
         if ( mapDiff.size() < 3 ) return mapDiff;
 
         // check to see if updates are correlated, in which case we can remove them.
         Set< ID > updates = mapDiff.get( 2 );
+        if ( stats != null ) {
+            stats.countComparisons( updates.size() );
+            begin = stats.begin();
+        }
         for ( ID id : new ArrayList<ID>(updates) ) {
             P prop1 = properties1.get( id );
             P prop2 = properties2.get( id );
-            if ( ( aDiff != null && aDiff.sameProperty( prop1, prop2 ) ) ||
+            if ( prop1 == prop2 ||
+                 ( aDiff != null && aDiff.sameProperty( prop1, prop2 ) ) ||
                  ( aDiff == null && defaultSameProperty( prop1, prop2 ) ) ) {
                 updates.remove( id );
                 continue;
             }
         }
+        if ( stats != null ) stats.end( DiffStats.Phase.SAME_PROPERTY, begin );
 
         return mapDiff;
     }
     
     protected static <P> boolean defaultSameProperty( P prop1, P prop2 ) {
+        if ( prop1 == prop2 ) return true;
         int comp = CompareUtils.compare( prop1, prop2 );
         return comp == 0;
     }
     
     /**
      * Add diff2 into diff1 such that applying the glommed diff would produce
-     * the same result as applying diff1 and then applying diff2.
+     * the same result as applying diff1 and then applying diff2. Only the
+     * results of diff1 for the objects changed in diff2 are modified; the
+     * snapshots of diff1 (as returned by get1() and get2()) are not. The
+     * objects changed by the glommed diff are taken from the first snapshot
+     * of diff1 and the second snapshot of diff2.
      * 
      * @param diff1
      * @param diff2
      */
     public static <TT, PP, II> void glom(Diff<TT, PP, II> diff1,
                                          Diff<TT, PP, II> diff2) {
-        
+        if ( diff1 == null || diff2 == null ) return;
+        Map< II, Map< II, Pair< PP, PP > > > changes1 = diff1.getPropertyChanges();
+        Map< II, Map< II, Pair< PP, PP > > > changes2 =
+                new LinkedHashMap< II, Map< II, Pair< PP, PP > > >( diff2.getPropertyChanges() );
+        for ( Map.Entry< II, Map< II, Pair< PP, PP > > > e : changes2.entrySet() ) {
+            II id = e.getKey();
+            Map< II, Pair< PP, PP > > propChanges1 = changes1.get( id );
+            for ( Map.Entry< II, Pair< PP, PP > > pe : e.getValue().entrySet() ) {
+                II pid = pe.getKey();
+                Pair< PP, PP > change1 =
+                        propChanges1 == null ? null : propChanges1.get( pid );
+                PP oldValue = change1 == null ? pe.getValue().first : change1.first;
+                putPropertyChange( diff1, id, pid, oldValue, pe.getValue().second );
+            }
+            updateObjectSets( diff1, id, diff1.get1( id ), diff2.get2( id ),
+                              diff1.get2( id ), diff2.get1( id ) );
+        }
     }
 
     /**
      * Set diffDiff to the diff of diff1 and diff2 such that applying diff1
      * followed by diffDiff would produce the same result as applying diff2.
+     * diff1 and diff2 must be diffs from the same first snapshot. The previous
+     * results of diffDiff are replaced, but its snapshots are not changed.
      * 
      * @param diff1
      * @param diff2
@@ -245,7 +1386,432 @@ public abstract class AbstractDiff<T,P,ID> implements Diff<T,P,ID> {
     public static <TT, PP, II> void diff(Diff<TT, PP, II> diff1,
                                          Diff<TT, PP, II> diff2,
                                          Diff<TT, PP, II> diffDiff) {
-        
+        if ( diff1 == null || diff2 == null || diffDiff == null ) return;
+        clearResults( diffDiff );
+        Map< II, Map< II, Pair< PP, PP > > > changes1 = diff1.getPropertyChanges();
+        Map< II, Map< II, Pair< PP, PP > > > changes2 = diff2.getPropertyChanges();
+        Set< II > ids = new LinkedHashSet< II >( changes1.keySet() );
+        ids.addAll( changes2.keySet() );
+        for ( II id : ids ) {
+            Map< II, Pair< PP, PP > > propChanges1 = changes1.get( id );
+            Map< II, Pair< PP, PP > > propChanges2 = changes2.get( id );
+            Set< II > pids = new LinkedHashSet< II >();
+            if ( propChanges1 != null ) pids.addAll( propChanges1.keySet() );
+            if ( propChanges2 != null ) pids.addAll( propChanges2.keySet() );
+            for ( II pid : pids ) {
+                Pair< PP, PP > change1 =
+                        propChanges1 == null ? null : propChanges1.get( pid );
+                Pair< PP, PP > change2 =
+                        propChanges2 == null ? null : propChanges2.get( pid );
+                // A property that one diff does not change keeps the value it
+                // had in the shared first snapshot.
+                PP value1 = change1 != null ? change1.second : change2.first;
+                PP value2 = change2 != null ? change2.second : change1.first;
+                putPropertyChange( diffDiff, id, pid, value1, value2 );
+            }
+            updateObjectSets( diffDiff, id, diff1.get2( id ), diff2.get2( id ) );
+        }
+    }
+
+    /**
+     * Replace any change to a property in a diff's results with a change from
+     * oldValue to newValue. Nothing is added if the values are the same.
+     */
+    protected static <TT, PP, II> void putPropertyChange( Diff<TT, PP, II> diff,
+                                                          II id, II pid,
+                                                          PP oldValue,
+                                                          PP newValue ) {
+        removeInner( diff.getPropertyChanges(), id, pid );
+        removeInner( diff.getAddedProperties(), id, pid );
+        removeInner( diff.getRemovedProperties(), id, pid );
+        removeInner( diff.getUpdatedProperties(), id, pid );
+        if ( oldValue == null && newValue == null ) return;
+        if ( oldValue == null ) {
+            putInner( diff.getAddedProperties(), id, pid, newValue );
+        } else if ( newValue == null ) {
+            if ( diff instanceof AbstractDiff
+                 && ( (AbstractDiff< ?, ?, ? >)diff ).ignoreRemovedProperties ) {
+                return;
+            }
+            putInner( diff.getRemovedProperties(), id, pid, oldValue );
+        } else if ( oldValue.equals( newValue )
+                    || ( diff instanceof AbstractDiff
+                         && ( (AbstractDiff< TT, PP, II >)diff ).sameProperty( oldValue,
+                                                                               newValue ) )
+                    || ( !( diff instanceof AbstractDiff )
+                         && defaultSameProperty( oldValue, newValue ) ) ) {
+            return;
+        } else {
+            putInner( diff.getUpdatedProperties(), id, pid,
+                      new Pair< PP, PP >( oldValue, newValue ) );
+        }
+        putInner( diff.getPropertyChanges(), id, pid,
+                  new Pair< PP, PP >( oldValue, newValue ) );
+    }
+
+    /**
+     * Reclassify the object with the given id in the added, removed, and
+     * updated sets of a diff after its property changes were replaced.
+     *
+     * @param diff
+     * @param id
+     * @param t1
+     *            the object before the change or null if added
+     * @param t2
+     *            the object after the change or null if removed
+     * @param staleObjects
+     *            other versions of the object to remove from the sets
+     */
+    @SafeVarargs
+    protected static <TT, PP, II> void updateObjectSets( Diff<TT, PP, II> diff,
+                                                         II id, TT t1, TT t2,
+                                                         TT... staleObjects ) {
+        List< TT > objects = new ArrayList< TT >( staleObjects.length + 2 );
+        for ( TT t : staleObjects ) {
+            objects.add( t );
+        }
+        objects.add( t1 );
+        objects.add( t2 );
+        for ( TT t : objects ) {
+            if ( t == null ) continue;
+            diff.getAdded().remove( t );
+            diff.getRemoved().remove( t );
+            diff.getUpdated().remove( t );
+        }
+        if ( t1 == null && t2 != null ) {
+            diff.getAdded().add( t2 );
+        } else if ( t1 != null && t2 == null ) {
+            diff.getRemoved().add( t1 );
+        } else if ( t2 != null
+                    && !Utils.isNullOrEmpty( diff.getPropertyChanges().get( id ) ) ) {
+            diff.getUpdated().add( t2 );
+        }
+    }
+
+    protected static <K1, K2, V> void putInner( Map< K1, Map< K2, V > > map,
+                                                K1 k1, K2 k2, V v ) {
+        Map< K2, V > inner = map.get( k1 );
+        if ( inner == null ) {
+            // Put the new inner map after filling it in case the map copies it.
+            inner = new LinkedHashMap< K2, V >();
+            inner.put( k2, v );
+            map.put( k1, inner );
+            return;
+        }
+        inner.put( k2, v );
+    }
+
+    protected static <K1, K2, V> void removeInner( Map< K1, Map< K2, V > > map,
+                                                   K1 k1, K2 k2 ) {
+        Map< K2, V > inner = map.get( k1 );
+        if ( inner != null ) inner.remove( k2 );
+    }
+
+    /**
+     * Empty the results of a diff without computing them.
+     */
+    protected static <TT, PP, II> void clearResults( Diff<TT, PP, II> diff ) {
+        if ( diff instanceof AbstractDiff ) {
+            ( (AbstractDiff< TT, PP, II >)diff ).initResults();
+            return;
+        }
+        diff.getAdded().clear();
+        diff.getRemoved().clear();
+        diff.getUpdated().clear();
+        diff.getAddedProperties().clear();
+        diff.getRemovedProperties().clear();
+        diff.getUpdatedProperties().clear();
+        diff.getPropertyChanges().clear();
+    }
+
+    /**
+     * Find objects that were removed and added again with a different id,
+     * such as an element that was re-created. Candidate pairs are found with
+     * MinHash signatures of the objects' properties, hashed in bands so that
+     * only objects sharing a band are compared (locality-sensitive hashing).
+     * Each candidate is then confirmed with {@link #same(Object, Object)} or
+     * by the fraction of properties that are the same according to
+     * {@link #sameProperty(Object, Object)}. The added and removed results are
+     * not changed.
+     *
+     * @return a map from the id of each removed object to the id of the added
+     *         object it was moved to
+     */
+    public Map< ID, ID > getMoved() {
+        if ( moved == null ) {
+            moved = detectMoves( getRemovedIds(), getAddedIds() );
+        }
+        return moved;
+    }
+
+    protected Map< ID, ID > detectMoves( Collection< ID > removedIds,
+                                         Collection< ID > addedIds ) {
+        Map< ID, ID > moves = new LinkedHashMap< ID, ID >();
+        if ( removedIds.isEmpty() || addedIds.isEmpty() ) return moves;
+
+        // Bucket the added objects by each band of their signatures.
+        Map< Long, List< ID > > buckets = new HashMap< Long, List< ID > >();
+        Map< ID, Map< ID, P > > addedProperties = new HashMap< ID, Map< ID, P > >();
+        for ( ID id : addedIds ) {
+            Map< ID, P > props = getPropertyMap( get2( id ), false );
+            long[] sig = minHashSignature( props );
+            if ( sig == null ) continue;
+            addedProperties.put( id, props );
+            for ( int b = 0; b < moveBands; ++b ) {
+                Long key = bandKey( sig, b );
+                List< ID > bucket = buckets.get( key );
+                if ( bucket == null ) {
+                    bucket = new ArrayList< ID >( 2 );
+                    buckets.put( key, bucket );
+                }
+                bucket.add( id );
+            }
+        }
+
+        // Score the candidates of each removed object.
+        List< Pair< Double, Pair< ID, ID > > > matches =
+                new ArrayList< Pair< Double, Pair< ID, ID > > >();
+        for ( ID id1 : removedIds ) {
+            T t1 = get1( id1 );
+            Map< ID, P > props1 = getPropertyMap( t1, true );
+            long[] sig = minHashSignature( props1 );
+            if ( sig == null ) continue;
+            Set< ID > candidates = new LinkedHashSet< ID >();
+            for ( int b = 0; b < moveBands; ++b ) {
+                List< ID > bucket = buckets.get( bandKey( sig, b ) );
+                if ( bucket != null ) candidates.addAll( bucket );
+            }
+            for ( ID id2 : candidates ) {
+                double similarity = same( t1, get2( id2 ) ) ? 1.0
+                                    : similarity( props1, addedProperties.get( id2 ) );
+                if ( similarity >= moveSimilarityThreshold ) {
+                    matches.add( new Pair< Double, Pair< ID, ID > >( similarity,
+                                                                     new Pair< ID, ID >( id1, id2 ) ) );
+                }
+            }
+        }
+
+        // Pair the most similar objects first, each at most once.
+        Collections.sort( matches, new Comparator< Pair< Double, Pair< ID, ID > > >() {
+            @Override
+            public int compare( Pair< Double, Pair< ID, ID > > o1,
+                                Pair< Double, Pair< ID, ID > > o2 ) {
+                return o2.first.compareTo( o1.first );
+            }
+        } );
+        Set< ID > matched = new HashSet< ID >();
+        for ( Pair< Double, Pair< ID, ID > > match : matches ) {
+            ID id1 = match.second.first;
+            ID id2 = match.second.second;
+            if ( moves.containsKey( id1 ) || matched.contains( id2 ) ) continue;
+            moves.put( id1, id2 );
+            matched.add( id2 );
+        }
+        return moves;
+    }
+
+    /**
+     * @return the number of properties that are the same in both maps divided
+     *         by the number of distinct property ids
+     */
+    protected double similarity( Map< ID, P > properties1,
+                                 Map< ID, P > properties2 ) {
+        int same = 0;
+        for ( Map.Entry< ID, P > e : properties1.entrySet() ) {
+            if ( !properties2.containsKey( e.getKey() ) ) continue;
+            P p1 = e.getValue();
+            P p2 = properties2.get( e.getKey() );
+            if ( p1 == p2 || ( p1 != null && p1.equals( p2 ) )
+                 || sameProperty( p1, p2 ) ) {
+                ++same;
+            }
+        }
+        int union = properties1.size() + properties2.size() - same;
+        return union == 0 ? 1.0 : ( (double)same ) / union;
+    }
+
+    /**
+     * @return the MinHash signature of the set of (property id, value hash)
+     *         pairs of an object or null if it has no properties
+     */
+    protected long[] minHashSignature( Map< ID, P > properties ) {
+        if ( Utils.isNullOrEmpty( properties ) ) return null;
+        int numHashes = moveBands * moveRowsPerBand;
+        long[] sig = new long[ numHashes ];
+        Arrays.fill( sig, Long.MAX_VALUE );
+        for ( Map.Entry< ID, P > e : properties.entrySet() ) {
+            long token = mix64( 31L * hashCode( e.getKey() )
+                                + fingerprintProperty( e.getValue() ) );
+            for ( int i = 0; i < numHashes; ++i ) {
+                long h = mix64( token ^ ( 0x9e3779b97f4a7c15L * ( i + 1 ) ) );
+                if ( h < sig[ i ] ) sig[ i ] = h;
+            }
+        }
+        return sig;
+    }
+
+    protected long bandKey( long[] signature, int band ) {
+        long h = band;
+        for ( int r = 0; r < moveRowsPerBand; ++r ) {
+            h = mix64( h ^ signature[ band * moveRowsPerBand + r ] );
+        }
+        return h;
+    }
+
+    /**
+     * Get the changes of an object's properties as a tree, recursing into
+     * object-valued properties with the {@link NestedDiff.Extractor} set by
+     * {@link #setNestedExtractor(NestedDiff.Extractor)}. Diffs of shared
+     * sub-objects are memoized until the next {@link #diff()} or incremental
+     * update.
+     *
+     * @param id
+     *            the id of the object
+     * @return the changes by property id
+     */
+    public Map< Object, NestedDiff.Change > getNestedChanges( ID id ) {
+        Map< ID, Pair< P, P > > changes = getPropertyChanges().get( id );
+        if ( changes == null ) return Utils.getEmptyMap();
+        Map< Object, NestedDiff.Change > nested =
+                new LinkedHashMap< Object, NestedDiff.Change >();
+        for ( Map.Entry< ID, Pair< P, P > > e : changes.entrySet() ) {
+            NestedDiff.Change change = getNestedDiff().diff( e.getValue().first,
+                                                             e.getValue().second );
+            if ( change != null ) nested.put( e.getKey(), change );
+        }
+        return nested;
+    }
+
+    public NestedDiff getNestedDiff() {
+        if ( nestedDiff == null ) {
+            nestedDiff = new NestedDiff( nestedExtractor ) {
+                @Override
+                protected boolean sameLeaf( Object value1, Object value2 ) {
+                    return sameNestedValue( value1, value2 );
+                }
+            };
+        }
+        return nestedDiff;
+    }
+
+    /**
+     * Override this method to change how the values without parts within
+     * object-valued properties are compared.
+     */
+    protected boolean sameNestedValue( Object value1, Object value2 ) {
+        return Utils.valuesEqual( value1, value2 )
+               || defaultSameProperty( value1, value2 );
+    }
+
+    /**
+     * Override this method to return the elements of a list-valued property
+     * so that {@link #getSequenceEdits(Object, Object)} can diff them. This
+     * default implementation handles {@link List}s and arrays.
+     *
+     * @param property
+     * @return the ordered elements of the property value or null if it is not
+     *         a sequence
+     */
+    public List< ? > getSequence( P property ) {
+        if ( property instanceof List ) return (List< ? >)property;
+        if ( property instanceof Object[] ) return Arrays.asList( (Object[])property );
+        return null;
+    }
+
+    /**
+     * Diff the elements of an updated list-valued property with
+     * {@link SequenceDiff} instead of reporting only the old and new values.
+     *
+     * @param id
+     *            the id of the object
+     * @param pid
+     *            the id of the property
+     * @param detectMoves
+     *            whether to report an element deleted and inserted elsewhere
+     *            as a move
+     * @return the insert, delete, and move edits that turn the old sequence
+     *         into the new one, or null if the property was not changed or is
+     *         not a sequence
+     */
+    public List< SequenceDiff.Edit< Object > > getSequenceEdits( ID id, ID pid,
+                                                                boolean detectMoves ) {
+        Map< ID, Pair< P, P > > changes = getPropertyChanges().get( id );
+        Pair< P, P > change = changes == null ? null : changes.get( pid );
+        if ( change == null ) return null;
+        List< ? > seq1 = change.first == null ? null : getSequence( change.first );
+        List< ? > seq2 = change.second == null ? null : getSequence( change.second );
+        if ( seq1 == null && seq2 == null ) return null;
+        if ( ( seq1 == null && change.first != null )
+             || ( seq2 == null && change.second != null ) ) {
+            return null;
+        }
+        return SequenceDiff.diff( seq1, seq2, getSequenceElementStrategy(),
+                                  detectMoves );
+    }
+
+    public List< SequenceDiff.Edit< Object > > getSequenceEdits( ID id, ID pid ) {
+        return getSequenceEdits( id, pid, true );
+    }
+
+    /**
+     * Override this method to change how the elements of sequences are
+     * compared.
+     *
+     * @return a strategy with the equality and a consistent hash code of the
+     *         elements or null to use equals() and hashCode()
+     */
+    public CompareUtils.HashingStrategy< Object > getSequenceElementStrategy() {
+        return null;
+    }
+
+    /**
+     * @return a patch with only what is needed to turn the first set of
+     *         objects into the second. Objects are created and removed
+     *         according to {@link #getIdDiff()}, so an added object without
+     *         properties is still created and a removed object is removed
+     *         even if its properties are ignored.
+     */
+    public DiffPatch< P, ID > toPatch() {
+        DiffPatch< P, ID > patch = new DiffPatch< P, ID >();
+        Set< ID > changed = getChangedIds();
+        for ( ID id : getRemovedIds() ) {
+            if ( changed.contains( id ) ) patch.removeObject( id );
+        }
+        for ( ID id : getAddedIds() ) {
+            if ( changed.contains( id ) ) patch.changeObject( id );
+        }
+        for ( Map.Entry< ID, Map< ID, Pair< P, P > > > e : getPropertyChanges().entrySet() ) {
+            ID id = e.getKey();
+            T t1 = get1( id );
+            T t2 = get2( id );
+            if ( t2 == null ) {
+                if ( t1 != null ) patch.removeObject( id );
+                continue;
+            }
+            if ( t1 == null ) patch.changeObject( id );
+            for ( Map.Entry< ID, Pair< P, P > > pe : e.getValue().entrySet() ) {
+                if ( pe.getValue().second == null ) {
+                    patch.removeProperty( id, pe.getKey() );
+                } else {
+                    patch.setProperty( id, pe.getKey(), pe.getValue().second );
+                }
+            }
+        }
+        return patch;
+    }
+
+    /**
+     * Change the objects in a map of the first set of objects so that they
+     * match the second set.
+     *
+     * @param map
+     *            a map from id to object to be patched in place
+     * @param target
+     *            creates objects and sets and removes their properties,
+     *            typically this diff
+     */
+    public void applyTo( Map< ID, T > map, DiffPatch.Target< T, P, ID > target ) {
+        toPatch().applyTo( map, target );
     }
 
     @Override
@@ -253,9 +1819,98 @@ public abstract class AbstractDiff<T,P,ID> implements Diff<T,P,ID> {
         return !areSame();
     }
 
+    /**
+     * Two sets are the same if no object to be diffed (see
+     * {@link #filterValues(List)}) is added or removed and no object in both
+     * sets has a property change, which is when {@link #diff()} would leave
+     * the added, removed, and updated sets empty. If the diff has been
+     * computed, those sets are checked. Otherwise, this stops at the first
+     * difference found by {@link #isDifferent(Object)} without building any
+     * results, in parallel if {@link #isParallel()}.
+     */
     @Override
     public boolean areSame() {
-        return getPropertyChanges().isEmpty();
+        if ( propertyChanges != null ) {
+            return added.isEmpty() && removed.isEmpty() && updated.isEmpty();
+        }
+        if ( isUsingFingerprints() && sameSnapshotFingerprints() ) return true;
+
+        // Added objects only need a key lookup, so check them first.
+        for ( ID id : getMap2().keySet() ) {
+            if ( !getMap1().containsKey( id ) && isDifferent( id ) ) return false;
+        }
+        @SuppressWarnings( "unchecked" )
+        ID[] ids = (ID[])getMap1().keySet().toArray();
+        if ( isParallel() && ids.length > getParallelThreshold() ) {
+            AtomicBoolean different = new AtomicBoolean( false );
+            getForkJoinPool().invoke( new AreSameTask( ids, 0, ids.length,
+                                                       different ) );
+            return !different.get();
+        }
+        for ( ID id : ids ) {
+            if ( isDifferent( id ) ) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Determine whether {@link #diff()} would put an object in the added,
+     * removed, or updated set without storing any results. The tests are the
+     * same as those of {@link #computeDiff()} and
+     * {@link #putObjectDiff(Object, ObjectDiff)}.
+     *
+     * @param id
+     *            the id of the object
+     * @return whether the object is different in the two sets
+     */
+    protected boolean isDifferent( ID id ) {
+        boolean c1 = getMap1().containsKey( id );
+        boolean c2 = getMap2().containsKey( id );
+        T t1 = get1( id );
+        T t2 = get2( id );
+        if ( c1 && c2 && ( t1 == t2 || ( t1 != null && t1.equals( t2 ) ) ) ) {
+            return false;
+        }
+        if ( !filterValues( idDiffOf( id ) ).contains( id ) ) return false;
+        if ( !c1 ) return t2 != null;
+        if ( !c2 ) return t1 != null;
+        if ( isUsingFingerprints() && sameFingerprint( id ) ) return false;
+        return diffObject( id ).isUpdated();
+    }
+
+    /**
+     * Looks for a difference in a range of ids, splitting the range like
+     * {@link DiffTask}. Tasks stop as soon as any task finds a difference.
+     */
+    protected class AreSameTask extends RecursiveAction {
+        private static final long serialVersionUID = 6153482014593001787L;
+
+        protected final ID[] ids;
+        protected final int start;
+        protected final int end;
+        protected final AtomicBoolean different;
+
+        public AreSameTask( ID[] ids, int start, int end,
+                            AtomicBoolean different ) {
+            this.ids = ids;
+            this.start = start;
+            this.end = end;
+            this.different = different;
+        }
+
+        @Override
+        protected void compute() {
+            if ( different.get() ) return;
+            if ( end - start <= Math.max( 1, getParallelThreshold() ) ) {
+                for ( int i = start; i < end && !different.get(); ++i ) {
+                    if ( isDifferent( ids[ i ] ) ) different.set( true );
+                }
+                return;
+            }
+            int middle = ( start + end ) >>> 1;
+            invokeAll( new AreSameTask( ids, start, middle, different ),
+                       new AreSameTask( ids, middle, end, different ) );
+        }
     }
 
     @Override
@@ -400,40 +2055,72 @@ public abstract class AbstractDiff<T,P,ID> implements Diff<T,P,ID> {
 
     public Map< ID, P > getRemovedProperties(ID id) {
         if ( id == null ) return null;
-        Map< ID, P > props = getRemovedProperties().get( id );
+        if ( useLazyObjectDiff() ) {
+            return Collections.unmodifiableMap( getObjectDiff( id ).getRemovedProperties() );
+        }
+        Map< ID, Map< ID, P > > all = getRemovedProperties();
+        if ( compactResultStore != null ) {
+            // a live view that does not add an empty entry for the id
+            return compactResultStore.getRemovedProperties( id );
+        }
+        Map< ID, P > props = all.get( id );
         if ( props == null ) {
             props = Utils.newMap();
-            getRemovedProperties().put( id , props );
+            all.put( id , props );
         }
         return props;
     }
 
     public Map< ID, P > getAddedProperties(ID id) {
         if ( id == null ) return null;
-        Map< ID, P > props = getAddedProperties().get( id );
+        if ( useLazyObjectDiff() ) {
+            return Collections.unmodifiableMap( getObjectDiff( id ).getAddedProperties() );
+        }
+        Map< ID, Map< ID, P > > all = getAddedProperties();
+        if ( compactResultStore != null ) {
+            // a live view that does not add an empty entry for the id
+            return compactResultStore.getAddedProperties( id );
+        }
+        Map< ID, P > props = all.get( id );
         if ( props == null ) {
             props = Utils.newMap();
-            getAddedProperties().put( id , props );
+            all.put( id , props );
         }
         return props;
     }
 
     public Map< ID, Pair< P, P >> getUpdatedProperties(ID id) {
         if ( id == null ) return null;
-        Map< ID, Pair< P, P >> props = getUpdatedProperties().get( id );
+        if ( useLazyObjectDiff() ) {
+            return Collections.unmodifiableMap( getObjectDiff( id ).getUpdatedProperties() );
+        }
+        Map< ID, Map< ID, Pair< P, P > > > all = getUpdatedProperties();
+        if ( compactResultStore != null ) {
+            // a live view that does not add an empty entry for the id
+            return compactResultStore.getUpdatedProperties( id );
+        }
+        Map< ID, Pair< P, P >> props = all.get( id );
         if ( props == null ) {
             props = Utils.newMap();
-            getUpdatedProperties().put( id , props );
+            all.put( id , props );
         }
         return props;
     }
 
     public Map< ID, Pair< P, P > > getPropertyChanges(ID id) {
         if ( id == null ) return null;
-        Map< ID, Pair< P, P > > props = getPropertyChanges().get( id );
+        if ( useLazyObjectDiff() ) {
+            return Collections.<ID, Pair< P, P >>unmodifiableMap( getObjectDiff( id ).getChanges() );
+        }
+        Map< ID, Map< ID, Pair< P, P > > > all = getPropertyChanges();
+        if ( compactResultStore != null ) {
+            // a live view that does not add an empty entry for the id
+            return compactResultStore.getPropertyChanges( id );
+        }
+        Map< ID, Pair< P, P > > props = all.get( id );
         if ( props == null ) {
             props = Utils.newMap();
-            getPropertyChanges().put( id , props );
+            all.put( id , props );
         }
         return props;
     }
@@ -444,6 +2131,8 @@ public abstract class AbstractDiff<T,P,ID> implements Diff<T,P,ID> {
     @Override
     public void addPropertyIdsToIgnore( Collection< ID > ids ) {
         propertyIdsToIgnore.addAll( ids );
+        compiledPropertyIdsToIgnore = null;
+        clearFingerprints();
     }
     /* (non-Javadoc)
      * @see gov.nasa.jpl.mbee.util.Diff#getPropertyIdsToIgnore()
@@ -464,6 +2153,143 @@ public abstract class AbstractDiff<T,P,ID> implements Diff<T,P,ID> {
     public void setObjectComparator( Comparator< T > objectComparator ) {
         this.objectComparator = objectComparator;
     }
+    /**
+     * @return whether the diff is computed in parallel
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+    /**
+     * @param parallel whether to compute the diff in parallel
+     */
+    public void setParallel( boolean parallel ) {
+        this.parallel = parallel;
+    }
+    /**
+     * @return whether the per-object getters compute only that object's diff
+     */
+    public boolean isLazy() {
+        return lazy;
+    }
+    /**
+     * @param lazy whether the per-object getters should compute only that
+     *            object's diff until the full diff is computed
+     */
+    public void setLazy( boolean lazy ) {
+        this.lazy = lazy;
+    }
+    /**
+     * @return the fraction of properties that must be the same for a removed
+     *         and an added object to be considered a move
+     */
+    public double getMoveSimilarityThreshold() {
+        return moveSimilarityThreshold;
+    }
+    /**
+     * @param moveSimilarityThreshold the moveSimilarityThreshold to set
+     */
+    public void setMoveSimilarityThreshold( double moveSimilarityThreshold ) {
+        this.moveSimilarityThreshold = moveSimilarityThreshold;
+        moved = null;
+    }
+    /**
+     * @return the extractor of the parts of object-valued properties
+     */
+    public NestedDiff.Extractor getNestedExtractor() {
+        return nestedExtractor;
+    }
+    /**
+     * @param nestedExtractor the extractor of the parts of object-valued
+     *            properties or null for the default
+     */
+    public void setNestedExtractor( NestedDiff.Extractor nestedExtractor ) {
+        this.nestedExtractor = nestedExtractor;
+        nestedDiff = null;
+    }
+    /**
+     * @return the timings and counts of the last diff() or null if they are
+     *         not collected
+     */
+    public DiffStats getStats() {
+        return stats;
+    }
+    /**
+     * @param stats collects the timings and counts of each diff(), or null
+     *            to not collect them
+     */
+    public void setStats( DiffStats stats ) {
+        this.stats = stats;
+    }
+    /**
+     * @return whether {@link #diff()} interns property values first
+     */
+    public boolean isInterning() {
+        return interner != null;
+    }
+    /**
+     * @param interner
+     *            sets the shared values if {@link #diff()} should intern
+     *            property values first, typically this diff, or null not to
+     */
+    public void setInterning( DiffPatch.Target< T, P, ID > interner ) {
+        this.interner = interner;
+    }
+    /**
+     * @return whether the property results are stored compactly
+     */
+    public boolean isCompactResults() {
+        return compactResults;
+    }
+    /**
+     * @param compactResults whether to store the property results compactly
+     *            the next time the diff is computed
+     */
+    public void setCompactResults( boolean compactResults ) {
+        this.compactResults = compactResults;
+    }
+    /**
+     * @return whether fingerprints are used to skip unchanged objects
+     */
+    public boolean isUsingFingerprints() {
+        return useFingerprints;
+    }
+    /**
+     * @param useFingerprints whether to use fingerprints to skip unchanged objects
+     */
+    public void setUseFingerprints( boolean useFingerprints ) {
+        this.useFingerprints = useFingerprints;
+    }
+    /**
+     * @return the parallelThreshold
+     */
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+    /**
+     * @param parallelThreshold the parallelThreshold to set
+     */
+    public void setParallelThreshold( int parallelThreshold ) {
+        this.parallelThreshold = parallelThreshold;
+    }
+    /**
+     * @return the pool used for a parallel diff; if none was set, a pool
+     *         shared by all diffs is used
+     */
+    public ForkJoinPool getForkJoinPool() {
+        if ( forkJoinPool != null ) return forkJoinPool;
+        synchronized ( AbstractDiff.class ) {
+            if ( defaultForkJoinPool == null ) {
+                defaultForkJoinPool = new ForkJoinPool();
+            }
+            return defaultForkJoinPool;
+        }
+    }
+    /**
+     * @param forkJoinPool the pool to use for a parallel diff
+     */
+    public void setForkJoinPool( ForkJoinPool forkJoinPool ) {
+        this.forkJoinPool = forkJoinPool;
+    }
 
     /**
      * Override this method to screen out and return only the ids in the diff
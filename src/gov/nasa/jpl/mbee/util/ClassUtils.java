@@ -1699,16 +1699,18 @@ public class ClassUtils {
     /**
      * @param cls
      * @return all private, protected, public, static, and non-static methods
-     *         declared in this class or any superclass.
+     *         declared in this class or any superclass, sorted by
+     *         {@link CompareUtils.GenericComparator}
      */
     public Set< Method > getAllMethods( Class< ? > cls ) {
-        Set< Method > methods =
+        Set< Method > methods = new StrategyHashSet< Method >();
+        for ( Class< ? > c = cls; c != null; c = c.getSuperclass() ) {
+            methods.addAll( Arrays.asList( c.getDeclaredMethods() ) );
+        }
+        Set< Method > sorted =
                 new TreeSet< Method >( CompareUtils.GenericComparator.instance() );
-        if ( cls == null ) return methods;
-        methods.addAll( Arrays.asList( cls.getDeclaredMethods() ) );
-        Class< ? > superCls = cls.getSuperclass();
-        methods.addAll( getAllMethods( superCls ) );
-        return methods;
+        sorted.addAll( methods );
+        return sorted;
     }
 
     public static Object bestArgumentForType( Collection<?> arguments,
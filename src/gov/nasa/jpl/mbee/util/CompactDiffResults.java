@@ -0,0 +1,589 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * CompactDiffResults stores the property changes of a diff as one
+ * {@link PropertyChange} per changed property, mapped by object id and then
+ * property id. Objects without changes have no entry. The maps of the
+ * {@link Diff} interface are provided as live views: the changes of each kind
+ * share the same records, and writes through a view are stored as records of
+ * that view's kind.
+ * <p>
+ * The views of all changes are sized in constant time; the views of one kind
+ * of change are sized by counting.
+ * <p>
+ * Removing the last change of an object through a view leaves an empty entry
+ * for the object instead of removing it, so that removing through the view of
+ * an object or through a view's iterator does not disturb an iteration over
+ * the objects that is in progress. Empty entries are invisible through the
+ * views and are dropped when objects are added or removed directly.
+ *
+ * @param <P>
+ *            property type
+ * @param <ID>
+ *            identifier type
+ */
+public class CompactDiffResults< P, ID > {
+
+    protected Map< ID, Map< ID, PropertyChange< P > > > changes =
+            new LinkedHashMap< ID, Map< ID, PropertyChange< P > > >();
+
+    /**
+     * The number of objects in changes whose changes were all removed through
+     * a view.
+     */
+    protected int emptyObjects = 0;
+
+    protected Map< ID, Map< ID, Pair< P, P > > > propertyChangesView = null;
+    protected Map< ID, Map< ID, P > > addedView = null;
+    protected Map< ID, Map< ID, P > > removedView = null;
+    protected Map< ID, Map< ID, Pair< P, P > > > updatedView = null;
+
+    public CompactDiffResults() {
+    }
+
+    /**
+     * @return the changes to the object's properties or null if there are none
+     */
+    public Map< ID, PropertyChange< P > > get( ID id ) {
+        Map< ID, PropertyChange< P > > inner = changes.get( id );
+        return inner == null || inner.isEmpty() ? null : inner;
+    }
+
+    public PropertyChange< P > get( ID id, ID pid ) {
+        Map< ID, PropertyChange< P > > inner = changes.get( id );
+        return inner == null ? null : inner.get( pid );
+    }
+
+    public PropertyChange< P > put( ID id, ID pid, PropertyChange< P > change ) {
+        Map< ID, PropertyChange< P > > inner = changes.get( id );
+        if ( inner == null ) {
+            removeEmptyObjects();
+            inner = new LinkedHashMap< ID, PropertyChange< P > >();
+            changes.put( id, inner );
+        } else if ( inner.isEmpty() ) {
+            --emptyObjects;
+        }
+        return inner.put( pid, change );
+    }
+
+    /**
+     * Use the given map as the changes of an object without copying it.
+     *
+     * @param id
+     *            the id of the object
+     * @param objectChanges
+     *            a map from property id to change, which becomes owned by this
+     *            store
+     */
+    public void putAll( ID id, Map< ID, PropertyChange< P > > objectChanges ) {
+        if ( Utils.isNullOrEmpty( objectChanges ) ) {
+            remove( id );
+        } else {
+            if ( !changes.containsKey( id ) ) removeEmptyObjects();
+            forgetEmpty( changes.put( id, objectChanges ) );
+        }
+    }
+
+    public PropertyChange< P > remove( ID id, ID pid ) {
+        Map< ID, PropertyChange< P > > inner = changes.get( id );
+        if ( inner == null ) return null;
+        boolean wasEmpty = inner.isEmpty();
+        PropertyChange< P > change = inner.remove( pid );
+        if ( inner.isEmpty() ) {
+            changes.remove( id );
+            if ( wasEmpty ) --emptyObjects;
+        }
+        return change;
+    }
+
+    public void remove( ID id ) {
+        forgetEmpty( changes.remove( id ) );
+    }
+
+    public void clear() {
+        changes.clear();
+        emptyObjects = 0;
+    }
+
+    /**
+     * Account for an object's changes that are no longer in changes.
+     */
+    protected void forgetEmpty( Map< ID, PropertyChange< P > > inner ) {
+        if ( inner != null && inner.isEmpty() ) --emptyObjects;
+    }
+
+    /**
+     * Drop the empty entries left by removals through views once they are at
+     * least half of the entries. This changes the structure of changes, so it
+     * is only called where the structure changes anyway.
+     */
+    protected void removeEmptyObjects() {
+        if ( emptyObjects == 0 || emptyObjects * 2 < changes.size() ) return;
+        Iterator< Map< ID, PropertyChange< P > > > i = changes.values().iterator();
+        while ( i.hasNext() ) {
+            if ( i.next().isEmpty() ) i.remove();
+        }
+        emptyObjects = 0;
+    }
+
+    /**
+     * Note that the last change of an object was removed through a view,
+     * leaving its entry in changes.
+     */
+    protected void emptied( Map< ID, PropertyChange< P > > inner ) {
+        if ( inner.isEmpty() ) ++emptyObjects;
+    }
+
+    /**
+     * @return a view of all property changes as (old value, new value) pairs
+     */
+    public Map< ID, Map< ID, Pair< P, P > > > getPropertyChanges() {
+        if ( propertyChangesView == null ) {
+            propertyChangesView = new OuterView< Pair< P, P > >( new Projection< Pair< P, P > >( null ) {
+                @Override
+                public Pair< P, P > value( PropertyChange< P > change ) {
+                    return change;
+                }
+
+                @Override
+                public PropertyChange< P > toChange( Pair< P, P > v ) {
+                    if ( v instanceof PropertyChange ) return (PropertyChange< P >)v;
+                    return PropertyChange.newChange( v.first, v.second );
+                }
+            } );
+        }
+        return propertyChangesView;
+    }
+
+    /**
+     * @return a view of the new values of added properties
+     */
+    public Map< ID, Map< ID, P > > getAddedProperties() {
+        if ( addedView == null ) {
+            addedView = new OuterView< P >( new Projection< P >( PropertyChange.Kind.ADDED ) {
+                @Override
+                public P value( PropertyChange< P > change ) {
+                    return change.second;
+                }
+
+                @Override
+                public PropertyChange< P > toChange( P v ) {
+                    return new PropertyChange< P >( kind, null, v );
+                }
+            } );
+        }
+        return addedView;
+    }
+
+    /**
+     * @return a view of the old values of removed properties
+     */
+    public Map< ID, Map< ID, P > > getRemovedProperties() {
+        if ( removedView == null ) {
+            removedView = new OuterView< P >( new Projection< P >( PropertyChange.Kind.REMOVED ) {
+                @Override
+                public P value( PropertyChange< P > change ) {
+                    return change.first;
+                }
+
+                @Override
+                public PropertyChange< P > toChange( P v ) {
+                    return new PropertyChange< P >( kind, v, null );
+                }
+            } );
+        }
+        return removedView;
+    }
+
+    /**
+     * @return a view of updated properties as (old value, new value) pairs
+     */
+    public Map< ID, Map< ID, Pair< P, P > > > getUpdatedProperties() {
+        if ( updatedView == null ) {
+            updatedView = new OuterView< Pair< P, P > >( new Projection< Pair< P, P > >( PropertyChange.Kind.UPDATED ) {
+                @Override
+                public Pair< P, P > value( PropertyChange< P > change ) {
+                    return change;
+                }
+
+                @Override
+                public PropertyChange< P > toChange( Pair< P, P > v ) {
+                    if ( v instanceof PropertyChange
+                         && ( (PropertyChange< P >)v ).kind == kind ) {
+                        return (PropertyChange< P >)v;
+                    }
+                    return new PropertyChange< P >( kind, v.first, v.second );
+                }
+            } );
+        }
+        return updatedView;
+    }
+
+    /**
+     * @return a live view of the changes of one object, which is empty if the
+     *         object has no changes; writing to it does not add an entry for
+     *         the object until a change is put
+     */
+    public Map< ID, Pair< P, P > > getPropertyChanges( ID id ) {
+        return ( (OuterView< Pair< P, P > >)getPropertyChanges() ).inner( id );
+    }
+
+    public Map< ID, P > getAddedProperties( ID id ) {
+        return ( (OuterView< P >)getAddedProperties() ).inner( id );
+    }
+
+    public Map< ID, P > getRemovedProperties( ID id ) {
+        return ( (OuterView< P >)getRemovedProperties() ).inner( id );
+    }
+
+    public Map< ID, Pair< P, P > > getUpdatedProperties( ID id ) {
+        return ( (OuterView< Pair< P, P > >)getUpdatedProperties() ).inner( id );
+    }
+
+    /**
+     * Selects the changes of a kind (or all changes if the kind is null) and
+     * converts between changes and the values of a view.
+     */
+    protected abstract class Projection< V > {
+        protected PropertyChange.Kind kind;
+
+        public Projection( PropertyChange.Kind kind ) {
+            this.kind = kind;
+        }
+
+        public boolean matches( PropertyChange< P > change ) {
+            return change != null && ( kind == null || change.kind == kind );
+        }
+
+        public abstract V value( PropertyChange< P > change );
+
+        public abstract PropertyChange< P > toChange( V v );
+
+        public boolean matchesAny( Map< ID, PropertyChange< P > > inner ) {
+            if ( inner == null ) return false;
+            if ( kind == null ) return !inner.isEmpty();
+            for ( PropertyChange< P > change : inner.values() ) {
+                if ( matches( change ) ) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Remove the matching changes from an object's changes.
+         *
+         * @return whether the object has no changes left
+         */
+        public boolean removeMatching( Map< ID, PropertyChange< P > > inner ) {
+            if ( kind == null ) {
+                inner.clear();
+                return true;
+            }
+            Iterator< PropertyChange< P > > i = inner.values().iterator();
+            while ( i.hasNext() ) {
+                if ( matches( i.next() ) ) i.remove();
+            }
+            return inner.isEmpty();
+        }
+    }
+
+    /**
+     * A view of the store as a map from object id to a map of property
+     * values.
+     */
+    protected class OuterView< V > extends AbstractMap< ID, Map< ID, V > > {
+        protected Projection< V > projection;
+
+        public OuterView( Projection< V > projection ) {
+            this.projection = projection;
+        }
+
+        public InnerView< V > inner( ID id ) {
+            return new InnerView< V >( id, projection );
+        }
+
+        @Override
+        public Map< ID, V > get( Object key ) {
+            @SuppressWarnings( "unchecked" )
+            ID id = (ID)key;
+            if ( !projection.matchesAny( changes.get( id ) ) ) return null;
+            return inner( id );
+        }
+
+        @Override
+        public boolean containsKey( Object key ) {
+            return projection.matchesAny( changes.get( key ) );
+        }
+
+        @Override
+        public Map< ID, V > put( ID id, Map< ID, V > values ) {
+            Map< ID, V > old = remove( id );
+            InnerView< V > inner = inner( id );
+            for ( Map.Entry< ID, V > e : values.entrySet() ) {
+                inner.put( e.getKey(), e.getValue() );
+            }
+            return old;
+        }
+
+        /**
+         * Remove the matching changes of an object.
+         *
+         * @return null since the removed changes are not kept
+         */
+        @Override
+        public Map< ID, V > remove( Object key ) {
+            Map< ID, PropertyChange< P > > inner = changes.get( key );
+            if ( inner == null ) return null;
+            boolean wasEmpty = inner.isEmpty();
+            if ( projection.removeMatching( inner ) ) {
+                changes.remove( key );
+                if ( wasEmpty ) --emptyObjects;
+            }
+            return null;
+        }
+
+        @Override
+        public int size() {
+            if ( projection.kind == null ) return changes.size() - emptyObjects;
+            int size = 0;
+            for ( Map< ID, PropertyChange< P > > inner : changes.values() ) {
+                if ( projection.matchesAny( inner ) ) ++size;
+            }
+            return size;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            if ( projection.kind == null ) return changes.size() == emptyObjects;
+            return size() == 0;
+        }
+
+        @Override
+        public void clear() {
+            Iterator< Map< ID, PropertyChange< P > > > i = changes.values().iterator();
+            while ( i.hasNext() ) {
+                Map< ID, PropertyChange< P > > inner = i.next();
+                boolean wasEmpty = inner.isEmpty();
+                if ( projection.removeMatching( inner ) ) {
+                    i.remove();
+                    if ( wasEmpty ) --emptyObjects;
+                }
+            }
+        }
+
+        @Override
+        public Set< Map.Entry< ID, Map< ID, V > > > entrySet() {
+            return new AbstractSet< Map.Entry< ID, Map< ID, V > > >() {
+                @Override
+                public Iterator< Map.Entry< ID, Map< ID, V > > > iterator() {
+                    final Iterator< Map.Entry< ID, Map< ID, PropertyChange< P > > > > i =
+                            changes.entrySet().iterator();
+                    return new Iterator< Map.Entry< ID, Map< ID, V > > >() {
+                        Map.Entry< ID, Map< ID, PropertyChange< P > > > next = null;
+                        // the entry last returned by next()
+                        Map.Entry< ID, Map< ID, PropertyChange< P > > > last = null;
+                        // the entry last returned by i, which hasNext() may
+                        // have moved past last
+                        Map.Entry< ID, Map< ID, PropertyChange< P > > > current = null;
+
+                        @Override
+                        public boolean hasNext() {
+                            while ( next == null && i.hasNext() ) {
+                                current = i.next();
+                                if ( projection.matchesAny( current.getValue() ) ) {
+                                    next = current;
+                                }
+                            }
+                            return next != null;
+                        }
+
+                        @Override
+                        public Map.Entry< ID, Map< ID, V > > next() {
+                            if ( !hasNext() ) throw new NoSuchElementException();
+                            last = next;
+                            next = null;
+                            return new AbstractMap.SimpleImmutableEntry< ID, Map< ID, V > >( last.getKey(),
+                                                                                             inner( last.getKey() ) );
+                        }
+
+                        @Override
+                        public void remove() {
+                            if ( last == null ) throw new IllegalStateException();
+                            Map< ID, PropertyChange< P > > inner = last.getValue();
+                            if ( projection.removeMatching( inner ) ) {
+                                if ( current == last ) i.remove();
+                                else emptied( inner );
+                            }
+                            last = null;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return OuterView.this.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * A view of the changes of one object as a map from property id to value.
+     */
+    protected class InnerView< V > extends AbstractMap< ID, V > {
+        protected ID id;
+        protected Projection< V > projection;
+
+        public InnerView( ID id, Projection< V > projection ) {
+            this.id = id;
+            this.projection = projection;
+        }
+
+        protected Map< ID, PropertyChange< P > > changes() {
+            return changes.get( id );
+        }
+
+        @Override
+        public V get( Object key ) {
+            Map< ID, PropertyChange< P > > inner = changes();
+            if ( inner == null ) return null;
+            PropertyChange< P > change = inner.get( key );
+            return projection.matches( change ) ? projection.value( change ) : null;
+        }
+
+        @Override
+        public boolean containsKey( Object key ) {
+            Map< ID, PropertyChange< P > > inner = changes();
+            return inner != null && projection.matches( inner.get( key ) );
+        }
+
+        @Override
+        public V put( ID pid, V value ) {
+            PropertyChange< P > old =
+                    CompactDiffResults.this.put( id, pid, projection.toChange( value ) );
+            return projection.matches( old ) ? projection.value( old ) : null;
+        }
+
+        @Override
+        public V remove( Object key ) {
+            Map< ID, PropertyChange< P > > inner = changes();
+            if ( inner == null ) return null;
+            PropertyChange< P > change = inner.get( key );
+            if ( !projection.matches( change ) ) return null;
+            inner.remove( key );
+            emptied( inner );
+            return projection.value( change );
+        }
+
+        @Override
+        public int size() {
+            Map< ID, PropertyChange< P > > inner = changes();
+            if ( inner == null ) return 0;
+            if ( projection.kind == null ) return inner.size();
+            int size = 0;
+            for ( PropertyChange< P > change : inner.values() ) {
+                if ( projection.matches( change ) ) ++size;
+            }
+            return size;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return !projection.matchesAny( changes() );
+        }
+
+        @Override
+        public void clear() {
+            Map< ID, PropertyChange< P > > inner = changes();
+            if ( inner != null && !inner.isEmpty()
+                 && projection.removeMatching( inner ) ) {
+                emptied( inner );
+            }
+        }
+
+        @Override
+        public Set< Map.Entry< ID, V > > entrySet() {
+            return new AbstractSet< Map.Entry< ID, V > >() {
+                @Override
+                public Iterator< Map.Entry< ID, V > > iterator() {
+                    final Map< ID, PropertyChange< P > > inner = changes();
+                    return new Iterator< Map.Entry< ID, V > >() {
+                        Iterator< Map.Entry< ID, PropertyChange< P > > > i =
+                                inner == null ? Utils.<ID, PropertyChange< P >>getEmptyMap().entrySet().iterator()
+                                              : inner.entrySet().iterator();
+                        Map.Entry< ID, PropertyChange< P > > next = null;
+                        // the entry last returned by next()
+                        Map.Entry< ID, PropertyChange< P > > last = null;
+                        // the entry last returned by i, which hasNext() may
+                        // have moved past last
+                        Map.Entry< ID, PropertyChange< P > > current = null;
+
+                        @Override
+                        public boolean hasNext() {
+                            while ( next == null && i.hasNext() ) {
+                                current = i.next();
+                                if ( projection.matches( current.getValue() ) ) {
+                                    next = current;
+                                }
+                            }
+                            return next != null;
+                        }
+
+                        @Override
+                        public Map.Entry< ID, V > next() {
+                            if ( !hasNext() ) throw new NoSuchElementException();
+                            last = next;
+                            next = null;
+                            return new AbstractMap.SimpleImmutableEntry< ID, V >( last.getKey(),
+                                                                                  projection.value( last.getValue() ) );
+                        }
+
+                        @Override
+                        public void remove() {
+                            if ( last == null ) throw new IllegalStateException();
+                            if ( current == last ) {
+                                i.remove();
+                            } else {
+                                // hasNext() moved i past last, so remove it by
+                                // key and move a new iterator back to where i
+                                // was
+                                inner.remove( last.getKey() );
+                                if ( next == null ) {
+                                    i = Utils.<ID, PropertyChange< P >>getEmptyMap().entrySet().iterator();
+                                } else {
+                                    i = inner.entrySet().iterator();
+                                    ID nextKey = next.getKey();
+                                    do {
+                                        current = i.next();
+                                    } while ( nextKey == null ? current.getKey() != null
+                                                              : !nextKey.equals( current.getKey() ) );
+                                    next = current;
+                                }
+                            }
+                            last = null;
+                            emptied( inner );
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return InnerView.this.size();
+                }
+            };
+        }
+    }
+
+    @Override
+    public String toString() {
+        return changes.toString();
+    }
+
+}
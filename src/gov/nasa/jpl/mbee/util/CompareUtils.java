@@ -28,10 +28,15 @@
  ******************************************************************************/
 package gov.nasa.jpl.mbee.util;
 
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -54,6 +59,44 @@ public class CompareUtils {
 
   }
   
+  /**
+   * Defines equality and hash codes for objects in place of their equals()
+   * and hashCode() methods.
+   */
+  public static interface HashingStrategy< T > {
+    public int computeHashCode( T o );
+    public boolean equals( T o1, T o2 );
+  }
+
+  /**
+   * The equality of {@link GenericComparator}, where objects are equal if
+   * they compare as 0, with a consistent hash code (see
+   * {@link CompareUtils#hashCode(Object, boolean, boolean)}), so that hash
+   * sets and maps may be used instead of TreeSets and TreeMaps with a
+   * GenericComparator.
+   */
+  public static class GenericHashingStrategy< T > implements HashingStrategy< T > {
+
+    protected static GenericHashingStrategy<?> instance =
+        new GenericHashingStrategy< Object >();
+
+    @Override
+    public int computeHashCode( T o ) {
+      return CompareUtils.hashCode( o, true, true );
+    }
+
+    @Override
+    public boolean equals( T o1, T o2 ) {
+      return CompareUtils.compare( o1, o2, true, true ) == 0;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    public static <TT> GenericHashingStrategy< TT > instance() {
+      return (GenericHashingStrategy< TT >)instance;
+    }
+
+  }
+
   public static class MappedValueComparator< K, V > implements Comparator< K > {
 
     protected Map<K, V> map = null;
@@ -83,49 +126,371 @@ public class CompareUtils {
       
   }
   
+  /**
+   * The parts of the dispatch in
+   * {@link CompareUtils#compare(Object, Object, boolean, boolean)} that depend
+   * only on the classes of the two objects, resolved once per pair of
+   * classes.
+   */
+  protected static class Strategy {
+    protected static final int OTHER = 0;
+    protected static final int COLLECTION = 1;
+    protected static final int ARRAY = 2;
+    protected static final int MAP = 3;
+    protected static final int ENTRY = 4;
+
+    protected final boolean hasIds;
+    protected final boolean comparable;
+    protected final boolean numbers;
+    protected final int numberKind1;
+    protected final int numberKind2;
+    protected final int classNameCompare;
+    protected final int kind;
+
+    protected Strategy( Class< ? > c1, Class< ? > c2 ) {
+      hasIds = HasId.class.isAssignableFrom( c1 )
+               && HasId.class.isAssignableFrom( c2 );
+      comparable = Comparable.class.isAssignableFrom( c1 )
+                   && comparableAccepts( c1, c2 );
+      numbers = Number.class.isAssignableFrom( c1 )
+                && Number.class.isAssignableFrom( c2 );
+      numberKind1 = numberKind( c1 );
+      numberKind2 = numberKind( c2 );
+      classNameCompare = c1.getName().compareTo( c2.getName() );
+      if ( Collection.class.isAssignableFrom( c1 )
+           && Collection.class.isAssignableFrom( c2 ) ) {
+        kind = COLLECTION;
+      } else if ( Object[].class.isAssignableFrom( c1 )
+                  && Object[].class.isAssignableFrom( c2 ) ) {
+        kind = ARRAY;
+      } else if ( Map.class.isAssignableFrom( c1 )
+                  && Map.class.isAssignableFrom( c2 ) ) {
+        kind = MAP;
+      } else if ( Map.Entry.class.isAssignableFrom( c1 )
+                  && Map.Entry.class.isAssignableFrom( c2 ) ) {
+        kind = ENTRY;
+      } else {
+        kind = OTHER;
+      }
+    }
+  }
+
+  /**
+   * Whether compareTo() of the first class may accept an object of the
+   * second. This is false only if the first class implements Comparable with
+   * a type argument that the second class is not assignable to, in which
+   * case compareTo() would always throw a ClassCastException. Failures that
+   * depend on the values are not known here, so they are caught on each
+   * call.
+   */
+  protected static boolean comparableAccepts( Class< ? > c1, Class< ? > c2 ) {
+    for ( Class< ? > c = c1; c != null; c = c.getSuperclass() ) {
+      for ( Type t : c.getGenericInterfaces() ) {
+        Class< ? > arg = comparableTypeArgument( t );
+        if ( arg != null ) return arg.isAssignableFrom( c2 );
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the class of the type argument of Comparable in an interface
+   *         type or its superinterfaces, or null if there is none or it is
+   *         not a class, for example, a type variable
+   */
+  protected static Class< ? > comparableTypeArgument( Type t ) {
+    Class< ? > raw = null;
+    if ( t instanceof ParameterizedType ) {
+      ParameterizedType pt = (ParameterizedType)t;
+      if ( pt.getRawType() == Comparable.class ) {
+        Type arg = pt.getActualTypeArguments()[ 0 ];
+        if ( arg instanceof Class ) return (Class< ? >)arg;
+        if ( arg instanceof ParameterizedType
+             && ( (ParameterizedType)arg ).getRawType() instanceof Class ) {
+          return (Class< ? >)( (ParameterizedType)arg ).getRawType();
+        }
+        return null;
+      }
+      if ( pt.getRawType() instanceof Class ) raw = (Class< ? >)pt.getRawType();
+    } else if ( t instanceof Class ) {
+      raw = (Class< ? >)t;
+    }
+    if ( raw == null ) return null;
+    for ( Type s : raw.getGenericInterfaces() ) {
+      Class< ? > arg = comparableTypeArgument( s );
+      if ( arg != null ) return arg;
+    }
+    return null;
+  }
+
+  /**
+   * The cached strategies by the class of the first object and then by the
+   * class of the second.
+   */
+  protected static final ClassValue< ConcurrentHashMap< Class< ? >, Strategy > > strategies =
+      new ClassValue< ConcurrentHashMap< Class< ? >, Strategy > >() {
+        @Override
+        protected ConcurrentHashMap< Class< ? >, Strategy > computeValue( Class< ? > c ) {
+          return new ConcurrentHashMap< Class< ? >, Strategy >();
+        }
+      };
+
+  protected static Strategy getStrategy( Class< ? > c1, Class< ? > c2 ) {
+    ConcurrentHashMap< Class< ? >, Strategy > map = strategies.get( c1 );
+    Strategy strategy = map.get( c2 );
+    if ( strategy == null ) {
+      strategy = new Strategy( c1, c2 );
+      Strategy old = map.putIfAbsent( c2, strategy );
+      if ( old != null ) strategy = old;
+    }
+    return strategy;
+  }
+
   public static <T1, T2> int compare( T1 o1, T2 o2, boolean checkComparable ) {
     return compare( o1, o2, checkComparable, false );
   }
   @SuppressWarnings( "unchecked" )
   public static <T1, T2> int compare( T1 o1, T2 o2, boolean checkComparable,
                                       boolean useId ) {
+    return compare( o1, o2, checkComparable, useId, null, null );
+  }
+
+  /**
+   * Compare as {@link #compare(Object, Object, boolean, boolean)} but, if
+   * the comparison falls through to the strings of the objects, use the
+   * strings cached in the given sort keys instead of calling toString().
+   */
+  @SuppressWarnings( "unchecked" )
+  protected static int compare( Object o1, Object o2, boolean checkComparable,
+                                boolean useId, SortKey key1, SortKey key2 ) {
     if ( o1 == o2 ) return 0;
     if ( o1 == null ) return -1;
     if ( o2 == null ) return 1;
-    if ( useId && o1 instanceof HasId && o2 instanceof HasId ) {
+    Strategy strategy = getStrategy( o1.getClass(), o2.getClass() );
+    if ( useId && strategy.hasIds ) {
       return CompareUtils.compare( ( (HasId)o1 ).getId(), ( (HasId)o2 ).getId() );
     }
     if ( checkComparable ) {
-      if ( o1 instanceof Comparable ) {
+      if ( strategy.comparable ) {
           try {
-              return ((Comparable<T2>)o1).compareTo( o2 );
+              return ((Comparable<Object>)o1).compareTo( o2 );
           } catch ( ClassCastException e ) {
+              // fall through to the other comparisons
           }
       }
     }
-    if ( o1 instanceof Number && o2 instanceof Number ) {
-        return ((Double)((Number)o1).doubleValue()).compareTo( ((Number)o2).doubleValue() );
+    if ( strategy.numbers ) {
+        return compareNumbers( (Number)o1, strategy.numberKind1,
+                               (Number)o2, strategy.numberKind2 );
     }
-    int compare = o1.getClass().getName().compareTo( o2.getClass().getName() );
+    int compare = strategy.classNameCompare;
     if ( compare != 0 ) return compare;
 
-    if (o1 instanceof Collection && o2 instanceof Collection ) {
-      return CompareUtils.compareCollections( (Collection)o1, (Collection)o2,
-                                 checkComparable, useId );
-    }
-    if (o1 instanceof Object[] && o2 instanceof Object[] ) {
-      return CompareUtils.compareCollections( (Object[])o1, (Object[])o2,
-                                 checkComparable, useId );
+    switch ( strategy.kind ) {
+      case Strategy.COLLECTION:
+        return CompareUtils.compareCollections( (Collection)o1, (Collection)o2,
+                                   checkComparable, useId );
+      case Strategy.ARRAY:
+        return CompareUtils.compareCollections( (Object[])o1, (Object[])o2,
+                                   checkComparable, useId );
+      case Strategy.MAP:
+        return CompareUtils.compareCollections( (Map)o1, (Map)o2,
+                                   checkComparable, useId );
+      case Strategy.ENTRY:
+        return CompareUtils.compareEntries( (Map.Entry)o1, (Map.Entry)o2,
+                                            checkComparable, useId );
+      default:
     }
-    if (o1 instanceof Map && o2 instanceof Map ) {
-      return CompareUtils.compareCollections( (Map)o1, (Map)o2,
-                                 checkComparable, useId );
+    if ( key1 != null && key2 != null ) {
+      return CompareUtils.compareStringsNoHash( key1.getString(), key2.getString() );
     }
     compare = CompareUtils.compareToStringNoHash( o1, o2 );
     if ( compare != 0 ) return compare;
     return compare;
   }
 
+  protected static final int INTEGRAL = 1;
+  protected static final int FLOATING = 2;
+  protected static final int BIG = 3;
+  protected static final int OTHER_NUMBER = 0;
+
+  protected static int numberKind( Class< ? > c ) {
+    if ( c == Integer.class || c == Long.class || c == Short.class
+         || c == Byte.class || c == java.util.concurrent.atomic.AtomicInteger.class
+         || c == java.util.concurrent.atomic.AtomicLong.class ) {
+      return INTEGRAL;
+    }
+    if ( c == Double.class || c == Float.class ) return FLOATING;
+    if ( c == BigInteger.class || c == BigDecimal.class ) return BIG;
+    return OTHER_NUMBER;
+  }
+
+  /**
+   * Compare two numbers by their exact values. Integral values are compared
+   * as longs, floating point values as doubles with the ordering of
+   * {@link Double#compare(double, double)}, and a long with a double without
+   * rounding the long. BigIntegers and BigDecimals are compared as
+   * BigDecimals. Other Number classes are compared as doubles by their
+   * doubleValue(), so that numbers that compare equal are equal by value and
+   * equality is transitive. -0.0 is less than any zero that is not a double.
+   */
+  public static int compareNumbers( Number n1, Number n2 ) {
+    return compareNumbers( n1, numberKind( n1.getClass() ),
+                           n2, numberKind( n2.getClass() ) );
+  }
+
+  protected static int compareNumbers( Number n1, int kind1, Number n2, int kind2 ) {
+    if ( kind1 == OTHER_NUMBER ) kind1 = FLOATING;
+    if ( kind2 == OTHER_NUMBER ) kind2 = FLOATING;
+    if ( kind1 == INTEGRAL ) {
+      if ( kind2 == INTEGRAL ) return compare( n1.longValue(), n2.longValue() );
+      if ( kind2 == FLOATING ) return compare( n1.longValue(), n2.doubleValue() );
+    } else if ( kind1 == FLOATING ) {
+      if ( kind2 == FLOATING ) return compare( n1.doubleValue(), n2.doubleValue() );
+      if ( kind2 == INTEGRAL ) return -compare( n2.longValue(), n1.doubleValue() );
+    }
+    // at least one is a BigInteger or BigDecimal
+    if ( kind1 == FLOATING && !isFinite( n1.doubleValue() ) ) {
+      return compare( n1.doubleValue(), 0.0 );
+    }
+    if ( kind2 == FLOATING && !isFinite( n2.doubleValue() ) ) {
+      return compare( 0.0, n2.doubleValue() );
+    }
+    int compare = toBigDecimal( n1, kind1 ).compareTo( toBigDecimal( n2, kind2 ) );
+    if ( compare == 0 ) {
+      // as compare( 0L, -0.0 ) does
+      if ( kind1 == FLOATING && isNegativeZero( n1.doubleValue() ) ) return -1;
+      if ( kind2 == FLOATING && isNegativeZero( n2.doubleValue() ) ) return 1;
+    }
+    return compare;
+  }
+
+  protected static boolean isNegativeZero( double d ) {
+    return d == 0.0 && Double.doubleToRawLongBits( d ) != 0;
+  }
+
+  protected static boolean isFinite( double d ) {
+    return !Double.isNaN( d ) && !Double.isInfinite( d );
+  }
+
+  protected static BigDecimal toBigDecimal( Number n, int kind ) {
+    if ( n instanceof BigDecimal ) return (BigDecimal)n;
+    if ( n instanceof BigInteger ) return new BigDecimal( (BigInteger)n );
+    if ( kind == INTEGRAL ) return BigDecimal.valueOf( n.longValue() );
+    return new BigDecimal( n.doubleValue() );
+  }
+
+  /**
+   * Whether a class inherits hashCode() from Object, in which case its hash
+   * codes cannot be consistent with a compareTo() that is not identity.
+   */
+  protected static final ClassValue< Boolean > hasObjectHashCode =
+      new ClassValue< Boolean >() {
+        @Override
+        protected Boolean computeValue( Class< ? > c ) {
+          try {
+            return c.getMethod( "hashCode" ).getDeclaringClass() == Object.class;
+          } catch ( NoSuchMethodException e ) {
+            return true;
+          }
+        }
+      };
+
+  /**
+   * Compute a hash code that is the same for objects that
+   * {@link #compare(Object, Object, boolean, boolean)} finds equal with the
+   * same arguments. Objects with ids hash by their ids, Numbers by their
+   * numeric values, Comparables by hashCode() (so their compareTo() must be
+   * consistent with equals()), collections, arrays, and maps by their
+   * elements, map entries by their keys and values, and other objects by
+   * their class names and the part of their
+   * toString() before any '@'. This assumes that objects with ids are only
+   * compared with other objects with ids.
+   */
+  public static int hashCode( Object o, boolean checkComparable, boolean useId ) {
+    if ( o == null ) return 0;
+    if ( useId && o instanceof HasId ) {
+      return hashCode( ( (HasId< ? >)o ).getId(), false, false );
+    }
+    if ( o instanceof Number ) {
+      return hashNumber( (Number)o );
+    }
+    if ( checkComparable && o instanceof Pair ) {
+      Pair< ?, ? > p = (Pair< ?, ? >)o;
+      return 31 * hashCode( p.first, true, true ) + hashCode( p.second, true, true );
+    }
+    Class< ? > c = o.getClass();
+    if ( checkComparable && o instanceof Comparable ) {
+      if ( hasObjectHashCode.get( c ) ) return c.getName().hashCode();
+      return o.hashCode();
+    }
+    int h = c.getName().hashCode();
+    if ( o instanceof Collection ) {
+      for ( Object e : (Collection< ? >)o ) {
+        h = 31 * h + hashCode( e, checkComparable, useId );
+      }
+      return h;
+    }
+    if ( o instanceof Object[] ) {
+      for ( Object e : (Object[])o ) {
+        h = 31 * h + hashCode( e, checkComparable, useId );
+      }
+      return h;
+    }
+    if ( o instanceof Map ) {
+      for ( Object e : ( (Map< ?, ? >)o ).entrySet() ) {
+        h = 31 * h + hashCode( e, checkComparable, useId );
+      }
+      return h;
+    }
+    if ( o instanceof Map.Entry ) {
+      Map.Entry< ?, ? > e = (Map.Entry< ?, ? >)o;
+      h = 31 * h + hashCode( e.getKey(), checkComparable, useId );
+      return 31 * h + hashCode( e.getValue(), checkComparable, useId );
+    }
+    // compareStringsNoHash() treats strings as equal after a common '@'
+    String str = o.toString();
+    int end = str == null ? -1 : str.indexOf( '@' );
+    if ( str != null ) {
+      h = 31 * h + ( end < 0 ? str : str.substring( 0, end ) ).hashCode();
+    }
+    return h;
+  }
+
+  /**
+   * @return a hash code that is the same for numbers that
+   *         {@link #compareNumbers(Number, Number)} finds equal
+   */
+  public static int hashNumber( Number n ) {
+    int kind = numberKind( n.getClass() );
+    if ( kind == INTEGRAL ) return hashLong( n.longValue() );
+    if ( kind == BIG ) {
+      BigDecimal d = toBigDecimal( n, kind );
+      try {
+        return hashLong( d.longValueExact() );
+      } catch ( ArithmeticException e ) {
+        // not an integer in the range of long
+      }
+      return hashDouble( d.doubleValue() );
+    }
+    return hashDouble( n.doubleValue() );
+  }
+
+  protected static int hashDouble( double d ) {
+    long l = (long)d;
+    // a double equal to a long must hash as that long; -0.0 is not 0
+    if ( l == d && ( l != 0 || Double.doubleToRawLongBits( d ) == 0 )
+         && d >= -9.223372036854775808E18 && d < 9.223372036854775808E18 ) {
+      return hashLong( l );
+    }
+    long bits = Double.doubleToLongBits( d );
+    return (int)( bits ^ ( bits >>> 32 ) );
+  }
+
+  protected static int hashLong( long l ) {
+    return (int)( l ^ ( l >>> 32 ) );
+  }
+
   public static int compare( Object o1, Object o2 ) {
     return compare( o1, o2, false, false );  // default false to avoid infinite recursion
   }
@@ -181,12 +546,33 @@ public class CompareUtils {
     return compareCollections( m1.entrySet(), m2.entrySet(), checkComparable, useId );
   }
 
+  /**
+   * Compare map entries by their keys and then their values.
+   */
+  public static < K, V > int compareEntries( Map.Entry< K, V > e1,
+                                             Map.Entry< K, V > e2,
+                                             boolean checkComparable,
+                                             boolean useId ) {
+    if ( e1 == e2 ) return 0;
+    if ( e1 == null ) return -1;
+    if ( e2 == null ) return 1;
+    int compare = compare( e1.getKey(), e2.getKey(), checkComparable, useId );
+    if ( compare != 0 ) return compare;
+    return compare( e1.getValue(), e2.getValue(), checkComparable, useId );
+  }
+
   public static int compareToStringNoHash( Object o1, Object o2 ) {
     assert o1 != null;
     assert o2 != null;
+    return compareStringsNoHash( o1.toString(), o2.toString() );
+  }
+
+  /**
+   * Compare the strings of two objects as
+   * {@link #compareToStringNoHash(Object, Object)} does.
+   */
+  public static int compareStringsNoHash( String s1, String s2 ) {
     int pos = 0;
-    String s1 = o1.toString();
-    String s2 = o2.toString();
     if ( s1 == s2 ) return 0;
     if ( s1 == null ) return -1;
     if ( s2 == null ) return 1;
@@ -217,6 +603,38 @@ public class CompareUtils {
     if ( i1 > i2 ) return 1;
     return 0;
   }
+  public static int compare( long l1, long l2 ) {
+    if ( l1 < l2 ) return -1;
+    if ( l1 > l2 ) return 1;
+    return 0;
+  }
+  /**
+   * Compare with the ordering of {@link Double#compare(double, double)}, in
+   * which -0.0 is less than 0.0 and NaN is greater than everything else.
+   */
+  public static int compare( double d1, double d2 ) {
+    if ( d1 < d2 ) return -1;
+    if ( d1 > d2 ) return 1;
+    return Double.compare( d1, d2 );
+  }
+  /**
+   * Compare a long with a double exactly, without rounding the long to a
+   * double, and consistently with {@link #compare(double, double)}.
+   */
+  public static int compare( long l, double d ) {
+    if ( Double.isNaN( d ) ) return -1;
+    // -2^63 is exactly representable; 2^63 is the first double above Long.MAX_VALUE
+    if ( d < -9.223372036854775808E18 ) return 1;
+    if ( d >= 9.223372036854775808E18 ) return -1;
+    long dl = (long)d;  // the integer part of d
+    if ( l < dl ) return -1;
+    if ( l > dl ) return 1;
+    if ( d > dl ) return -1;
+    if ( d < dl ) return 1;
+    // as with Double.compare(), 0 is greater than -0.0
+    if ( l == 0 && Double.doubleToRawLongBits( d ) != 0 ) return 1;
+    return 0;
+  }
   public static int compare( String s1, String s2 ) {
     if ( s1 == s2 ) return 0;
     if ( s1 == null ) return -1;
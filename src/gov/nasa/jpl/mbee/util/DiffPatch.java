@@ -0,0 +1,428 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * DiffPatch is the part of a {@link Diff} needed to turn the first set of
+ * objects into the second: the ids of removed objects and, for each changed
+ * object, the ids of removed properties and the new values of added and
+ * updated properties. Old values are not kept.
+ * <p>
+ * A patch can be written to and read from a compact binary stream. Ids are
+ * written once into a dictionary and afterwards referenced by index. The
+ * property indices of each object are sorted and written as deltas, and
+ * integers are written as variable-length quantities. Values and ids are
+ * written by a {@link Codec}.
+ *
+ * @param <P>
+ *            property type
+ * @param <ID>
+ *            identifier type
+ */
+public class DiffPatch< P, ID > {
+
+    protected static final int MAGIC = 0x4d424450; // "MBDP"
+    protected static final int VERSION = 1;
+
+    /**
+     * Writes and reads the ids and property values of a patch.
+     */
+    public static interface Codec< P, ID > {
+        public void writeId( DataOutput out, ID id ) throws IOException;
+
+        public ID readId( DataInput in ) throws IOException;
+
+        public void writeValue( DataOutput out, P value ) throws IOException;
+
+        public P readValue( DataInput in ) throws IOException;
+    }
+
+    /**
+     * Receives the changes of a patch as they are read.
+     */
+    public static interface Handler< P, ID > {
+        public void removeObject( ID id );
+
+        public void changeObject( ID id, Collection< ID > removedPropertyIds,
+                                  Map< ID, P > setProperties );
+    }
+
+    /**
+     * Creates objects and sets and removes their properties so that a patch
+     * can be applied. A diff that implements this can be passed to
+     * {@link DiffPatch#applyTo(Map, Target)}, {@link ThreeWayMerge}, and
+     * {@link AbstractDiff#setInterning(Target)}.
+     */
+    public static interface Target< T, P, ID > {
+        /**
+         * Create an empty object to be filled in by a patch.
+         *
+         * @param id
+         *            the id of the new object
+         * @return the new object
+         */
+        public T newObject( ID id );
+
+        /**
+         * Add or replace a property of an object that is being patched.
+         */
+        public void setProperty( T t, ID propertyId, P property );
+
+        /**
+         * Remove a property from an object that is being patched.
+         */
+        public void removeProperty( T t, ID propertyId );
+    }
+
+    public Set< ID > removedObjects = new LinkedHashSet< ID >();
+    public Map< ID, Set< ID > > removedProperties =
+            new LinkedHashMap< ID, Set< ID > >();
+    public Map< ID, Map< ID, P > > setProperties =
+            new LinkedHashMap< ID, Map< ID, P > >();
+
+    public DiffPatch() {
+    }
+
+    /**
+     * @return the ids of the objects that are changed but not removed
+     */
+    public Set< ID > getChangedObjects() {
+        Set< ID > ids = new LinkedHashSet< ID >( setProperties.keySet() );
+        ids.addAll( removedProperties.keySet() );
+        return ids;
+    }
+
+    public void removeObject( ID id ) {
+        removedObjects.add( id );
+    }
+
+    /**
+     * Make sure the object is created by the patch even if none of its
+     * properties change.
+     */
+    public void changeObject( ID id ) {
+        if ( !setProperties.containsKey( id ) ) {
+            setProperties.put( id, new LinkedHashMap< ID, P >() );
+        }
+    }
+
+    public void removeProperty( ID id, ID pid ) {
+        Set< ID > pids = removedProperties.get( id );
+        if ( pids == null ) {
+            pids = new LinkedHashSet< ID >();
+            removedProperties.put( id, pids );
+        }
+        pids.add( pid );
+    }
+
+    public void setProperty( ID id, ID pid, P value ) {
+        changeObject( id );
+        setProperties.get( id ).put( pid, value );
+    }
+
+    /**
+     * Apply the patch to a map of objects in place.
+     *
+     * @param map
+     *            the objects to patch
+     * @param target
+     *            creates objects and sets and removes their properties
+     */
+    public < T > void applyTo( Map< ID, T > map, Target< T, P, ID > target ) {
+        Handler< P, ID > handler = newApplyHandler( map, target );
+        for ( ID id : removedObjects ) {
+            handler.removeObject( id );
+        }
+        for ( ID id : getChangedObjects() ) {
+            Set< ID > removedPids = removedProperties.get( id );
+            Map< ID, P > setProps = setProperties.get( id );
+            handler.changeObject( id,
+                                  removedPids == null ? Utils.<ID>getEmptySet()
+                                                      : removedPids,
+                                  setProps == null ? Utils.<ID, P>getEmptyMap()
+                                                   : setProps );
+        }
+    }
+
+    /**
+     * @return a handler that applies the changes it receives to a map of
+     *         objects
+     */
+    public static < T, P, ID > Handler< P, ID >
+            newApplyHandler( final Map< ID, T > map,
+                             final Target< T, P, ID > target ) {
+        return new Handler< P, ID >() {
+            @Override
+            public void removeObject( ID id ) {
+                map.remove( id );
+            }
+
+            @Override
+            public void changeObject( ID id, Collection< ID > removedPropertyIds,
+                                      Map< ID, P > setProperties ) {
+                T t = map.get( id );
+                if ( t == null ) {
+                    t = target.newObject( id );
+                    map.put( id, t );
+                }
+                for ( ID pid : removedPropertyIds ) {
+                    target.removeProperty( t, pid );
+                }
+                for ( Map.Entry< ID, P > e : setProperties.entrySet() ) {
+                    target.setProperty( t, e.getKey(), e.getValue() );
+                }
+            }
+        };
+    }
+
+    /**
+     * Write the patch in the binary format.
+     *
+     * @param out
+     * @param codec
+     * @throws IOException
+     */
+    public void write( OutputStream out, Codec< P, ID > codec ) throws IOException {
+        DataOutputStream dout = new DataOutputStream( out );
+        Map< ID, Integer > dictionary = new HashMap< ID, Integer >();
+        dout.writeInt( MAGIC );
+        writeVarInt( dout, VERSION );
+
+        writeDictionaryEntries( dout, codec, dictionary, removedObjects );
+        writeVarInt( dout, removedObjects.size() );
+        writeIndices( dout, indicesOf( removedObjects, dictionary ) );
+
+        Set< ID > changed = getChangedObjects();
+        writeVarInt( dout, changed.size() );
+        int lastObject = 0;
+        for ( ID id : changed ) {
+            Set< ID > removedPids = removedProperties.get( id );
+            Map< ID, P > setProps = setProperties.get( id );
+            List< ID > newIds = new ArrayList< ID >();
+            newIds.add( id );
+            if ( removedPids != null ) newIds.addAll( removedPids );
+            if ( setProps != null ) newIds.addAll( setProps.keySet() );
+            writeDictionaryEntries( dout, codec, dictionary, newIds );
+
+            int objectIndex = dictionary.get( id );
+            writeVarLong( dout, zigZag( objectIndex - lastObject ) );
+            lastObject = objectIndex;
+
+            int[] removedIndices = indicesOf( removedPids, dictionary );
+            Arrays.sort( removedIndices );
+            writeVarInt( dout, removedIndices.length );
+            writeIndices( dout, removedIndices );
+
+            int[] setIndices = indicesOf( setProps == null ? null
+                                                           : setProps.keySet(),
+                                          dictionary );
+            Arrays.sort( setIndices );
+            writeVarInt( dout, setIndices.length );
+            writeIndices( dout, setIndices );
+            if ( setIndices.length > 0 ) {
+                Map< Integer, ID > byIndex = new HashMap< Integer, ID >();
+                for ( ID pid : setProps.keySet() ) {
+                    byIndex.put( dictionary.get( pid ), pid );
+                }
+                for ( int i : setIndices ) {
+                    codec.writeValue( dout, setProps.get( byIndex.get( i ) ) );
+                }
+            }
+        }
+        dout.flush();
+    }
+
+    /**
+     * Read a patch in the binary format into memory.
+     */
+    public static < P, ID > DiffPatch< P, ID > read( InputStream in,
+                                                     Codec< P, ID > codec ) throws IOException {
+        final DiffPatch< P, ID > patch = new DiffPatch< P, ID >();
+        read( in, codec, new Handler< P, ID >() {
+            @Override
+            public void removeObject( ID id ) {
+                patch.removeObject( id );
+            }
+
+            @Override
+            public void changeObject( ID id, Collection< ID > removedPropertyIds,
+                                      Map< ID, P > setProperties ) {
+                for ( ID pid : removedPropertyIds ) {
+                    patch.removeProperty( id, pid );
+                }
+                patch.changeObject( id );
+                patch.setProperties.get( id ).putAll( setProperties );
+            }
+        } );
+        return patch;
+    }
+
+    /**
+     * Read a patch in the binary format and apply it to a map of objects as it
+     * is read, without keeping the patch in memory.
+     */
+    public static < T, P, ID > void apply( InputStream in, Codec< P, ID > codec,
+                                           Map< ID, T > map,
+                                           Target< T, P, ID > target ) throws IOException {
+        read( in, codec, newApplyHandler( map, target ) );
+    }
+
+    /**
+     * Read a patch in the binary format and pass each change to a handler as
+     * it is read.
+     */
+    public static < P, ID > void read( InputStream in, Codec< P, ID > codec,
+                                       Handler< P, ID > handler ) throws IOException {
+        DataInputStream din = new DataInputStream( in );
+        if ( din.readInt() != MAGIC ) {
+            throw new IOException( "DiffPatch: bad magic number" );
+        }
+        int version = readVarInt( din );
+        if ( version != VERSION ) {
+            throw new IOException( "DiffPatch: unsupported version " + version );
+        }
+        List< ID > dictionary = new ArrayList< ID >();
+
+        readDictionaryEntries( din, codec, dictionary );
+        int numRemoved = readVarInt( din );
+        int last = 0;
+        for ( int i = 0; i < numRemoved; ++i ) {
+            last += readVarInt( din );
+            handler.removeObject( dictionary.get( last ) );
+        }
+
+        int numChanged = readVarInt( din );
+        int lastObject = 0;
+        for ( int i = 0; i < numChanged; ++i ) {
+            readDictionaryEntries( din, codec, dictionary );
+            lastObject += (int)unZigZag( readVarLong( din ) );
+            ID id = dictionary.get( lastObject );
+
+            int numRemovedProps = readVarInt( din );
+            List< ID > removedPids = new ArrayList< ID >( numRemovedProps );
+            last = 0;
+            for ( int j = 0; j < numRemovedProps; ++j ) {
+                last += readVarInt( din );
+                removedPids.add( dictionary.get( last ) );
+            }
+
+            int numSetProps = readVarInt( din );
+            List< ID > setPids = new ArrayList< ID >( numSetProps );
+            last = 0;
+            for ( int j = 0; j < numSetProps; ++j ) {
+                last += readVarInt( din );
+                setPids.add( dictionary.get( last ) );
+            }
+            Map< ID, P > setProps = new LinkedHashMap< ID, P >();
+            for ( ID pid : setPids ) {
+                setProps.put( pid, codec.readValue( din ) );
+            }
+            handler.changeObject( id, removedPids, setProps );
+        }
+    }
+
+    protected static < P, ID > void writeDictionaryEntries( DataOutput out,
+                                                            Codec< P, ID > codec,
+                                                            Map< ID, Integer > dictionary,
+                                                            Collection< ID > ids ) throws IOException {
+        List< ID > newIds = new ArrayList< ID >();
+        for ( ID id : ids ) {
+            if ( !dictionary.containsKey( id ) ) {
+                dictionary.put( id, dictionary.size() );
+                newIds.add( id );
+            }
+        }
+        writeVarInt( out, newIds.size() );
+        for ( ID id : newIds ) {
+            codec.writeId( out, id );
+        }
+    }
+
+    protected static < P, ID > void readDictionaryEntries( DataInput in,
+                                                           Codec< P, ID > codec,
+                                                           List< ID > dictionary ) throws IOException {
+        int n = readVarInt( in );
+        for ( int i = 0; i < n; ++i ) {
+            dictionary.add( codec.readId( in ) );
+        }
+    }
+
+    protected static < ID > int[] indicesOf( Collection< ID > ids,
+                                             Map< ID, Integer > dictionary ) {
+        if ( ids == null ) return new int[ 0 ];
+        int[] indices = new int[ ids.size() ];
+        int i = 0;
+        for ( ID id : ids ) {
+            indices[ i++ ] = dictionary.get( id );
+        }
+        return indices;
+    }
+
+    /**
+     * Write ascending indices as differences from the previous index.
+     */
+    protected static void writeIndices( DataOutput out, int[] indices ) throws IOException {
+        Arrays.sort( indices );
+        int last = 0;
+        for ( int i : indices ) {
+            writeVarInt( out, i - last );
+            last = i;
+        }
+    }
+
+    public static void writeVarInt( DataOutput out, int n ) throws IOException {
+        writeVarLong( out, n & 0xffffffffL );
+    }
+
+    public static void writeVarLong( DataOutput out, long n ) throws IOException {
+        while ( ( n & ~0x7fL ) != 0 ) {
+            out.writeByte( (int)( ( n & 0x7f ) | 0x80 ) );
+            n >>>= 7;
+        }
+        out.writeByte( (int)n );
+    }
+
+    public static int readVarInt( DataInput in ) throws IOException {
+        return (int)readVarLong( in );
+    }
+
+    public static long readVarLong( DataInput in ) throws IOException {
+        long n = 0;
+        for ( int shift = 0; shift < 64; shift += 7 ) {
+            int b = in.readUnsignedByte();
+            n |= (long)( b & 0x7f ) << shift;
+            if ( ( b & 0x80 ) == 0 ) return n;
+        }
+        throw new IOException( "DiffPatch: malformed variable-length integer" );
+    }
+
+    protected static long zigZag( long n ) {
+        return ( n << 1 ) ^ ( n >> 63 );
+    }
+
+    protected static long unZigZag( long n ) {
+        return ( n >>> 1 ) ^ -( n & 1 );
+    }
+
+    @Override
+    public String toString() {
+        return "DiffPatch(removed=" + removedObjects + ", removedProperties="
+               + removedProperties + ", setProperties=" + setProperties + ")";
+    }
+
+}
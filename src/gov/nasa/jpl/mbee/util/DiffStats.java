@@ -0,0 +1,243 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DiffStats collects the time spent in each phase of
+ * {@link AbstractDiff#diff()} along with counts of the objects and properties
+ * visited and the property comparisons made. Set it on a diff with
+ * {@link AbstractDiff#setStats(DiffStats)}; it is reset at the start of each
+ * diff(). The counters are safe to update from parallel diffs.
+ * <p>
+ * Work that the diff does outside of diff(), such as
+ * {@link AbstractDiff#areSame()} before a diff, the incremental updates of
+ * {@link AbstractDiff#put1(Object, Object)} and the like, and lazily
+ * computed results, is added to the counts and phase times of the last
+ * diff() until the next diff() resets them. The total time only covers
+ * diff(). Call {@link #reset()} to measure such work on its own.
+ * <p>
+ * Phase times are inclusive: {@link Phase#FINGERPRINTS} includes extracting
+ * the properties it hashes, which is also counted under
+ * {@link Phase#GET_PROPERTIES}. In a parallel diff, phase times are summed
+ * over the pool's threads and may exceed the total.
+ */
+public class DiffStats {
+
+    public static enum Phase {
+        /** {@link AbstractDiff#intern(DiffPatch.Target)} */
+        INTERN,
+        /** finding the added, removed, and possibly changed object ids */
+        ID_DIFF,
+        /** computing and comparing fingerprints */
+        FINGERPRINTS,
+        /** {@link AbstractDiff#getPropertyMap(Object, boolean)}, which calls the subclass's getProperties() */
+        GET_PROPERTIES,
+        /** {@link Utils#diff(java.util.Map, java.util.Map)} of property maps */
+        PROPERTY_DIFF,
+        /** {@link AbstractDiff#sameProperty(Object, Object)} */
+        SAME_PROPERTY,
+        /** creating the property changes and adding them to the results */
+        RESULT_ASSEMBLY
+    };
+
+    /**
+     * Receives progress reports during a diff. With a parallel diff, this may
+     * be called from any of the pool's threads, but not concurrently.
+     */
+    public static interface Listener {
+        public void progress( DiffStats stats, long objectsDone,
+                              long objectsTotal );
+    }
+
+    protected final AtomicLong[] phaseNanos =
+            new AtomicLong[ Phase.values().length ];
+    protected final AtomicLong propertiesVisited = new AtomicLong();
+    protected final AtomicLong comparisons = new AtomicLong();
+    protected final AtomicLong objectsDone = new AtomicLong();
+    protected long objectsTotal = 0;
+    protected long totalNanos = 0;
+    protected long startNanos = 0;
+    protected long startAllocatedBytes = -1;
+    protected long allocatedBytes = -1;
+
+    protected Listener listener = null;
+    protected long progressInterval = 10000;
+
+    public DiffStats() {
+        for ( int i = 0; i < phaseNanos.length; ++i ) {
+            phaseNanos[ i ] = new AtomicLong();
+        }
+    }
+
+    public DiffStats( Listener listener, long progressInterval ) {
+        this();
+        this.listener = listener;
+        this.progressInterval = progressInterval;
+    }
+
+    public void reset() {
+        for ( AtomicLong n : phaseNanos ) {
+            n.set( 0 );
+        }
+        propertiesVisited.set( 0 );
+        comparisons.set( 0 );
+        objectsDone.set( 0 );
+        objectsTotal = 0;
+        totalNanos = 0;
+        allocatedBytes = -1;
+    }
+
+    /**
+     * Reset and start timing a diff.
+     */
+    public void start() {
+        reset();
+        startNanos = System.nanoTime();
+        startAllocatedBytes = getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Stop timing a diff.
+     */
+    public void stop() {
+        totalNanos = System.nanoTime() - startNanos;
+        long bytes = getCurrentThreadAllocatedBytes();
+        allocatedBytes = bytes < 0 || startAllocatedBytes < 0
+                         ? -1 : bytes - startAllocatedBytes;
+    }
+
+    /**
+     * @return the start time to pass to {@link #end(Phase, long)}
+     */
+    public long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Add the time since {@code begin} to a phase.
+     */
+    public void end( Phase phase, long begin ) {
+        phaseNanos[ phase.ordinal() ].addAndGet( System.nanoTime() - begin );
+    }
+
+    public void countProperties( long n ) {
+        propertiesVisited.addAndGet( n );
+    }
+
+    public void countComparisons( long n ) {
+        comparisons.addAndGet( n );
+    }
+
+    /**
+     * Count an object as diffed and report progress to the listener every
+     * progressInterval objects.
+     */
+    public void objectDone() {
+        long done = objectsDone.incrementAndGet();
+        if ( listener != null && progressInterval > 0
+             && done % progressInterval == 0 ) {
+            synchronized ( this ) {
+                listener.progress( this, done, objectsTotal );
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes allocated by the current thread so far or
+     *         -1 if the JVM does not measure it
+     */
+    public static long getCurrentThreadAllocatedBytes() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if ( bean instanceof com.sun.management.ThreadMXBean ) {
+                com.sun.management.ThreadMXBean sunBean =
+                        (com.sun.management.ThreadMXBean)bean;
+                if ( sunBean.isThreadAllocatedMemorySupported()
+                     && sunBean.isThreadAllocatedMemoryEnabled() ) {
+                    return sunBean.getThreadAllocatedBytes( Thread.currentThread().getId() );
+                }
+            }
+        } catch ( Throwable t ) {
+            // not a HotSpot JVM
+        }
+        return -1;
+    }
+
+    public long getPhaseNanos( Phase phase ) {
+        return phaseNanos[ phase.ordinal() ].get();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return the number of objects diffed so far
+     */
+    public long getObjectsDone() {
+        return objectsDone.get();
+    }
+
+    public long getPropertiesVisited() {
+        return propertiesVisited.get();
+    }
+
+    public long getComparisons() {
+        return comparisons.get();
+    }
+
+    public long getObjectsTotal() {
+        return objectsTotal;
+    }
+
+    public void setObjectsTotal( long objectsTotal ) {
+        this.objectsTotal = objectsTotal;
+    }
+
+    /**
+     * @return an estimate of the bytes allocated by the thread that called
+     *         diff(), which leaves out the allocations of a parallel diff's
+     *         pool threads, or -1 if unknown
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public Listener getListener() {
+        return listener;
+    }
+
+    public void setListener( Listener listener ) {
+        this.listener = listener;
+    }
+
+    public long getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * @param progressInterval the number of objects between progress reports
+     */
+    public void setProgressInterval( long progressInterval ) {
+        this.progressInterval = progressInterval;
+    }
+
+    @Override
+    public String toString() {
+        StringBuffer sb = new StringBuffer( "DiffStats(total=" );
+        sb.append( totalNanos / 1000000.0 ).append( "ms" );
+        for ( Phase phase : Phase.values() ) {
+            sb.append( ", " ).append( phase ).append( "=" );
+            sb.append( getPhaseNanos( phase ) / 1000000.0 ).append( "ms" );
+        }
+        sb.append( ", objects=" ).append( getObjectsDone() );
+        sb.append( ", properties=" ).append( getPropertiesVisited() );
+        sb.append( ", comparisons=" ).append( getComparisons() );
+        sb.append( ", allocatedBytes=" ).append( allocatedBytes );
+        sb.append( ")" );
+        return sb.toString();
+    }
+
+}
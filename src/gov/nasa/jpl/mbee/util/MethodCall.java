@@ -310,11 +310,11 @@ public class MethodCall {
      *            that the objects are each substituted for
      *            methodCall.objectOfCall).
      * @param maximumSetSize the size of the resulting set will be limited to the maximum of this argument and the size of initialSet 
-     * @return a new Set that includes the initialSet and the results of applying the methodCall on each item (substituting the argument for the given index) in the new Set  
+     * @return a new Set that includes the initialSet and the results of applying the methodCall on each item (substituting the argument for the given index) in the new Set, sorted by {@link CompareUtils.GenericComparator}  
      */
     public < XX > Set< XX > closure( Set< XX > initialSet,
                                      int indexOfObjectArgument, int maximumSetSize ) {
-        Set< XX > closedSet = new TreeSet< XX >( CompareUtils.GenericComparator.instance() );
+        Set< XX > closedSet = new StrategyHashSet< XX >();
         closedSet.addAll( initialSet );
         ArrayList< XX > queue =
                 new ArrayList< XX >( initialSet );
@@ -341,7 +341,17 @@ public class MethodCall {
                 Utils.addN( closedSet, maximumSetSize - closedSet.size(), newItems );
             }
         }
-        return closedSet;
+        return sorted( closedSet );
+    }
+
+    /**
+     * @return a new Set with the elements of set sorted by
+     *         {@link CompareUtils.GenericComparator}
+     */
+    protected static < XX > Set< XX > sorted( Set< XX > set ) {
+        Set< XX > sorted = new TreeSet< XX >( CompareUtils.GenericComparator.instance() );
+        sorted.addAll( set );
+        return sorted;
     }
     
     /**
@@ -353,11 +363,12 @@ public class MethodCall {
      *            that the objects are each substituted for
      *            methodCall.objectOfCall).
      * @param maximumSetSize the size of the resulting set will be limited to the maximum of this argument and the size of initialSet 
-     * @return a new Set that includes the initialSet and the results of applying the methodCall on each item (substituting the argument for the given index) in the new Set  
+     * @return relationMapToClose, where the Sets added for new keys are sorted by {@link CompareUtils.GenericComparator}  
      */
     public < XX, C extends Map< XX, Set< XX > > > C mapClosure( C relationMapToClose, int indexOfObjectArgument, int maximumSetSize ) {
         ArrayList< XX > queue =
                 new ArrayList< XX >( relationMapToClose.keySet() );
+        List< XX > addedKeys = new ArrayList< XX >();
 //        Set< XX > seen = new HashSet< XX >();
         while ( !queue.isEmpty() ) {
             XX item = queue.get( 0 );
@@ -388,8 +399,9 @@ public class MethodCall {
                 Set< XX > related = relationMapToClose.get( isA );
                 int ct = 0;
                 if ( related == null ) {
-                    related = new TreeSet< XX >(CompareUtils.GenericComparator.instance());
+                    related = new StrategyHashSet< XX >();
                     relationMapToClose.put( isA, related );
+                    addedKeys.add( isA );
                 } else {
                     ct = related.size();
                 }
@@ -400,6 +412,9 @@ public class MethodCall {
                 if ( relationMapToClose.size() >= maximumSetSize ) break;
             }
         }
+        for ( XX key : addedKeys ) {
+            relationMapToClose.put( key, sorted( relationMapToClose.get( key ) ) );
+        }
         return relationMapToClose;
     }
     
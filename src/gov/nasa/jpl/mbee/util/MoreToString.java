@@ -32,15 +32,22 @@ import java.io.BufferedReader;
 import java.io.Console;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -92,6 +99,10 @@ public interface MoreToString {
    *          which case it will set deep=false to end the recursion.
    * @param otherOptions
    *          other class or context-specific options with names and values.
+   *          When the output is limited (see {@link FormatOptions}), the
+   *          Helper adds an entry under a key private to FormatOptions with
+   *          the running {@link Budget}; implementations should pass the map
+   *          on to nested objects as they would any other option.
    * @return the string representation of the object.
    */
   String toString( boolean withHash, boolean deep,
@@ -103,9 +114,627 @@ public interface MoreToString {
   String toShortString();
   
   
+  /**
+   * A MoreToString that can write itself to an Appendable without first
+   * building a String. Helper.appendTo() uses this for nested objects that
+   * implement it.
+   */
+  public interface AppendsTo extends MoreToString {
+    /**
+     * Write the same string that
+     * {@link MoreToString#toString(boolean, boolean, Set, Map)} returns to
+     * out.
+     */
+    void appendTo( Appendable out, boolean withHash, boolean deep,
+                   Set<Object> seen, Map<String, Object> otherOptions )
+                       throws IOException;
+  }
+  
+  /**
+   * FormatOptions is an immutable set of options for writing an object with
+   * {@link Helper}. It holds what the "prefix", "delimiter", "suffix", and
+   * "formatDeep" entries of an otherOptions map specify along with withHash
+   * and deep, so that nested calls pass it along instead of adding and
+   * removing entries in a shared map. The format applies to the outermost
+   * collection, map, or array unless formatDeep is set; nested ones get the
+   * default format for their type.
+   * <p>
+   * Instances with no other options are precomputed, so the constants below
+   * and {@link #withFormat(int)} do not allocate.
+   * <p>
+   * Options may also limit the depth of nesting, the number of elements
+   * written for any one collection, map, or array, and the length of the
+   * output, as with {@link #withLimits(int, int, int)} or the "maxDepth",
+   * "maxElements", and "maxLength" entries of an otherOptions map. Limited
+   * options are written through a {@link Budget}. The options passed on to a
+   * MoreToString object carry the running budget in an entry with a private
+   * key, so that the limits apply to the whole output and not anew to each
+   * object.
+   */
+  public static final class FormatOptions {
+
+    /**
+     * The otherOptions key of the running {@link Budget}, qualified so that
+     * it does not collide with the options of callers.
+     */
+    private static final String BUDGET_KEY = MoreToString.class.getName() + ".budget";
+
+    protected static final String[] optionNames =
+        new String[] { "prefix", "delimiter", "suffix" };
+
+    protected static final FormatOptions[][] cache = initCache();
+
+    public static final FormatOptions DEFAULT = get( NO_FORMAT, false, false, false );
+    public static final FormatOptions SQUARE_BRACES = get( MoreToString.SQUARE_BRACES, false, false, false );
+    public static final FormatOptions CURLY_BRACES = get( MoreToString.CURLY_BRACES, false, false, false );
+    public static final FormatOptions PARENTHESES = get( MoreToString.PARENTHESES, false, false, false );
+    public static final FormatOptions COMMA = get( MoreToString.COMMA, false, false, false );
+    public static final FormatOptions PERIOD = get( MoreToString.PERIOD, false, false, false );
+    public static final FormatOptions EQUALS = get( MoreToString.EQUALS, false, false, false );
+
+    /** the value of a limit that is not set */
+    public static final int UNLIMITED = -1;
+
+    /** a MoreToString format key, such as CURLY_BRACES, or NO_FORMAT */
+    protected final int formatKey;
+    /** strings that take precedence over those of the format key */
+    protected final String prefix;
+    protected final String delimiter;
+    protected final String suffix;
+    protected final boolean withHash;
+    protected final boolean deep;
+    protected final boolean formatDeep;
+    /** options passed on to MoreToString objects without the format entries */
+    protected final Map< String, Object > otherOptions;
+    protected final int maxDepth;
+    protected final int maxElements;
+    protected final int maxLength;
+    /** the budget of an enclosing write that these options continue, or null */
+    protected final Budget budget;
+
+    protected FormatOptions( int formatKey, String prefix, String delimiter,
+                             String suffix, boolean withHash, boolean deep,
+                             boolean formatDeep,
+                             Map< String, Object > otherOptions ) {
+      this( formatKey, prefix, delimiter, suffix, withHash, deep, formatDeep,
+            otherOptions, UNLIMITED, UNLIMITED, UNLIMITED, null );
+    }
+
+    protected FormatOptions( int formatKey, String prefix, String delimiter,
+                             String suffix, boolean withHash, boolean deep,
+                             boolean formatDeep,
+                             Map< String, Object > otherOptions, int maxDepth,
+                             int maxElements, int maxLength, Budget budget ) {
+      this.formatKey = formatKey;
+      this.prefix = prefix;
+      this.delimiter = delimiter;
+      this.suffix = suffix;
+      this.withHash = withHash;
+      this.deep = deep;
+      this.formatDeep = formatDeep;
+      this.otherOptions = otherOptions;
+      this.maxDepth = maxDepth;
+      this.maxElements = maxElements;
+      this.maxLength = maxLength;
+      this.budget = budget;
+    }
+
+    private static FormatOptions[][] initCache() {
+      FormatOptions[][] c = new FormatOptions[ prefixes.length + 1 ][ 8 ];
+      for ( int key = NO_FORMAT; key < prefixes.length; ++key ) {
+        for ( int flags = 0; flags < 8; ++flags ) {
+          c[ key + 1 ][ flags ] =
+              new FormatOptions( key, null, null, null, ( flags & 1 ) != 0,
+                                 ( flags & 2 ) != 0, ( flags & 4 ) != 0, null );
+        }
+      }
+      return c;
+    }
+
+    /**
+     * @return the precomputed options for the format key and flags with no
+     *         other options
+     */
+    public static FormatOptions get( int formatKey, boolean withHash,
+                                     boolean deep, boolean formatDeep ) {
+      if ( formatKey < NO_FORMAT || formatKey >= prefixes.length ) {
+        return new FormatOptions( formatKey, null, null, null, withHash, deep,
+                                  formatDeep, null );
+      }
+      int flags = ( withHash ? 1 : 0 ) | ( deep ? 2 : 0 ) | ( formatDeep ? 4 : 0 );
+      return cache[ formatKey + 1 ][ flags ];
+    }
+
+    /**
+     * @return the options for a format key, such as MoreToString.CURLY_BRACES
+     */
+    public static FormatOptions forKey( int formatKey ) {
+      return get( formatKey, false, false, false );
+    }
+
+    /**
+     * Read the format entries of an otherOptions map. As before, a "prefix",
+     * "delimiter", or "suffix" may be a String or a format key Integer, and
+     * Strings take precedence over the strings of a format key. Integer
+     * "maxDepth", "maxElements", and "maxLength" entries set limits, and the
+     * budget entry of {@link #toOptionsMap()} continues the {@link Budget}
+     * of an enclosing write.
+     *
+     * @return options with the format, flags, limits, and remaining other
+     *         options
+     */
+    public static FormatOptions valueOf( boolean withHash, boolean deep,
+                                         Map< String, Object > options ) {
+      if ( options == null ) return get( NO_FORMAT, withHash, deep, false );
+      int key = NO_FORMAT;
+      String[] strings = new String[ optionNames.length ];
+      boolean hasFormatEntries = false;
+      for ( int i = 0; i < optionNames.length; ++i ) {
+        if ( !options.containsKey( optionNames[ i ] ) ) continue;
+        hasFormatEntries = true;
+        Object value = options.get( optionNames[ i ] );
+        if ( value instanceof String ) {
+          strings[ i ] = (String)value;
+        } else if ( value instanceof Integer ) {
+          key = (Integer)value;
+        }
+      }
+      Object budget = options.get( BUDGET_KEY );
+      Map< String, Object > rest = options;
+      if ( hasFormatEntries || budget != null ) {
+        rest = new LinkedHashMap< String, Object >( options );
+        for ( String name : optionNames ) {
+          rest.remove( name );
+        }
+        rest.remove( BUDGET_KEY );
+      }
+      return new FormatOptions( key, strings[ 0 ], strings[ 1 ], strings[ 2 ],
+                                withHash, deep,
+                                options.containsKey( "formatDeep" ), rest,
+                                limit( options, "maxDepth" ),
+                                limit( options, "maxElements" ),
+                                limit( options, "maxLength" ),
+                                budget instanceof Budget ? (Budget)budget
+                                                         : null );
+    }
+
+    protected static int limit( Map< String, Object > options, String name ) {
+      Object value = options.get( name );
+      return value instanceof Integer ? (Integer)value : UNLIMITED;
+    }
+
+    /**
+     * @return options with the format key replacing any prefix, as when the
+     *         key was put in the "prefix" entry of an otherOptions map, or
+     *         these options if the key is NO_FORMAT
+     */
+    public FormatOptions withFormat( int formatKey ) {
+      if ( formatKey == NO_FORMAT || formatKey == this.formatKey && prefix == null ) {
+        return this;
+      }
+      if ( delimiter == null && suffix == null && otherOptions == null
+           && !hasLimits() ) {
+        return get( formatKey, withHash, deep, formatDeep );
+      }
+      return new FormatOptions( formatKey, null, delimiter, suffix, withHash,
+                                deep, formatDeep, otherOptions, maxDepth,
+                                maxElements, maxLength, budget );
+    }
+
+    /**
+     * @return options with the given strings in place of any format
+     */
+    public FormatOptions withFormat( String prefix, String delimiter,
+                                     String suffix ) {
+      return new FormatOptions( NO_FORMAT, prefix, delimiter, suffix, withHash,
+                                deep, formatDeep, otherOptions, maxDepth,
+                                maxElements, maxLength, budget );
+    }
+
+    /**
+     * @return these options if they have a format, else the options with the
+     *         default format key for the type of object being written
+     */
+    public FormatOptions orFormat( int defaultFormatKey ) {
+      return hasFormat() ? this : withFormat( defaultFormatKey );
+    }
+
+    /**
+     * @return these options without a format, for writing nested objects
+     */
+    public FormatOptions withoutFormat() {
+      if ( formatKey == NO_FORMAT && prefix == null && delimiter == null
+           && suffix == null ) {
+        return this;
+      }
+      if ( otherOptions == null && !hasLimits() ) {
+        return get( NO_FORMAT, withHash, deep, formatDeep );
+      }
+      return new FormatOptions( NO_FORMAT, null, null, null, withHash, deep,
+                                formatDeep, otherOptions, maxDepth,
+                                maxElements, maxLength, budget );
+    }
+
+    /**
+     * @param maxDepth
+     *          the most collections, maps, and arrays that may be nested, or
+     *          UNLIMITED; deeper ones are written as "..."
+     * @param maxElements
+     *          the most elements written for any one collection, map, or
+     *          array, or UNLIMITED; the rest are written as "..."
+     * @param maxLength
+     *          the most characters written, or UNLIMITED; the output is cut
+     *          off there and ends with "..."
+     * @return these options with the given limits
+     */
+    public FormatOptions withLimits( int maxDepth, int maxElements,
+                                     int maxLength ) {
+      return new FormatOptions( formatKey, prefix, delimiter, suffix, withHash,
+                                deep, formatDeep, otherOptions, maxDepth,
+                                maxElements, maxLength, budget );
+    }
+
+    /**
+     * @return these options continuing the given budget, as for the options
+     *         passed on to a MoreToString object
+     */
+    public FormatOptions withBudget( Budget budget ) {
+      if ( budget == this.budget ) return this;
+      return new FormatOptions( formatKey, prefix, delimiter, suffix, withHash,
+                                deep, formatDeep, otherOptions, maxDepth,
+                                maxElements, maxLength, budget );
+    }
+
+    /**
+     * @return whether any of the depth, element, or length limits is set or
+     *         the options continue a budget
+     */
+    public boolean hasLimits() {
+      return maxDepth >= 0 || maxElements >= 0 || maxLength >= 0
+             || budget != null;
+    }
+
+    /**
+     * @return whether a format is given, as
+     *         {@link Helper#hasFormatOptions(Map)} is for a map
+     */
+    public boolean hasFormat() {
+      return prefix != null || formatKey != NO_FORMAT;
+    }
+
+    protected String fromKey( String[] strings ) {
+      // SQUARE_BRACES keeps the default ", " delimiter, so only keys above it
+      // are looked up.
+      if ( formatKey > 0 && formatKey < strings.length ) {
+        return strings[ formatKey ];
+      }
+      return null;
+    }
+
+    /**
+     * @return the prefix or null for the default
+     */
+    public String getPrefix() {
+      return prefix != null ? prefix : fromKey( prefixes );
+    }
+
+    /**
+     * @return the delimiter or null for the default
+     */
+    public String getDelimiter() {
+      return delimiter != null ? delimiter : fromKey( delimiters );
+    }
+
+    /**
+     * @return the suffix or null for the default
+     */
+    public String getSuffix() {
+      return suffix != null ? suffix : fromKey( suffixes );
+    }
+
+    public int getFormatKey() {
+      return formatKey;
+    }
+
+    public boolean isWithHash() {
+      return withHash;
+    }
+
+    public boolean isDeep() {
+      return deep;
+    }
+
+    public boolean isFormatDeep() {
+      return formatDeep;
+    }
+
+    public int getMaxDepth() {
+      return maxDepth;
+    }
+
+    public int getMaxElements() {
+      return maxElements;
+    }
+
+    public int getMaxLength() {
+      return maxLength;
+    }
+
+    /**
+     * @return the budget of an enclosing write that these options continue,
+     *         or null
+     */
+    public Budget getBudget() {
+      return budget;
+    }
+
+    /**
+     * @return the other options without the format entries, or null
+     */
+    public Map< String, Object > getOtherOptions() {
+      return otherOptions;
+    }
+
+    /**
+     * @return an otherOptions map with the format, limit, and budget
+     *         entries for passing to
+     *         {@link MoreToString#toString(boolean, boolean, Set, Map)}, or
+     *         null if there were no other options or limits
+     */
+    public Map< String, Object > toOptionsMap() {
+      if ( otherOptions == null && !hasLimits() ) return null;
+      if ( formatKey == NO_FORMAT && prefix == null && delimiter == null
+           && suffix == null && !hasLimits() ) {
+        return otherOptions;
+      }
+      Map< String, Object > map = new LinkedHashMap< String, Object >();
+      if ( otherOptions != null ) {
+        map.putAll( otherOptions );
+        if ( formatKey != NO_FORMAT ) map.put( "prefix", formatKey );
+        if ( prefix != null ) map.put( "prefix", prefix );
+        if ( delimiter != null ) map.put( "delimiter", delimiter );
+        if ( suffix != null ) map.put( "suffix", suffix );
+      }
+      if ( maxDepth >= 0 ) map.put( "maxDepth", maxDepth );
+      if ( maxElements >= 0 ) map.put( "maxElements", maxElements );
+      if ( maxLength >= 0 ) map.put( "maxLength", maxLength );
+      if ( budget != null ) map.put( BUDGET_KEY, budget );
+      return map;
+    }
+
+    @Override
+    public String toString() {
+      return "FormatOptions(formatKey=" + formatKey + ", prefix=" + prefix
+             + ", delimiter=" + delimiter + ", suffix=" + suffix
+             + ", withHash=" + withHash + ", deep=" + deep + ", formatDeep="
+             + formatDeep + ", otherOptions=" + otherOptions + ", maxDepth="
+             + maxDepth + ", maxElements=" + maxElements + ", maxLength="
+             + maxLength + ")";
+    }
+  }
+
+  /**
+   * Budget is an Appendable that enforces the limits of a
+   * {@link FormatOptions} while {@link Helper} writes an object to another
+   * Appendable. It counts the characters written and the depth of nesting,
+   * and it tracks the collections, maps, arrays, and pairs being written by
+   * identity, so a cycle among them is written as "&lt;cycle&gt;" without
+   * calling their equals() or hashCode(). When the length limit is reached,
+   * it writes "..." and throws {@link Exhausted} to stop writing, which the
+   * Helper method that created the budget catches.
+   */
+  public static class Budget implements Appendable {
+
+    public static final String TRUNCATED = "...";
+    public static final String CYCLE = "<cycle>";
+
+    /**
+     * Thrown to stop writing once the length limit is reached.
+     */
+    public static class Exhausted extends IOException {
+      private static final long serialVersionUID = 1L;
+    }
+
+    protected final Appendable out;
+    /**
+     * the budget that this one continues, holding the length, depth, and
+     * containers being written for the whole output; this if none
+     */
+    protected final Budget root;
+    protected final int maxDepth;
+    protected final int maxElements;
+    protected final int maxLength;
+    protected int length = 0;
+    protected int depth = 0;
+    protected boolean truncated = false;
+    protected final Set< Object > writing;
+    protected final List< Object > entered;
+    /** which of the entered objects may enter themselves again */
+    protected final BitSet reentrant;
+
+    public Budget( Appendable out, FormatOptions options ) {
+      this.out = out;
+      this.root = this;
+      this.maxDepth = options.getMaxDepth();
+      this.maxElements = options.getMaxElements();
+      this.maxLength = options.getMaxLength();
+      this.writing = Helper.newIdentitySet();
+      this.entered = new ArrayList< Object >();
+      this.reentrant = new BitSet();
+    }
+
+    /**
+     * Continue the given budget in writing to another Appendable, as when a
+     * MoreToString object builds its own string while being written.
+     */
+    public Budget( Appendable out, Budget running ) {
+      this.out = out;
+      this.root = running.root;
+      this.maxDepth = root.maxDepth;
+      this.maxElements = root.maxElements;
+      this.maxLength = root.maxLength;
+      this.writing = root.writing;
+      this.entered = root.entered;
+      this.reentrant = root.reentrant;
+    }
+
+    /**
+     * @return a new Budget for writing to out if the options have limits or
+     *         continue a budget and out is not already a Budget, else null
+     */
+    public static Budget begin( Appendable out, FormatOptions options ) {
+      if ( !options.hasLimits() || out instanceof Budget ) return null;
+      if ( options.getBudget() != null ) {
+        return new Budget( out, options.getBudget() );
+      }
+      return new Budget( out, options );
+    }
+
+    /**
+     * Start writing a collection, map, array, or pair. If it is too deep or
+     * is already being written, the marker is written instead.
+     * 
+     * @return whether to write the elements, in which case
+     *         {@link #exit(Object)} must be called after
+     */
+    public boolean enter( Object container ) throws IOException {
+      return enter( container, false );
+    }
+
+    /**
+     * Start writing a collection, map, array, pair, or MoreToString object.
+     * If it is too deep or is already being written, the marker is written
+     * instead.
+     * 
+     * @param reentrant
+     *          whether the object may enter itself once more without
+     *          nesting, as when a MoreToString collection writes its elements
+     * @return whether to write the elements, in which case
+     *         {@link #exit(Object)} must be called after
+     */
+    public boolean enter( Object container, boolean reentrant )
+        throws IOException {
+      int top = entered.size() - 1;
+      if ( container != null && top >= 0 && entered.get( top ) == container
+           && this.reentrant.get( top ) ) {
+        this.reentrant.clear( top + 1 );
+        entered.add( container );
+        return true;
+      }
+      // Pairs, including map entries, do not count as a level of nesting.
+      boolean nests = !( container instanceof Pair );
+      if ( nests && maxDepth >= 0 && root.depth >= maxDepth ) {
+        append( TRUNCATED );
+        return false;
+      }
+      if ( container != null && !writing.add( container ) ) {
+        append( CYCLE );
+        return false;
+      }
+      if ( nests ) ++root.depth;
+      this.reentrant.set( top + 1, reentrant );
+      entered.add( container );
+      return true;
+    }
+
+    public void exit( Object container ) {
+      int top = entered.size() - 1;
+      entered.remove( top );
+      if ( container != null && top > 0
+           && entered.get( top - 1 ) == container
+           && reentrant.get( top - 1 ) ) {
+        return;
+      }
+      if ( !( container instanceof Pair ) ) --root.depth;
+      if ( container != null ) writing.remove( container );
+    }
+
+    /**
+     * @return whether an element may be written after count others
+     */
+    public boolean hasRoomForElement( int count ) {
+      return maxElements < 0 || count < maxElements;
+    }
+
+    /**
+     * @return whether a nested object may be written in detail
+     */
+    public boolean canGoDeeper() {
+      return maxDepth < 0 || root.depth < maxDepth;
+    }
+
+    public boolean isTruncated() {
+      return truncated;
+    }
+
+    /**
+     * @return the length written to the whole output
+     */
+    public int getLength() {
+      return root.length;
+    }
+
+    /**
+     * Write a string that was built while continuing this budget, such that
+     * what was counted in building it is not counted again.
+     * 
+     * @param csq
+     *          the built string
+     * @param lengthBefore
+     *          the value of {@link #getLength()} before the string was built
+     */
+    public Appendable appendBuilt( CharSequence csq, int lengthBefore )
+        throws IOException {
+      root.length = lengthBefore;
+      return append( csq );
+    }
+
+    @Override
+    public Appendable append( CharSequence csq ) throws IOException {
+      if ( csq == null ) csq = "null";
+      return append( csq, 0, csq.length() );
+    }
+
+    @Override
+    public Appendable append( CharSequence csq, int start, int end )
+        throws IOException {
+      if ( csq == null ) csq = "null";
+      if ( maxLength >= 0 && root.length + ( end - start ) > maxLength ) {
+        int room = Math.max( 0, maxLength - root.length );
+        out.append( csq, start, start + room );
+        root.length += room;
+        exhausted();
+      }
+      out.append( csq, start, end );
+      root.length += end - start;
+      return this;
+    }
+
+    @Override
+    public Appendable append( char c ) throws IOException {
+      if ( maxLength >= 0 && root.length >= maxLength ) exhausted();
+      out.append( c );
+      ++root.length;
+      return this;
+    }
+
+    protected void exhausted() throws IOException {
+      if ( !truncated ) {
+        truncated = true;
+        out.append( TRUNCATED );
+      }
+      throw new Exhausted();
+    }
+  }
+  
   /**
    * Helper class for MoreToString toString() calls. There are also functions
    * for formatting collections.
+   * <p>
+   * The methods that take an otherOptions map read its format entries into
+   * a {@link FormatOptions} once and leave the map unchanged. The toString()
+   * methods render into one StringBuilder with the corresponding appendTo()
+   * methods, which may also write to a Writer.
    */
   static class Helper {
     /**
@@ -119,34 +748,9 @@ public interface MoreToString {
     public static String toString( Object object, boolean withHash,
                                    boolean deep, Set< Object > seen,
                                    Map< String, Object > otherOptions ) {
-      if ( object == null ) return "null";
-      
-      // We have to make sure we get to the right method since collections
-      // require an extra boolean argument.
-      if ( object.getClass().isArray() ) {
-          return toString( (Object[])object, withHash, deep, seen, otherOptions, SQUARE_BRACES );
-      }
-      if ( object instanceof Class ) {
-        return ClassUtils.toString( (Class<?>)object );
-      }
-      if ( object instanceof Collection ) {
-        return toString( (Collection<?>)object, withHash, deep, seen, otherOptions, true );
-      }
-      if ( object instanceof Map ) {
-        return toString( (Map<?,?>)object, withHash, deep, seen, otherOptions, true );
-      }
-      if ( object instanceof Pair ) {
-        return toString( (Pair<?,?>)object, withHash, deep, seen, otherOptions, true );
-      }
-      if ( object instanceof Map.Entry ) {
-        return toString( (Map.Entry<?,?>)object, withHash, deep, seen, otherOptions, true );
-      }
-      
-      if ( object instanceof MoreToString ) {
-        return ( (MoreToString)object ).toString( withHash, deep, seen,
-                                                  otherOptions );
-      }
-      return object.toString();
+      return toString( object,
+                       FormatOptions.valueOf( withHash, deep, otherOptions ),
+                       seen );
     }
 
     /**
@@ -172,7 +776,7 @@ public interface MoreToString {
      */
     public static String toString( Object object ) {
       // Below works for array or other non-collection object.
-      return toString( object, false, false, null, null );
+      return toString( object, FormatOptions.DEFAULT, null );
     }
 
     /**
@@ -188,28 +792,95 @@ public interface MoreToString {
       return toString( object, true, true, null );
     }
 
-    public static String toShortString( Object object ) {
+    /**
+     * @return the string representation of the object written with the given
+     *         options
+     */
+    public static String toString( Object object, FormatOptions options,
+                                   Set< Object > seen ) {
       if ( object == null ) return "null";
-      
-      // We have to make sure we get to the right method since collections
-      // require an extra boolean argument.
-      if ( object instanceof Collection ) {
-        return toShortString( (Collection<?>)object, null, true );
+      StringBuilder sb = new StringBuilder();
+      try {
+        appendTo( sb, object, options, seen );
+      } catch ( IOException e ) {
+        // StringBuilder does not throw IOException.
       }
-      if ( object instanceof Map ) {
-        return toShortString( (Map<?,?>)object, null, true );
+      return sb.toString();
+    }
+
+    public static < T > String toString( Collection< T > collection,
+                                         FormatOptions options,
+                                         Set< Object > seen,
+                                         boolean checkIfMoreToString ) {
+      StringBuilder sb = new StringBuilder();
+      try {
+        appendTo( sb, collection, options, seen, checkIfMoreToString );
+      } catch ( IOException e ) {
+        // StringBuilder does not throw IOException.
+      }
+      return sb.toString();
+    }
+
+    public static < K, V > String toString( Map< K, V > map,
+                                            FormatOptions options,
+                                            Set< Object > seen,
+                                            boolean checkIfMoreToString ) {
+      StringBuilder sb = new StringBuilder();
+      try {
+        appendTo( sb, map, options, seen, checkIfMoreToString );
+      } catch ( IOException e ) {
+        // StringBuilder does not throw IOException.
+      }
+      return sb.toString();
+    }
+
+    public static < K, V > String toString( Map.Entry< K, V > entry,
+                                            FormatOptions options,
+                                            Set< Object > seen,
+                                            boolean checkIfMoreToString ) {
+      StringBuilder sb = new StringBuilder();
+      try {
+        appendTo( sb, entry, options, seen, checkIfMoreToString );
+      } catch ( IOException e ) {
+        // StringBuilder does not throw IOException.
       }
-      if ( object instanceof Pair ) {
-        return toShortString( (Pair<?,?>)object, null, true );
+      return sb.toString();
+    }
+
+    public static < K, V > String toString( Pair< K, V > pair,
+                                            FormatOptions options,
+                                            Set< Object > seen,
+                                            boolean checkIfMoreToString ) {
+      StringBuilder sb = new StringBuilder();
+      try {
+        appendTo( sb, pair, options, seen, checkIfMoreToString );
+      } catch ( IOException e ) {
+        // StringBuilder does not throw IOException.
       }
-      if ( object instanceof Map.Entry ) {
-        return toShortString( (Map.Entry<?,?>)object, null, true );
+      return sb.toString();
+    }
+
+    public static < T > String toString( final T[] array,
+                                         FormatOptions options,
+                                         Set< Object > seen ) {
+      StringBuilder sb = new StringBuilder();
+      try {
+        appendTo( sb, array, options, seen );
+      } catch ( IOException e ) {
+        // StringBuilder does not throw IOException.
       }
-      
-      if ( object instanceof MoreToString ) {
-        return ( (MoreToString)object ).toShortString();
+      return sb.toString();
+    }
+
+    public static String toShortString( Object object ) {
+      if ( object == null ) return "null";
+      StringBuilder sb = new StringBuilder();
+      try {
+        appendShortTo( sb, object );
+      } catch ( IOException e ) {
+        // StringBuilder does not throw IOException.
       }
-      return object.toString();
+      return sb.toString();
     }
 
     public static < T > String toShortString( Collection< T > collection,
@@ -229,30 +900,28 @@ public interface MoreToString {
       if ( checkIfMoreToString && collection instanceof MoreToString ) {
         return ((MoreToString)collection).toShortString();
       }
-      return toString( collection.toArray(), false, false, null, otherOptions,
-                       formatKey );
+      return toString( collection.toArray(),
+                       FormatOptions.valueOf( false, false, otherOptions )
+                                    .withFormat( formatKey ), null );
     }
     public static < K, V > String toShortString( Map< K, V > map,
                                             Map< String, Object > otherOptions,
                                             int formatKey,
                                             boolean checkIfMoreToString ) {
       if ( checkIfMoreToString && map instanceof MoreToString ) {
-        stuffOptionsFromKey( otherOptions, formatKey );
         return ( (MoreToString)map ).toShortString();
       }
-      return toString( map.entrySet().toArray(), false, false, null,
-                       otherOptions, formatKey );
+      return toString( map.entrySet().toArray(),
+                       FormatOptions.valueOf( false, false, otherOptions )
+                                    .withFormat( formatKey ), null );
     }
 
     public static < K, V > String toShortString( Map< K, V > map,
                                                  Map< String, Object > otherOptions,
                                                  boolean checkIfMoreToString ) {
-      int formatKey = CURLY_BRACES;
-      if ( hasFormatOptions( otherOptions ) ) {
-        formatKey = NO_FORMAT;
-      }
-      return toString( map, false, false, null, otherOptions, formatKey,
-                       checkIfMoreToString );
+      return toString( map, FormatOptions.valueOf( false, false, otherOptions )
+                                         .orFormat( CURLY_BRACES ),
+                       null, checkIfMoreToString );
     }
 
     public static < K, V > String toShortString( Map.Entry< K, V > entry,
@@ -260,7 +929,6 @@ public interface MoreToString {
                                             int formatKey,
                                             boolean checkIfMoreToString ) {
       if ( checkIfMoreToString && entry instanceof MoreToString ) {
-        stuffOptionsFromKey( otherOptions, formatKey );
         return ((MoreToString)entry).toShortString();
       }
       Pair< K, V > p = new Pair< K, V >( entry.getKey(), entry.getValue() );
@@ -269,24 +937,21 @@ public interface MoreToString {
     public static < K, V > String toShortString( Map.Entry< K, V > entry,
                                             Map<String,Object> otherOptions,
                                             boolean checkIfMoreToString ) {
-      int formatKey = EQUALS;
-      if ( hasFormatOptions( otherOptions ) ) {
-        formatKey = NO_FORMAT;
-      }// else {
-      return toString( entry, false, false, null, otherOptions, formatKey,
-                       checkIfMoreToString );
-//      }
+      return toString( entry,
+                       FormatOptions.valueOf( false, false, otherOptions )
+                                    .orFormat( EQUALS ),
+                       null, checkIfMoreToString );
     }
     public static < K, V > String toShortString( Pair< K, V > pair,
                                             Map<String,Object> otherOptions,
                                             int formatKey,
                                             boolean checkIfMoreToString ) {
       if ( checkIfMoreToString && pair instanceof MoreToString ) {
-        stuffOptionsFromKey( otherOptions, formatKey );
         return ((MoreToString)pair).toShortString();
       }
-      return toString( new Object[]{pair.first, pair.second}, false,
-                       false, null, otherOptions, formatKey );
+      return toString( new Object[]{pair.first, pair.second},
+                       FormatOptions.valueOf( false, false, otherOptions )
+                                    .withFormat( formatKey ), null );
     }
     public static < K, V > String toShortString( Pair< K, V > pair,
                                             Map<String,Object> otherOptions,
@@ -329,11 +994,10 @@ public interface MoreToString {
                                          Map<String,Object> otherOptions,
                                          int formatKey,
                                          boolean checkIfMoreToString ) {
-      if ( checkIfMoreToString && collection instanceof MoreToString ) {
-        stuffOptionsFromKey( otherOptions, formatKey );
-        return ((MoreToString)collection).toString(withHash, deep, seen, otherOptions);
-      }
-      return toString( collection.toArray(), withHash, deep, seen, otherOptions, formatKey );
+      return toString( collection,
+                       FormatOptions.valueOf( withHash, deep, otherOptions )
+                                    .withFormat( formatKey ),
+                       seen, checkIfMoreToString );
     }
     public static < T > String toString( Collection< T > collection,
                                          boolean withHash, boolean deep,
@@ -350,12 +1014,10 @@ public interface MoreToString {
                                          Set< Object > seen,
                                          Map< String, Object > otherOptions,
                                          boolean checkIfMoreToString ) {
-      int formatKey = PARENTHESES;
-      if ( hasFormatOptions( otherOptions ) ) {
-        formatKey = NO_FORMAT;
-      }
-      return toString( collection, withHash, deep, seen, otherOptions,
-                       formatKey, checkIfMoreToString );
+      return toString( collection,
+                       FormatOptions.valueOf( withHash, deep, otherOptions )
+                                    .orFormat( PARENTHESES ),
+                       seen, checkIfMoreToString );
     }
     public static < T > String toString( Collection< T > collection,
                                          boolean withHash, boolean deep,
@@ -364,12 +1026,10 @@ public interface MoreToString {
                                          String prefix, String delimiter,
                                          String suffix,
                                          boolean checkIfMoreToString ) {
-      if ( checkIfMoreToString && collection instanceof MoreToString ) {
-        stuffOptionsFromKey( otherOptions, prefix, delimiter, suffix );
-        return ((MoreToString)collection).toString(withHash, deep, seen, otherOptions);
-      }
-      return toString( collection.toArray(), withHash, deep, seen, otherOptions,
-                       prefix, delimiter, suffix );
+      return toString( collection,
+                       FormatOptions.valueOf( withHash, deep, otherOptions )
+                                    .withFormat( prefix, delimiter, suffix ),
+                       seen, checkIfMoreToString );
     }
 
     public static < K, V > String toString( Map< K, V > map, boolean withHash,
@@ -377,30 +1037,20 @@ public interface MoreToString {
                                             Map< String, Object > otherOptions,
                                             int formatKey,
                                             boolean checkIfMoreToString ) {
-      if ( checkIfMoreToString && map instanceof MoreToString ) {
-        stuffOptionsFromKey( otherOptions, formatKey );
-        return ( (MoreToString)map ).toString( withHash, deep, seen,
-                                               otherOptions );
-      }
-      return toString( map.entrySet().toArray(), withHash, deep, seen,
-                       otherOptions, formatKey );
+      return toString( map,
+                       FormatOptions.valueOf( withHash, deep, otherOptions )
+                                    .withFormat( formatKey ),
+                       seen, checkIfMoreToString );
     }
 
     public static < K, V > String toString( Map< K, V > map, boolean withHash,
                                             boolean deep, Set< Object > seen,
                                             Map< String, Object > otherOptions,
                                             boolean checkIfMoreToString ) {
-      int formatKey = CURLY_BRACES;
-      if ( hasFormatOptions( otherOptions ) ) {
-        formatKey = NO_FORMAT;
-//        if ( checkIfMoreToString && map instanceof MoreToString ) {
-//          return ((MoreToString)map).toString(withHash, deep, seen, otherOptions);
-//        }
-//        return toString( map.entrySet().toArray(), withHash, deep, seen,
-//                         otherOptions );
-      }
-      return toString( map, withHash, deep, seen, otherOptions, formatKey,
-                       checkIfMoreToString );
+      return toString( map,
+                       FormatOptions.valueOf( withHash, deep, otherOptions )
+                                    .orFormat( CURLY_BRACES ),
+                       seen, checkIfMoreToString );
     }
 
     public static < K, V > String toString( Map< K, V > map, boolean withHash,
@@ -409,13 +1059,10 @@ public interface MoreToString {
                                             String prefix, String delimiter,
                                             String suffix,
                                             boolean checkIfMoreToString ) {
-      if ( checkIfMoreToString && map instanceof MoreToString ) {
-        stuffOptionsFromKey( otherOptions, prefix, delimiter, suffix );
-        return ( (MoreToString)map ).toString( withHash, deep, seen,
-                                               otherOptions );
-      }
-      return toString( map.entrySet().toArray(), withHash, deep, seen,
-                       otherOptions, prefix, delimiter, suffix );
+      return toString( map,
+                       FormatOptions.valueOf( withHash, deep, otherOptions )
+                                    .withFormat( prefix, delimiter, suffix ),
+                       seen, checkIfMoreToString );
     }
 
     public static < K, V > String toString( Map.Entry< K, V > entry,
@@ -424,30 +1071,20 @@ public interface MoreToString {
                                             Map<String,Object> otherOptions,
                                             int formatKey,
                                             boolean checkIfMoreToString ) {
-      if ( checkIfMoreToString && entry instanceof MoreToString ) {
-        stuffOptionsFromKey( otherOptions, formatKey );      
-        return ((MoreToString)entry).toString(withHash, deep, seen, otherOptions);
-      }
-      Pair< K, V > p = new Pair< K, V >( entry.getKey(), entry.getValue() );
-      return toString( p, withHash, deep, seen, otherOptions, formatKey, false );
+      return toString( entry,
+                       FormatOptions.valueOf( withHash, deep, otherOptions )
+                                    .withFormat( formatKey ),
+                       seen, checkIfMoreToString );
     }
     public static < K, V > String toString( Map.Entry< K, V > entry,
                                             boolean withHash, boolean deep,
                                             Set< Object > seen,
                                             Map<String,Object> otherOptions,
                                             boolean checkIfMoreToString ) {
-      int formatKey = EQUALS;
-      if ( hasFormatOptions( otherOptions ) ) {
-        formatKey = NO_FORMAT;
-//        if ( checkIfMoreToString && entry instanceof MoreToString ) {
-//          return ((MoreToString)entry).toString(withHash, deep, seen, otherOptions);
-//        }
-//        Pair< K, V > p = new Pair< K, V >( entry.getKey(), entry.getValue() );
-//        return toString( p, withHash, deep, seen, otherOptions, false );
-      }// else {
-      return toString( entry, withHash, deep, seen, otherOptions, formatKey,
-                       checkIfMoreToString );
-//      }
+      return toString( entry,
+                       FormatOptions.valueOf( withHash, deep, otherOptions )
+                                    .orFormat( EQUALS ),
+                       seen, checkIfMoreToString );
     }
     public static < K, V > String toString( Map.Entry< K, V > entry,
                                             boolean withHash, boolean deep,
@@ -457,13 +1094,10 @@ public interface MoreToString {
                                             String delimiter,
                                             String suffix,
                                             boolean checkIfMoreToString) {
-      if ( checkIfMoreToString && entry instanceof MoreToString ) {
-        stuffOptionsFromKey( otherOptions, prefix, delimiter, suffix );
-        return ((MoreToString)entry).toString(withHash, deep, seen, otherOptions);
-      }
-      Pair< K, V > p = new Pair< K, V >( entry.getKey(), entry.getValue() );
-      return toString( p, withHash, deep, seen, otherOptions,
-                       prefix, delimiter, suffix, false );
+      return toString( entry,
+                       FormatOptions.valueOf( withHash, deep, otherOptions )
+                                    .withFormat( prefix, delimiter, suffix ),
+                       seen, checkIfMoreToString );
     }                                            
     public static < K, V > String toString( Pair< K, V > pair,
                                             boolean withHash, boolean deep,
@@ -471,24 +1105,20 @@ public interface MoreToString {
                                             Map<String,Object> otherOptions,
                                             int formatKey,
                                             boolean checkIfMoreToString ) {
-      if ( checkIfMoreToString && pair instanceof MoreToString ) {
-        stuffOptionsFromKey( otherOptions, formatKey );
-        return ((MoreToString)pair).toString(withHash, deep, seen, otherOptions);
-      }
-      return toString( new Object[]{pair.first, pair.second}, withHash,
-                       deep, seen, otherOptions, formatKey );
+      return toString( pair,
+                       FormatOptions.valueOf( withHash, deep, otherOptions )
+                                    .withFormat( formatKey ),
+                       seen, checkIfMoreToString );
     }
     public static < K, V > String toString( Pair< K, V > pair,
                                             boolean withHash, boolean deep,
                                             Set< Object > seen,
                                             Map<String,Object> otherOptions,
                                             boolean checkIfMoreToString ) {
-      int formatKey = hasFormatOptions( otherOptions ) ? NO_FORMAT : PARENTHESES;
-//      if ( checkIfMoreToString && pair instanceof MoreToString ) {
-//        return ((MoreToString)pair).toString(withHash, deep, seen, otherOptions);
-//      }
-      return toString( pair, withHash, deep, seen, otherOptions, formatKey,
-                       checkIfMoreToString );
+      return toString( pair,
+                       FormatOptions.valueOf( withHash, deep, otherOptions )
+                                    .orFormat( PARENTHESES ),
+                       seen, checkIfMoreToString );
     }
     public static < K, V > String toString( Pair< K, V > pair,
                                             boolean withHash, boolean deep,
@@ -498,20 +1128,11 @@ public interface MoreToString {
                                             String delimiter,
                                             String suffix,
                                             boolean checkIfMoreToString ) {
-      if ( checkIfMoreToString && pair instanceof MoreToString ) {
-        stuffOptionsFromKey( otherOptions, prefix, delimiter, suffix );
-        return ((MoreToString)pair).toString(withHash, deep, seen, otherOptions);
-      }
-      return toString(new Object[]{pair.first, pair.second},
-                      withHash, deep, seen, otherOptions,
-                      prefix, delimiter, suffix );
-    }
-//    public static < T > String toString( final T[] collection,
-//                                         boolean withHash, boolean deep,
-//                                         Set< Object > seen,
-//                                         Map<String,Object> otherOptions ) {
-//      return toString( collection, withHash, deep, seen, otherOptions, true );
-//    }
+      return toString( pair,
+                       FormatOptions.valueOf( withHash, deep, otherOptions )
+                                    .withFormat( prefix, delimiter, suffix ),
+                       seen, checkIfMoreToString );
+    }
     
     /**
      * @param map
@@ -551,62 +1172,6 @@ public interface MoreToString {
       return optionMap;
     }
 
-    private static String[] getOptions( Map< String, Object > options,
-                                        String[] optionNames ) {
-      String[] optionValues = new String[ optionNames.length ];
-      if ( !Utils.isNullOrEmpty( options )
-           && !Utils.isNullOrEmpty( optionNames ) ) {
-        // initialize option values to null
-        for ( int i = 0; i < optionNames.length; ++i ) {
-          optionValues[ i ] = null;
-        }
-        // get matching values for the name
-        for ( int i = 0; i < optionNames.length; ++i ) {
-          // look for a matching string value first
-          String value = get( options, optionNames[ i ], String.class );
-          if ( value != null ) {
-            optionValues[ i ] = value;
-          } else {
-            // look for a format key integer
-            Integer optionKey = get( options, optionNames[ i ], Integer.class );
-            if ( optionKey != null ) {
-              // look up the string value for the format key
-              String[] subOptions = formatOptions.get( optionNames[ i ] );
-              if ( subOptions != null ) {
-                if ( optionKey > 0 && optionKey < subOptions.length ) {
-                  value = subOptions[ optionKey ];
-                  optionValues[ i ] = value;
-                }
-              }
-              // The format key often applies to all options, so set any that
-              // are null to the default string value for the name and key.
-              for ( int j = 0; j < optionNames.length; ++j ) {
-                // Don't overwrite an assigned value with a default.
-                if ( optionValues[ j ] != null ) continue;
-                // look up the string value for the format key
-                subOptions = formatOptions.get( optionNames[ j ] );
-                if ( subOptions != null ) {
-                  if ( optionKey > 0 && optionKey < subOptions.length ) {
-                    value = subOptions[ optionKey ];
-                    optionValues[ j ] = value;
-                  }
-                }
-              }
-            }
-          }
-        }
-      }
-      return optionValues;
-    }
-
-    private static String[] getFormatOptions( Map< String, Object > options ) {
-      final Object[] objects = formatOptions.keySet().toArray();
-      String[] optionNames = new String[formatOptions.size()];
-      Utils.toArrayOfType( objects, optionNames, String.class );
-          //new String[] { "prefix", "delimiter", "suffix" };
-      return getOptions( options, optionNames );
-    }
-
     public static boolean hasFormatOptions(Map< String, Object > options ) {
       return ( options != null && options.get( "prefix" ) != null );
     }
@@ -639,26 +1204,16 @@ public interface MoreToString {
                                          Set< Object > seen,
                                          Map<String,Object> otherOptions,
                                          int formatKey ) {
-      if ( otherOptions == null ) otherOptions = new TreeMap< String, Object >();
-      stuffOptionsFromKey(otherOptions, formatKey);
-      return toString( array, withHash, deep, seen, otherOptions );
+      return toString( array,
+                       FormatOptions.valueOf( withHash, deep, otherOptions )
+                                    .withFormat( formatKey ), seen );
     }
     
     public static void stuffOptionsFromKey( Map< String, Object > options,
                                             int formatKey ) {
       if ( formatKey == NO_FORMAT ) return;
       if ( options == null ) return;
-      for ( String opt : formatOptions.keySet() ) {
-        options.put("prefix", formatKey);
-      }
-    }
-    private static void stuffOptionsFromKey( Map< String, Object > options,
-                                             String prefix, String delimiter,
-                                             String suffix ) {
-      if ( options == null ) options = new TreeMap< String, Object >();
-      options.put("prefix", prefix);
-      options.put("delimiter", delimiter);
-      options.put("suffix", suffix);
+      options.put("prefix", formatKey);
     }
     
     public static void removeFormatOptions( Map< String, Object > options ) {
@@ -668,28 +1223,13 @@ public interface MoreToString {
       }
     }
 
-//    public static < T > String toShortString( final T[] array, int formatKey,
-//                                              boolean checkIfMoreToString ) {
-//      String[] options = getFormatOptions(otherOptions);
-//      String delimiter = options[0]; // ordered by option name
-//      String prefix = options[1];
-//      String suffix = options[2];
-//     return null;
-//   }
-
     public static < T > String toString( final T[] array,
                                          boolean withHash, boolean deep,
                                          Set< Object > seen,
                                          Map<String,Object> otherOptions ) {
-      String[] options = getFormatOptions(otherOptions);
-      String delimiter = options[0]; // ordered by option name
-      String prefix = options[1];
-      String suffix = options[2];
-      if ( prefix != null && !otherOptions.containsKey( "formatDeep" ) ) {
-        removeFormatOptions(otherOptions);
-      }
-      return toString( array, withHash, deep, seen, otherOptions, prefix,
-                       delimiter, suffix );
+      return toString( array,
+                       FormatOptions.valueOf( withHash, deep, otherOptions ),
+                       seen );
     }
     public static < T > String toString( final T[] array,
                                          boolean withHash, boolean deep,
@@ -698,47 +1238,672 @@ public interface MoreToString {
                                          String prefix,
                                          String delimiter,
                                          String suffix) {
-      StringBuffer sb = new StringBuffer();
-      if ( prefix == null ) {
-        prefix = "[";
-        suffix = "]";
-      }
-      if ( prefix.equals("{") && !suffix.equals("}") ) {
-        suffix = "}";
-      }
-      if ( delimiter == null ) {
-        delimiter = ", ";
-      }
-      sb.append( prefix );
-      boolean first = true;
-      for ( Object object : array ) {
-        if ( first ) {
-          first = false;
+      return toString( array,
+                       FormatOptions.valueOf( withHash, deep, otherOptions )
+                                    .withFormat( prefix, delimiter, suffix ),
+                       seen );
+    }
+
+    /**
+     * Appends the string representation of the object to out as
+     * {@link #toString(Object, boolean, boolean, Set, Map)} would return it.
+     * Nested collections, maps, arrays, and pairs are written to out as they
+     * are visited instead of to intermediate Strings, so the output of a deep
+     * structure is built once in a single StringBuilder or streamed to a
+     * Writer.
+     * 
+     * @param out
+     *          where the string representation is written
+     * @throws IOException
+     *           if out throws it
+     */
+    public static void appendTo( Appendable out, Object object,
+                                 boolean withHash, boolean deep,
+                                 Set< Object > seen,
+                                 Map< String, Object > otherOptions )
+                                     throws IOException {
+      appendTo( out, object,
+                FormatOptions.valueOf( withHash, deep, otherOptions ), seen );
+    }
+
+    public static void appendTo( Appendable out, Object object,
+                                 boolean withHash, boolean deep,
+                                 Set< Object > seen ) throws IOException {
+      appendTo( out, object, withHash, deep, seen, null );
+    }
+
+    public static void appendTo( Appendable out, Object object )
+        throws IOException {
+      appendTo( out, object, FormatOptions.DEFAULT, null );
+    }
+
+    /**
+     * Appends the string representation of the object to out, choosing the
+     * default format for its type unless the options have a format.
+     */
+    public static void appendTo( Appendable out, Object object,
+                                 FormatOptions options, Set< Object > seen )
+                                     throws IOException {
+      if ( object == null ) {
+        out.append( "null" );
+        return;
+      }
+      Budget budget = Budget.begin( out, options );
+      if ( budget != null ) {
+        try {
+          appendTo( budget, object, options, seen );
+        } catch ( Budget.Exhausted e ) {
+          // The budget has written the truncation marker.
+        }
+        return;
+      }
+      
+      // We have to make sure we get to the right method since collections
+      // require an extra boolean argument.
+      if ( object.getClass().isArray() ) {
+        appendTo( out, (Object[])object, options.withFormat( SQUARE_BRACES ),
+                  seen );
+      } else if ( object instanceof Class ) {
+        out.append( ClassUtils.toString( (Class<?>)object ) );
+      } else if ( object instanceof Collection ) {
+        appendTo( out, (Collection<?>)object, options.orFormat( PARENTHESES ),
+                  seen, true );
+      } else if ( object instanceof Map ) {
+        appendTo( out, (Map<?,?>)object, options.orFormat( CURLY_BRACES ),
+                  seen, true );
+      } else if ( object instanceof Pair ) {
+        appendTo( out, (Pair<?,?>)object, options.orFormat( PARENTHESES ),
+                  seen, true );
+      } else if ( object instanceof Map.Entry ) {
+        appendTo( out, (Map.Entry<?,?>)object, options.orFormat( EQUALS ),
+                  seen, true );
+      } else if ( object instanceof MoreToString ) {
+        appendMoreToString( out, (MoreToString)object, options, seen );
+      } else {
+        out.append( object.toString() );
+      }
+    }
+
+    /**
+     * Writes a MoreToString object to out, directly if it implements
+     * {@link AppendsTo} and otherwise through its toString(). Within a
+     * budget, the object counts as a level of nesting, and the options
+     * passed to it continue the budget.
+     */
+    private static void appendMoreToString( Appendable out,
+                                            MoreToString object,
+                                            FormatOptions options,
+                                            Set< Object > seen )
+                                                throws IOException {
+      Budget budget = Budget.begin( out, options );
+      if ( budget != null ) {
+        try {
+          appendMoreToString( budget, object, options, seen );
+        } catch ( Budget.Exhausted e ) {
+          // The budget has written the truncation marker.
+        }
+        return;
+      }
+      if ( out instanceof Budget ) {
+        budget = (Budget)out;
+        if ( !budget.enter( object, true ) ) return;
+        try {
+          Map< String, Object > map = options.withBudget( budget ).toOptionsMap();
+          if ( object instanceof AppendsTo ) {
+            ( (AppendsTo)object ).appendTo( budget, options.isWithHash(),
+                                            options.isDeep(), seen, map );
+          } else {
+            int lengthBefore = budget.getLength();
+            budget.appendBuilt( object.toString( options.isWithHash(),
+                                                 options.isDeep(), seen, map ),
+                                lengthBefore );
+          }
+        } finally {
+          budget.exit( object );
+        }
+        return;
+      }
+      if ( object instanceof AppendsTo ) {
+        ( (AppendsTo)object ).appendTo( out, options.isWithHash(),
+                                        options.isDeep(), seen,
+                                        options.toOptionsMap() );
+      } else {
+        out.append( object.toString( options.isWithHash(), options.isDeep(),
+                                     seen, options.toOptionsMap() ) );
+      }
+    }
+
+    /**
+     * Appends the string that {@link #toShortString(Object)} returns to out.
+     */
+    public static void appendShortTo( Appendable out, Object object )
+        throws IOException {
+      if ( object == null ) {
+        out.append( "null" );
+      } else if ( object instanceof Collection ) {
+        Collection<?> collection = (Collection<?>)object;
+        if ( collection instanceof MoreToString ) {
+          out.append( ( (MoreToString)collection ).toShortString() );
         } else {
-          sb.append( delimiter );
+          appendTo( out, collection.toArray(), FormatOptions.PARENTHESES, null );
         }
-        if ( deep && ( seen == null || !seen.contains( object ) ) ) {
-          sb.append( MoreToString.Helper.toString( object, withHash, deep, seen,
-                                                   otherOptions ) );
+      } else if ( object instanceof Map ) {
+        appendTo( out, (Map<?,?>)object, FormatOptions.CURLY_BRACES, null,
+                  true );
+      } else if ( object instanceof Pair ) {
+        Pair<?,?> pair = (Pair<?,?>)object;
+        if ( pair instanceof MoreToString ) {
+          out.append( ( (MoreToString)pair ).toShortString() );
         } else {
-          sb.append( MoreToString.Helper.toShortString( object ) );
+          appendTo( out, new Object[]{pair.first, pair.second},
+                    FormatOptions.PARENTHESES, null );
         }
+      } else if ( object instanceof Map.Entry ) {
+        appendTo( out, (Map.Entry<?,?>)object, FormatOptions.EQUALS, null,
+                  true );
+      } else if ( object instanceof MoreToString ) {
+        out.append( ( (MoreToString)object ).toShortString() );
+      } else {
+        out.append( object.toString() );
+      }
+    }
+
+    public static < T > void appendShortTo( Appendable out,
+                                            Collection< T > collection,
+                                            Map< String, Object > otherOptions,
+                                            boolean checkIfMoreToString )
+                                                throws IOException {
+      int formatKey = PARENTHESES;
+      if ( hasFormatOptions( otherOptions ) ) {
+        formatKey = NO_FORMAT;
+      }
+      appendShortTo( out, collection, formatKey, otherOptions,
+                     checkIfMoreToString );
+    }
+    public static < T > void appendShortTo( Appendable out,
+                                            Collection< T > collection,
+                                            int formatKey,
+                                            Map< String, Object > otherOptions,
+                                            boolean checkIfMoreToString )
+                                                throws IOException {
+      if ( checkIfMoreToString && collection instanceof MoreToString ) {
+        out.append( ( (MoreToString)collection ).toShortString() );
+        return;
+      }
+      appendTo( out, collection.toArray(),
+                FormatOptions.valueOf( false, false, otherOptions )
+                             .withFormat( formatKey ), null );
+    }
+    public static < K, V > void appendShortTo( Appendable out, Map< K, V > map,
+                                               Map< String, Object > otherOptions,
+                                               int formatKey,
+                                               boolean checkIfMoreToString )
+                                                   throws IOException {
+      if ( checkIfMoreToString && map instanceof MoreToString ) {
+        out.append( ( (MoreToString)map ).toShortString() );
+        return;
+      }
+      appendTo( out, map.entrySet().toArray(),
+                FormatOptions.valueOf( false, false, otherOptions )
+                             .withFormat( formatKey ), null );
+    }
+    public static < K, V > void appendShortTo( Appendable out, Map< K, V > map,
+                                               Map< String, Object > otherOptions,
+                                               boolean checkIfMoreToString )
+                                                   throws IOException {
+      appendTo( out, map, FormatOptions.valueOf( false, false, otherOptions )
+                                      .orFormat( CURLY_BRACES ),
+                null, checkIfMoreToString );
+    }
+    public static < K, V > void appendShortTo( Appendable out,
+                                               Map.Entry< K, V > entry,
+                                               Map< String, Object > otherOptions,
+                                               int formatKey,
+                                               boolean checkIfMoreToString )
+                                                   throws IOException {
+      if ( checkIfMoreToString && entry instanceof MoreToString ) {
+        out.append( ( (MoreToString)entry ).toShortString() );
+        return;
+      }
+      Pair< K, V > p = new Pair< K, V >( entry.getKey(), entry.getValue() );
+      appendShortTo( out, p, otherOptions, formatKey, true );
+    }
+    public static < K, V > void appendShortTo( Appendable out,
+                                               Map.Entry< K, V > entry,
+                                               Map< String, Object > otherOptions,
+                                               boolean checkIfMoreToString )
+                                                   throws IOException {
+      appendTo( out, entry, FormatOptions.valueOf( false, false, otherOptions )
+                                        .orFormat( EQUALS ),
+                null, checkIfMoreToString );
+    }
+    public static < K, V > void appendShortTo( Appendable out,
+                                               Pair< K, V > pair,
+                                               Map< String, Object > otherOptions,
+                                               int formatKey,
+                                               boolean checkIfMoreToString )
+                                                   throws IOException {
+      if ( checkIfMoreToString && pair instanceof MoreToString ) {
+        out.append( ( (MoreToString)pair ).toShortString() );
+        return;
+      }
+      appendTo( out, new Object[]{pair.first, pair.second},
+                FormatOptions.valueOf( false, false, otherOptions )
+                             .withFormat( formatKey ), null );
+    }
+    public static < K, V > void appendShortTo( Appendable out,
+                                               Pair< K, V > pair,
+                                               Map< String, Object > otherOptions,
+                                               boolean checkIfMoreToString )
+                                                   throws IOException {
+      int formatKey = hasFormatOptions( otherOptions ) ? NO_FORMAT : PARENTHESES;
+      appendShortTo( out, pair, otherOptions, formatKey, checkIfMoreToString );
+    }
+    public static < T > void appendShortTo( Appendable out, final T[] array,
+                                            Map< String, Object > otherOptions )
+                                                throws IOException {
+      appendTo( out, array, false, false, null, otherOptions );
+    }
+
+    /**
+     * Appends a collection to out as
+     * {@link #toString(Collection, boolean, boolean, Set, Map, int, boolean)}
+     * would return it.
+     */
+    public static < T > void appendTo( Appendable out,
+                                       final Collection< T > collection,
+                                       boolean withHash, boolean deep,
+                                       Set< Object > seen,
+                                       Map< String, Object > otherOptions,
+                                       int formatKey,
+                                       boolean checkIfMoreToString )
+                                           throws IOException {
+      appendTo( out, collection,
+                FormatOptions.valueOf( withHash, deep, otherOptions )
+                             .withFormat( formatKey ),
+                seen, checkIfMoreToString );
+    }
+    public static < T > void appendTo( Appendable out,
+                                       Collection< T > collection,
+                                       boolean withHash, boolean deep,
+                                       Set< Object > seen,
+                                       Map< String, Object > otherOptions,
+                                       boolean square,
+                                       boolean checkIfMoreToString )
+                                           throws IOException {
+      int formatKey = ( square ? SQUARE_BRACES : PARENTHESES );
+      appendTo( out, collection, withHash, deep, seen, otherOptions,
+                formatKey, checkIfMoreToString );
+    }
+    public static < T > void appendTo( Appendable out,
+                                       Collection< T > collection,
+                                       boolean withHash, boolean deep,
+                                       Set< Object > seen,
+                                       Map< String, Object > otherOptions,
+                                       boolean checkIfMoreToString )
+                                           throws IOException {
+      appendTo( out, collection,
+                FormatOptions.valueOf( withHash, deep, otherOptions )
+                             .orFormat( PARENTHESES ),
+                seen, checkIfMoreToString );
+    }
+    public static < T > void appendTo( Appendable out,
+                                       Collection< T > collection,
+                                       boolean withHash, boolean deep,
+                                       Set< Object > seen,
+                                       Map< String, Object > otherOptions,
+                                       String prefix, String delimiter,
+                                       String suffix,
+                                       boolean checkIfMoreToString )
+                                           throws IOException {
+      appendTo( out, collection,
+                FormatOptions.valueOf( withHash, deep, otherOptions )
+                             .withFormat( prefix, delimiter, suffix ),
+                seen, checkIfMoreToString );
+    }
+    /**
+     * Appends a collection to out with the given options, which are used as
+     * they are; a collection that is a MoreToString is passed them as an
+     * otherOptions map if checkIfMoreToString.
+     */
+    public static < T > void appendTo( Appendable out,
+                                       Collection< T > collection,
+                                       FormatOptions options,
+                                       Set< Object > seen,
+                                       boolean checkIfMoreToString )
+                                           throws IOException {
+      if ( checkIfMoreToString && collection instanceof MoreToString ) {
+        appendMoreToString( out, (MoreToString)collection, options, seen );
+        return;
+      }
+      appendElements( out, collection, collection.iterator(), options, seen );
+    }
+
+    public static < K, V > void appendTo( Appendable out, Map< K, V > map,
+                                          boolean withHash, boolean deep,
+                                          Set< Object > seen,
+                                          Map< String, Object > otherOptions,
+                                          int formatKey,
+                                          boolean checkIfMoreToString )
+                                              throws IOException {
+      appendTo( out, map,
+                FormatOptions.valueOf( withHash, deep, otherOptions )
+                             .withFormat( formatKey ),
+                seen, checkIfMoreToString );
+    }
+    public static < K, V > void appendTo( Appendable out, Map< K, V > map,
+                                          boolean withHash, boolean deep,
+                                          Set< Object > seen,
+                                          Map< String, Object > otherOptions,
+                                          boolean checkIfMoreToString )
+                                              throws IOException {
+      appendTo( out, map,
+                FormatOptions.valueOf( withHash, deep, otherOptions )
+                             .orFormat( CURLY_BRACES ),
+                seen, checkIfMoreToString );
+    }
+    public static < K, V > void appendTo( Appendable out, Map< K, V > map,
+                                          boolean withHash, boolean deep,
+                                          Set< Object > seen,
+                                          Map< String, Object > otherOptions,
+                                          String prefix, String delimiter,
+                                          String suffix,
+                                          boolean checkIfMoreToString )
+                                              throws IOException {
+      appendTo( out, map,
+                FormatOptions.valueOf( withHash, deep, otherOptions )
+                             .withFormat( prefix, delimiter, suffix ),
+                seen, checkIfMoreToString );
+    }
+    public static < K, V > void appendTo( Appendable out, Map< K, V > map,
+                                          FormatOptions options,
+                                          Set< Object > seen,
+                                          boolean checkIfMoreToString )
+                                              throws IOException {
+      if ( checkIfMoreToString && map instanceof MoreToString ) {
+        appendMoreToString( out, (MoreToString)map, options, seen );
+        return;
+      }
+      appendElements( out, map, map.entrySet().iterator(), options, seen );
+    }
+
+    public static < K, V > void appendTo( Appendable out,
+                                          Map.Entry< K, V > entry,
+                                          boolean withHash, boolean deep,
+                                          Set< Object > seen,
+                                          Map< String, Object > otherOptions,
+                                          int formatKey,
+                                          boolean checkIfMoreToString )
+                                              throws IOException {
+      appendTo( out, entry,
+                FormatOptions.valueOf( withHash, deep, otherOptions )
+                             .withFormat( formatKey ),
+                seen, checkIfMoreToString );
+    }
+    public static < K, V > void appendTo( Appendable out,
+                                          Map.Entry< K, V > entry,
+                                          boolean withHash, boolean deep,
+                                          Set< Object > seen,
+                                          Map< String, Object > otherOptions,
+                                          boolean checkIfMoreToString )
+                                              throws IOException {
+      appendTo( out, entry,
+                FormatOptions.valueOf( withHash, deep, otherOptions )
+                             .orFormat( EQUALS ),
+                seen, checkIfMoreToString );
+    }
+    public static < K, V > void appendTo( Appendable out,
+                                          Map.Entry< K, V > entry,
+                                          boolean withHash, boolean deep,
+                                          Set< Object > seen,
+                                          Map< String, Object > otherOptions,
+                                          String prefix, String delimiter,
+                                          String suffix,
+                                          boolean checkIfMoreToString )
+                                              throws IOException {
+      appendTo( out, entry,
+                FormatOptions.valueOf( withHash, deep, otherOptions )
+                             .withFormat( prefix, delimiter, suffix ),
+                seen, checkIfMoreToString );
+    }
+    public static < K, V > void appendTo( Appendable out,
+                                          Map.Entry< K, V > entry,
+                                          FormatOptions options,
+                                          Set< Object > seen,
+                                          boolean checkIfMoreToString )
+                                              throws IOException {
+      if ( checkIfMoreToString && entry instanceof MoreToString ) {
+        appendMoreToString( out, (MoreToString)entry, options, seen );
+        return;
+      }
+      Pair< K, V > p = new Pair< K, V >( entry.getKey(), entry.getValue() );
+      appendTo( out, p, options, seen, false );
+    }
+
+    public static < K, V > void appendTo( Appendable out, Pair< K, V > pair,
+                                          boolean withHash, boolean deep,
+                                          Set< Object > seen,
+                                          Map< String, Object > otherOptions,
+                                          int formatKey,
+                                          boolean checkIfMoreToString )
+                                              throws IOException {
+      appendTo( out, pair,
+                FormatOptions.valueOf( withHash, deep, otherOptions )
+                             .withFormat( formatKey ),
+                seen, checkIfMoreToString );
+    }
+    public static < K, V > void appendTo( Appendable out, Pair< K, V > pair,
+                                          boolean withHash, boolean deep,
+                                          Set< Object > seen,
+                                          Map< String, Object > otherOptions,
+                                          boolean checkIfMoreToString )
+                                              throws IOException {
+      appendTo( out, pair,
+                FormatOptions.valueOf( withHash, deep, otherOptions )
+                             .orFormat( PARENTHESES ),
+                seen, checkIfMoreToString );
+    }
+    public static < K, V > void appendTo( Appendable out, Pair< K, V > pair,
+                                          boolean withHash, boolean deep,
+                                          Set< Object > seen,
+                                          Map< String, Object > otherOptions,
+                                          String prefix, String delimiter,
+                                          String suffix,
+                                          boolean checkIfMoreToString )
+                                              throws IOException {
+      appendTo( out, pair,
+                FormatOptions.valueOf( withHash, deep, otherOptions )
+                             .withFormat( prefix, delimiter, suffix ),
+                seen, checkIfMoreToString );
+    }
+    public static < K, V > void appendTo( Appendable out, Pair< K, V > pair,
+                                          FormatOptions options,
+                                          Set< Object > seen,
+                                          boolean checkIfMoreToString )
+                                              throws IOException {
+      if ( checkIfMoreToString && pair instanceof MoreToString ) {
+        appendMoreToString( out, (MoreToString)pair, options, seen );
+        return;
+      }
+      appendElements( out, pair,
+                      Arrays.<Object>asList( pair.first, pair.second ).iterator(),
+                      options, seen );
+    }
+
+    public static < T > void appendTo( Appendable out, final T[] array,
+                                       boolean withHash, boolean deep,
+                                       Set< Object > seen,
+                                       Map< String, Object > otherOptions,
+                                       int formatKey ) throws IOException {
+      appendTo( out, array,
+                FormatOptions.valueOf( withHash, deep, otherOptions )
+                             .withFormat( formatKey ), seen );
+    }
+    public static < T > void appendTo( Appendable out, final T[] array,
+                                       boolean withHash, boolean deep,
+                                       Set< Object > seen,
+                                       Map< String, Object > otherOptions )
+                                           throws IOException {
+      appendTo( out, array,
+                FormatOptions.valueOf( withHash, deep, otherOptions ), seen );
+    }
+    public static < T > void appendTo( Appendable out, final T[] array,
+                                       boolean withHash, boolean deep,
+                                       Set< Object > seen,
+                                       Map< String, Object > otherOptions,
+                                       String prefix, String delimiter,
+                                       String suffix ) throws IOException {
+      appendTo( out, array,
+                FormatOptions.valueOf( withHash, deep, otherOptions )
+                             .withFormat( prefix, delimiter, suffix ), seen );
+    }
+    /**
+     * Appends the elements of an array to out between the prefix and suffix
+     * of the options and separated by the delimiter. Elements are written to
+     * out directly, recursively if deep, without the format unless
+     * formatDeep.
+     */
+    public static < T > void appendTo( Appendable out, final T[] array,
+                                       FormatOptions options,
+                                       Set< Object > seen ) throws IOException {
+      appendElements( out, array, Arrays.asList( array ).iterator(), options,
+                      seen );
+    }
+
+    /**
+     * Appends the elements of a collection, map, array, or pair to out. If
+     * the options have limits, the elements are written through a
+     * {@link Budget}, which stops at the limits and writes the container
+     * instead as a marker if it is too deep or is already being written.
+     * 
+     * @param container
+     *          the collection, map, array, or pair, which identifies it to
+     *          the budget
+     */
+    protected static void appendElements( Appendable out, Object container,
+                                          Iterator< ? > elements,
+                                          FormatOptions options,
+                                          Set< Object > seen )
+                                              throws IOException {
+      Budget budget = Budget.begin( out, options );
+      if ( budget != null ) {
+        try {
+          appendElements( budget, container, elements, options, seen );
+        } catch ( Budget.Exhausted e ) {
+          // The budget has written the truncation marker.
+        }
+        return;
+      }
+      budget = out instanceof Budget ? (Budget)out : null;
+      if ( budget != null && !budget.enter( container ) ) return;
+      try {
+        String prefix = options.getPrefix();
+        String delimiter = options.getDelimiter();
+        String suffix = options.getSuffix();
+        if ( prefix == null ) {
+          prefix = "[";
+          suffix = "]";
+        }
+        if ( prefix.equals("{") && !suffix.equals("}") ) {
+          suffix = "}";
+        }
+        if ( delimiter == null ) {
+          delimiter = ", ";
+        }
+        FormatOptions elementOptions =
+            options.isFormatDeep() ? options : options.withoutFormat();
+        boolean deep = options.isDeep();
+        out.append( prefix );
+        int count = 0;
+        while ( elements.hasNext() ) {
+          Object object = elements.next();
+          if ( count > 0 ) {
+            out.append( delimiter );
+          }
+          if ( budget != null && !budget.hasRoomForElement( count ) ) {
+            out.append( Budget.TRUNCATED );
+            break;
+          }
+          ++count;
+          if ( deep && ( seen == null || !seen.contains( object ) )
+               && ( budget == null || budget.canGoDeeper() ) ) {
+            appendTo( out, object, elementOptions, seen );
+          } else {
+            appendShortTo( out, object );
+          }
+        }
+        out.append( suffix );
+      } finally {
+        if ( budget != null ) budget.exit( container );
+      }
+    }
+
+    /**
+     * @return a Set that compares objects by identity for the seen argument
+     *         of toString(), so that checking it does not call the equals()
+     *         and hashCode() of the objects being written
+     */
+    public static Set< Object > newIdentitySet() {
+      return Collections.newSetFromMap( new IdentityHashMap< Object, Boolean >() );
+    }
+
+    /**
+     * Write an object deeply within limits, as for a log message. The limits
+     * carry into MoreToString objects written along the way. Cycles among
+     * collections, maps, arrays, pairs, and MoreToString objects are cut off
+     * even if no limit is set.
+     * 
+     * @see FormatOptions#withLimits(int, int, int)
+     * @return the string representation of the object, cut off at the limits
+     */
+    public static String toLimitedString( Object object, int maxDepth,
+                                          int maxElements, int maxLength ) {
+      FormatOptions options =
+          FormatOptions.get( NO_FORMAT, false, true, false )
+                       .withLimits( maxDepth, maxElements, maxLength );
+      StringBuilder sb = new StringBuilder();
+      try {
+        appendTo( new Budget( sb, options ), object, options,
+                  newIdentitySet() );
+      } catch ( Budget.Exhausted e ) {
+        // The budget has written the truncation marker.
+      } catch ( IOException e ) {
+        // StringBuilder does not throw IOException.
       }
-      sb.append( suffix );
       return sb.toString();
     }
     
-    public static List<String> fromString( String s, String prefix,
+    /**
+     * Compiled patterns by regular expression for the fromString() parsers.
+     */
+    private static final Map< String, Pattern > patterns =
+        new ConcurrentHashMap< String, Pattern >();
+
+    /**
+     * @return the compiled pattern for the regular expression, compiling it
+     *         only the first time it is used
+     */
+    public static Pattern getPattern( String regex ) {
+      Pattern p = patterns.get( regex );
+      if ( p == null ) {
+        p = Pattern.compile( regex );
+        // Callers that build patterns on the fly should not grow the cache
+        // without bound.
+        if ( patterns.size() > 1000 ) patterns.clear();
+        patterns.put( regex, p );
+      }
+      return p;
+    }
+
+    public static List<String> fromString( CharSequence s, String prefix,
                                            String delimiter, String suffix ) {
       List<String> list = Utils.getEmptyList();
-      Pattern p = Pattern.compile(prefix);
-      Matcher matcher = p.matcher( s );
+      Matcher matcher = getPattern( prefix ).matcher( s );
       if ( !matcher.find() ) return list;
-      p = Pattern.compile( delimiter );
-      String[] arr = p.split( s.substring( matcher.end() ) );
+      Pattern p = getPattern( delimiter );
+      String[] arr = p.split( CharBuffer.wrap( s, matcher.end(), s.length() ) );
       String last = arr[arr.length-1];
-      p = Pattern.compile(suffix);
-      matcher = p.matcher( last );
+      matcher = getPattern( suffix ).matcher( last );
       int startPos = -1;
       while (matcher.find()) {
         startPos = matcher.start();
@@ -755,12 +1920,18 @@ public interface MoreToString {
       return list;
     }
     
-    public static void fromString( Map< String, String > map, String s ) {
+    public static void fromString( Map< String, String > map, CharSequence s ) {
       fromString( map, s, "[\\[{(]\\s*", ",\\s*", "\\s*[\\]})]", "[\\[{(]\\s*",
                   "\\s*=\\s*", "\\s*[\\]})]" );
     }
     
-    public static void fromString( Map< String, String > map, String s,
+    /**
+     * Parse key-value pairs from s into map in one pass. Each pattern is
+     * compiled once and has one Matcher that searches the region of s after
+     * the last match, which matches as it would on s.substring( start )
+     * without copying it. Only the keys and values are copied.
+     */
+    public static void fromString( Map< String, String > map, CharSequence s,
                                    String prefix,
                                    String delimiter,
                                    String suffix,
@@ -771,97 +1942,84 @@ public interface MoreToString {
       if ( map == null ) map = new HashMap< String, String >();
       map.clear();
       
-      Pattern p = Pattern.compile(prefix);
-      Matcher matcher = p.matcher( s );
+      Matcher matcher = getPattern( prefix ).matcher( s );
       if ( !matcher.find() ) return;
       int start = matcher.end();
+      int end = s.length();
       
-      Pattern d = Pattern.compile( delimiter );
-      Pattern kvp = Pattern.compile( keyValuePrefix );
-      Pattern kvd = Pattern.compile( keyValueDelimiter );
-      Pattern kvs = Pattern.compile( keyValueSuffix );
+      Matcher d = getPattern( delimiter ).matcher( s );
+      Matcher kvp = getPattern( keyValuePrefix ).matcher( s );
+      Matcher kvd = getPattern( keyValueDelimiter ).matcher( s );
+      Matcher kvs = getPattern( keyValueSuffix ).matcher( s );
       boolean gotDelimiter = true;
       while ( gotDelimiter ) {
-        if ( Debug.isOn() ) Debug.outln("\nstart = " + start);
-        if ( Debug.isOn() ) Debug.outln("substring = " + s.substring( start ) );
         // find key-value prefix
-        matcher = kvp.matcher( s.substring( start ) );
-        if ( !matcher.find() ) break;
-        start = start + matcher.end();
-
-        if ( Debug.isOn() ) Debug.outln("\nkvp match = " + matcher.group() );
-        if ( Debug.isOn() ) Debug.outln("matcher.start() = " + matcher.start());
-        if ( Debug.isOn() ) Debug.outln("matcher.end() = " + matcher.end());
-        if ( Debug.isOn() ) Debug.outln("\nstart = " + start);
-        if ( Debug.isOn() ) Debug.outln("substring = " + s.substring( start ) );
-        
+        kvp.region( start, end );
+        if ( !kvp.find() ) break;
+        start = kvp.end();
+
         // find delimiter between key and value
-        matcher = kvd.matcher( s.substring( start ) );
-        if ( !matcher.find() ) break;
+        kvd.region( start, end );
+        if ( !kvd.find() ) break;
         // get the key as the characters before the key-value delimiter
-        String key = s.substring( start, start + matcher.start() );
-        start = start + matcher.end();
-
-        if ( Debug.isOn() ) Debug.outln("\nkvd match = " + matcher.group() );
-        if ( Debug.isOn() ) Debug.outln("matcher.start() = " + matcher.start());
-        if ( Debug.isOn() ) Debug.outln("matcher.end() = " + matcher.end());
-        if ( Debug.isOn() ) Debug.outln("\nkey = " + key);
-        if ( Debug.isOn() ) Debug.outln("\nstart = " + start);
-        if ( Debug.isOn() ) Debug.outln("substring = " + s.substring( start ) );
-        
-        // get the value between the key-value delimiter and the key-value suffix
-        matcher = kvs.matcher( s.substring( start ) );
-        if ( !matcher.find() ) break;
-        String value = s.substring( start, start + matcher.start() );
-        start = start + matcher.end();
-        boolean foundValue = matcher.start() != 0;
-
-        if ( Debug.isOn() ) Debug.outln("\nkvs match = " + matcher.group() );
-        if ( Debug.isOn() ) Debug.outln("matcher.start() = " + matcher.start());
-        if ( Debug.isOn() ) Debug.outln("matcher.end() = " + matcher.end());
-        if ( foundValue ) {
-            if ( Debug.isOn() ) Debug.outln("\nvalue = " + value);
-        }
-        if ( Debug.isOn() ) Debug.outln("\nstart = " + start);
-        if ( Debug.isOn() ) Debug.outln("substring = " + s.substring( start ) );
+        String key = s.subSequence( start, kvd.start() ).toString();
+        start = kvd.end();
 
+        // get the value between the key-value delimiter and the key-value suffix
+        kvs.region( start, end );
+        if ( !kvs.find() ) break;
+        boolean foundValue = kvs.start() != start;
+        String value = null;
         if ( foundValue ) {
           // add the key-value pair to the map
+          value = s.subSequence( start, kvs.start() ).toString();
           map.put( key, value );
         }
+        start = kvs.end();
 
         // skip over the delimiter
-        matcher = d.matcher( s.substring( start ) );
+        d.region( start, end );
         // set the start position at the end of the delimiter to get the next pair
-        gotDelimiter = matcher.find();
+        gotDelimiter = d.find();
         
         if ( !foundValue ) {
           if ( gotDelimiter ) {
-            foundValue = matcher.start() != 0;
+            foundValue = d.start() != start;
             if ( !foundValue ) {
-              System.err.println("Error! fromString(): no value parsed from " + s.substring(start));
+              Debug.error( true, false, "Error! fromString(): no value parsed from "
+                                        + excerpt( s, start, end ) );
             }
-            value = s.substring( start, start + matcher.start() );
+            value = s.subSequence( start, d.start() ).toString();
           } else {
-            value = s.substring( start );
+            value = s.subSequence( start, end ).toString();
           }
-          if ( Debug.isOn() ) Debug.outln("\nvalue = " + value);
           map.put( key, value );          
         }
 
         if ( gotDelimiter ) {
-          start = start + matcher.end();
-          
-          if ( Debug.isOn() ) Debug.outln("\nd match = " + matcher.group() );
-          if ( Debug.isOn() ) Debug.outln("matcher.start() = " + matcher.start());
-          if ( Debug.isOn() ) Debug.outln("matcher.end() = " + matcher.end());
-          if ( Debug.isOn() ) Debug.outln("\nstart = " + start);
-          if ( Debug.isOn() ) Debug.outln("substring = " + s.substring( start ) );
+          start = d.end();
         }
         
       }
       if ( Debug.isOn() ) Debug.outln("parsed map = " + map );
     }
+
+    /**
+     * The most characters of the input that a fromString() error message
+     * copies.
+     */
+    protected static final int MAX_EXCERPT_LENGTH = 40;
+
+    /**
+     * @return the characters of s from start to end, cut to
+     *         MAX_EXCERPT_LENGTH characters followed by Budget.TRUNCATED
+     */
+    protected static String excerpt( CharSequence s, int start, int end ) {
+      if ( end - start <= MAX_EXCERPT_LENGTH ) {
+        return s.subSequence( start, end ).toString();
+      }
+      return s.subSequence( start, start + MAX_EXCERPT_LENGTH ) + Budget.TRUNCATED;
+    }
     
     private static String readLine(String format, Object... args) {
       if (System.console() != null) {
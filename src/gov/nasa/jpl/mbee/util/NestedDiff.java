@@ -0,0 +1,230 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * NestedDiff compares two structured values by recursing into their parts and
+ * returns a tree of changes. The parts of a value are found by an
+ * {@link Extractor}. The result for each pair of values that have parts is
+ * memoized by the values' ids (or by identity if they have no id), so shared
+ * sub-objects are diffed once per NestedDiff. A pair of values that is reached
+ * again while it is being diffed (a cycle) is assumed to be the same; its
+ * changes are reported where it was first reached.
+ * <p>
+ * Because results are shared, the change tree may be a directed acyclic graph.
+ */
+public class NestedDiff {
+
+    /**
+     * Gets the parts of structured values.
+     */
+    public static interface Extractor {
+        /**
+         * @return the parts of the value by key or null if the value should be
+         *         compared as a whole
+         */
+        public Map< Object, Object > getChildren( Object value );
+
+        /**
+         * @return an id under which to memoize the diffs of the value or null
+         *         to memoize by identity
+         */
+        public Object getId( Object value );
+    }
+
+    /**
+     * An {@link Extractor} for {@link Map}s, {@link List}s, and arrays. Values
+     * that implement {@link HasId} are memoized by their ids.
+     */
+    public static class DefaultExtractor implements Extractor {
+        @Override
+        public Map< Object, Object > getChildren( Object value ) {
+            if ( value instanceof Map ) {
+                return new LinkedHashMap< Object, Object >( (Map< ?, ? >)value );
+            }
+            List< ? > list = null;
+            if ( value instanceof List ) list = (List< ? >)value;
+            else if ( value instanceof Object[] ) list = Arrays.asList( (Object[])value );
+            if ( list == null ) return null;
+            Map< Object, Object > children = new LinkedHashMap< Object, Object >();
+            int i = 0;
+            for ( Object o : list ) {
+                children.put( i++, o );
+            }
+            return children;
+        }
+
+        @Override
+        public Object getId( Object value ) {
+            if ( value instanceof HasId ) return ( (HasId< ? >)value ).getId();
+            return null;
+        }
+    }
+
+    /**
+     * A change of a value: added, removed, or updated. An updated value that
+     * has parts has the changes of its parts as children.
+     */
+    public static class Change {
+        public PropertyChange.Kind kind;
+        public Object value1;
+        public Object value2;
+        public Map< Object, Change > children = null;
+
+        public Change( PropertyChange.Kind kind, Object value1, Object value2 ) {
+            this.kind = kind;
+            this.value1 = value1;
+            this.value2 = value2;
+        }
+
+        public Map< Object, Change > getChildren() {
+            if ( children == null ) return Utils.getEmptyMap();
+            return children;
+        }
+
+        @Override
+        public String toString() {
+            if ( children == null ) {
+                return kind + "(" + value1 + ", " + value2 + ")";
+            }
+            return kind + "" + children;
+        }
+    }
+
+    /**
+     * The key of a memoized diff: the ids of two values, where each id is
+     * compared by identity if the value has no id.
+     */
+    protected static class MemoKey {
+        protected Object key1;
+        protected boolean identity1;
+        protected Object key2;
+        protected boolean identity2;
+
+        public MemoKey( Object key1, boolean identity1, Object key2,
+                        boolean identity2 ) {
+            this.key1 = key1;
+            this.identity1 = identity1;
+            this.key2 = key2;
+            this.identity2 = identity2;
+        }
+
+        @Override
+        public int hashCode() {
+            int h1 = identity1 ? System.identityHashCode( key1 ) : key1.hashCode();
+            int h2 = identity2 ? System.identityHashCode( key2 ) : key2.hashCode();
+            return h1 * 31 + h2;
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            if ( !( o instanceof MemoKey ) ) return false;
+            MemoKey k = (MemoKey)o;
+            return identity1 == k.identity1 && identity2 == k.identity2
+                   && ( identity1 ? key1 == k.key1 : key1.equals( k.key1 ) )
+                   && ( identity2 ? key2 == k.key2 : key2.equals( k.key2 ) );
+        }
+    }
+
+    protected Extractor extractor;
+    protected Map< MemoKey, Change > memo = new HashMap< MemoKey, Change >();
+    protected Seen< MemoKey > seen = new SeenHashSet< MemoKey >();
+
+    public NestedDiff( Extractor extractor ) {
+        this.extractor = extractor == null ? new DefaultExtractor() : extractor;
+    }
+
+    public NestedDiff() {
+        this( null );
+    }
+
+    /**
+     * Forget memoized results, for example, before a new diff run.
+     */
+    public void clear() {
+        memo.clear();
+        seen.clear();
+    }
+
+    /**
+     * @return the changes from value1 to value2 or null if they are the same
+     */
+    public Change diff( Object value1, Object value2 ) {
+        if ( value1 == value2 ) return null;
+        if ( value1 == null ) {
+            return new Change( PropertyChange.Kind.ADDED, null, value2 );
+        }
+        if ( value2 == null ) {
+            return new Change( PropertyChange.Kind.REMOVED, value1, null );
+        }
+        // only values with parts are memoized, so check before extracting them
+        MemoKey key = memoKey( value1, value2 );
+        if ( memo.containsKey( key ) ) return memo.get( key );
+        if ( seen.contains( key ) ) return null;
+
+        Map< Object, Object > children1 = extractor.getChildren( value1 );
+        Map< Object, Object > children2 =
+                children1 == null ? null : extractor.getChildren( value2 );
+        if ( children1 == null || children2 == null ) {
+            if ( sameLeaf( value1, value2 ) ) return null;
+            return new Change( PropertyChange.Kind.UPDATED, value1, value2 );
+        }
+        seen.add( key );
+
+        Change change = new Change( PropertyChange.Kind.UPDATED, value1, value2 );
+        Set< Object > keys = new LinkedHashSet< Object >( children1.keySet() );
+        keys.addAll( children2.keySet() );
+        for ( Object k : keys ) {
+            Change childChange = diff( children1.get( k ), children2.get( k ) );
+            if ( childChange != null ) {
+                if ( change.children == null ) {
+                    change.children = new LinkedHashMap< Object, Change >();
+                }
+                change.children.put( k, childChange );
+            }
+        }
+        seen.remove( key );
+        if ( change.children == null ) change = null;
+        memo.put( key, change );
+        return change;
+    }
+
+    /**
+     * Diff the values of two maps by key.
+     *
+     * @return the changes by key, which are empty if the maps are the same
+     */
+    public Map< Object, Change > diff( Map< ?, ? > map1, Map< ?, ? > map2,
+                                       Collection< ? > keys ) {
+        Map< Object, Change > changes = new LinkedHashMap< Object, Change >();
+        for ( Object k : keys ) {
+            Change change = diff( map1 == null ? null : map1.get( k ),
+                                  map2 == null ? null : map2.get( k ) );
+            if ( change != null ) changes.put( k, change );
+        }
+        return changes;
+    }
+
+    protected MemoKey memoKey( Object value1, Object value2 ) {
+        Object id1 = extractor.getId( value1 );
+        Object id2 = extractor.getId( value2 );
+        return new MemoKey( id1 == null ? value1 : id1, id1 == null,
+                            id2 == null ? value2 : id2, id2 == null );
+    }
+
+    /**
+     * Override this method to change how values without parts are compared.
+     */
+    protected boolean sameLeaf( Object value1, Object value2 ) {
+        return Utils.valuesEqual( value1, value2 )
+               || CompareUtils.compare( value1, value2 ) == 0;
+    }
+
+}
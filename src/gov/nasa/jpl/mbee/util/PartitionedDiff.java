@@ -0,0 +1,503 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * PartitionedDiff diffs two sets of objects that are too large to diff in one
+ * heap. Objects are hash-partitioned by id into shard files as they are added.
+ * {@link #run()} then diffs each shard in a separate worker, either a thread
+ * that loads only its shard or a local child JVM, and writes each shard's
+ * results to a file. The results are merged by streaming them shard by shard
+ * to a {@link Listener} or, if they fit, by loading them into one map.
+ * <p>
+ * Shards are chosen by the ids' {@link Object#hashCode()}, which must be the
+ * same in every process (as it is for Strings and Numbers). The objects, ids,
+ * and property values are written by a {@link Spec}, which also creates the
+ * {@link AbstractDiff} for each shard. To use child processes, the Spec must
+ * be a public class with a public no-argument constructor on the classpath.
+ *
+ * @param <T>
+ *            object type
+ * @param <P>
+ *            property type
+ * @param <ID>
+ *            identifier type
+ */
+public class PartitionedDiff< T, P, ID > {
+
+    protected static final String DIFF_SUFFIX = ".diff";
+
+    /**
+     * The kinds of records in a result file, in which a record of an object
+     * is its kind, its id, and its property changes.
+     */
+    protected static final int END_RECORD = 0;
+    protected static final int UPDATED_RECORD = 1;
+    protected static final int ADDED_RECORD = 2;
+    protected static final int REMOVED_RECORD = 3;
+
+    /**
+     * Creates the diff for a shard and writes and reads the objects, ids,
+     * and property values in shard and result files.
+     */
+    public static interface Spec< T, P, ID > {
+        public AbstractDiff< T, P, ID > newDiff( Map< ID, T > map1,
+                                                 Map< ID, T > map2 );
+
+        public void writeObject( DataOutput out, T t ) throws IOException;
+
+        public T readObject( DataInput in ) throws IOException;
+
+        public DiffPatch.Codec< P, ID > getCodec();
+    }
+
+    /**
+     * Receives each added, removed, and updated object from the merged
+     * results along with its property changes, which may be empty for an
+     * added or removed object.
+     */
+    public static interface Listener< P, ID > {
+        public void objectDiff( ID id, PropertyChange.Kind kind,
+                                Map< ID, PropertyChange< P > > changes );
+    }
+
+    protected Spec< T, P, ID > spec;
+    protected int numShards;
+    protected File directory;
+    protected DataOutputStream[] shards1 = null;
+    protected DataOutputStream[] shards2 = null;
+    protected boolean done = false;
+
+    /**
+     * Whether each shard is diffed in a child JVM instead of a thread.
+     */
+    protected boolean useProcesses = false;
+    protected int maxWorkers = Runtime.getRuntime().availableProcessors();
+    protected String javaCommand =
+            System.getProperty( "java.home" ) + File.separator + "bin"
+                    + File.separator + "java";
+    protected String classpath = System.getProperty( "java.class.path" );
+    protected List< String > jvmOptions = new ArrayList< String >();
+
+    /**
+     * @param spec
+     *            creates the shard diffs and writes and reads their data
+     * @param numShards
+     *            the number of partitions of the ids
+     * @param directory
+     *            an existing directory for the shard and result files
+     */
+    public PartitionedDiff( Spec< T, P, ID > spec, int numShards,
+                            File directory ) {
+        this.spec = spec;
+        this.numShards = numShards;
+        this.directory = directory;
+    }
+
+    /**
+     * @return the shard of the id
+     */
+    public int shardOf( ID id ) {
+        long h = AbstractDiff.mix64( id == null ? 0 : id.hashCode() );
+        return (int)( ( h >>> 1 ) % numShards );
+    }
+
+    public File getShardFile( int shard, boolean isSet1 ) {
+        return new File( directory, "shard" + shard + ( isSet1 ? "_1" : "_2" ) );
+    }
+
+    public File getResultFile( int shard ) {
+        return new File( directory, "shard" + shard + DIFF_SUFFIX );
+    }
+
+    /**
+     * Add an object to the first set.
+     */
+    public void add1( ID id, T t ) throws IOException {
+        add( id, t, true );
+    }
+
+    /**
+     * Add an object to the second set.
+     */
+    public void add2( ID id, T t ) throws IOException {
+        add( id, t, false );
+    }
+
+    protected void add( ID id, T t, boolean isSet1 ) throws IOException {
+        if ( done ) {
+            throw new IllegalStateException( "PartitionedDiff: objects added after run()" );
+        }
+        if ( shards1 == null ) openShards();
+        DataOutputStream out = ( isSet1 ? shards1 : shards2 )[ shardOf( id ) ];
+        out.writeBoolean( true );
+        spec.getCodec().writeId( out, id );
+        spec.writeObject( out, t );
+    }
+
+    protected void openShards() throws IOException {
+        shards1 = new DataOutputStream[ numShards ];
+        shards2 = new DataOutputStream[ numShards ];
+        for ( int i = 0; i < numShards; ++i ) {
+            shards1[ i ] = openFile( getShardFile( i, true ) );
+            shards2[ i ] = openFile( getShardFile( i, false ) );
+        }
+    }
+
+    protected static DataOutputStream openFile( File file ) throws IOException {
+        return new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) );
+    }
+
+    protected void closeShards() throws IOException {
+        for ( int i = 0; i < numShards; ++i ) {
+            shards1[ i ].writeBoolean( false );
+            shards1[ i ].close();
+            shards2[ i ].writeBoolean( false );
+            shards2[ i ].close();
+        }
+        shards1 = null;
+        shards2 = null;
+    }
+
+    /**
+     * Diff every shard, at most {@link #getMaxWorkers()} at a time, and write
+     * the results of each to its result file. This may only be called once,
+     * after all objects are added.
+     */
+    public void run() throws IOException {
+        if ( done ) {
+            throw new IllegalStateException( "PartitionedDiff: run() called more than once" );
+        }
+        done = true;
+        if ( shards1 == null ) {
+            // Nothing was added, so no shard files were opened.
+            for ( int i = 0; i < numShards; ++i ) {
+                DataOutputStream dout = openFile( getResultFile( i ) );
+                try {
+                    dout.writeByte( END_RECORD );
+                } finally {
+                    dout.close();
+                }
+            }
+            return;
+        }
+        closeShards();
+        ExecutorService executor =
+                Executors.newFixedThreadPool( Math.max( 1, Math.min( maxWorkers,
+                                                                     numShards ) ) );
+        try {
+            List< Future< Void > > futures = new ArrayList< Future< Void > >();
+            for ( int i = 0; i < numShards; ++i ) {
+                final int shard = i;
+                futures.add( executor.submit( new Callable< Void >() {
+                    @Override
+                    public Void call() throws Exception {
+                        runShard( shard );
+                        return null;
+                    }
+                } ) );
+            }
+            for ( Future< Void > future : futures ) {
+                future.get();
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "PartitionedDiff: interrupted", e );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof IOException ) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException( "PartitionedDiff: shard failed", e.getCause() );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    protected void runShard( int shard ) throws IOException,
+                                                InterruptedException {
+        File in1 = getShardFile( shard, true );
+        File in2 = getShardFile( shard, false );
+        File out = getResultFile( shard );
+        if ( !useProcesses ) {
+            diffShard( spec, in1, in2, out );
+            return;
+        }
+        List< String > command = new ArrayList< String >();
+        command.add( javaCommand );
+        command.addAll( jvmOptions );
+        command.add( "-cp" );
+        command.add( classpath );
+        command.add( PartitionedDiff.class.getName() );
+        command.add( spec.getClass().getName() );
+        command.add( in1.getPath() );
+        command.add( in2.getPath() );
+        command.add( out.getPath() );
+        Process process = new ProcessBuilder( command ).inheritIO().start();
+        int status = process.waitFor();
+        if ( status != 0 ) {
+            throw new IOException( "PartitionedDiff: worker for shard " + shard
+                                   + " exited with status " + status );
+        }
+    }
+
+    /**
+     * Diff the objects in two shard files and write the added, removed, and
+     * updated objects to a result file. Added and removed objects are written
+     * even if they have no property changes.
+     */
+    public static < T, P, ID > void diffShard( Spec< T, P, ID > spec,
+                                               File in1, File in2,
+                                               File out ) throws IOException {
+        AbstractDiff< T, P, ID > diff =
+                spec.newDiff( readShard( spec, in1 ), readShard( spec, in2 ) );
+        diff.diff();
+        DiffPatch.Codec< P, ID > codec = spec.getCodec();
+        Map< ID, Map< ID, Pair< P, P > > > propertyChanges =
+                diff.getPropertyChanges();
+        Set< ID > changedIds = diff.getChangedIds();
+        Set< ID > addedIds = diff.getAddedIds();
+        Set< ID > removedIds = diff.getRemovedIds();
+        DataOutputStream dout = openFile( out );
+        try {
+            for ( ID id : addedIds ) {
+                if ( !changedIds.contains( id ) ) continue;
+                writeRecord( dout, codec, ADDED_RECORD, id,
+                             propertyChanges.get( id ) );
+            }
+            for ( ID id : removedIds ) {
+                if ( !changedIds.contains( id ) ) continue;
+                writeRecord( dout, codec, REMOVED_RECORD, id,
+                             propertyChanges.get( id ) );
+            }
+            for ( Map.Entry< ID, Map< ID, Pair< P, P > > > e : propertyChanges.entrySet() ) {
+                if ( e.getValue() == null || e.getValue().isEmpty() ) continue;
+                if ( addedIds.contains( e.getKey() )
+                     || removedIds.contains( e.getKey() ) ) {
+                    continue;
+                }
+                writeRecord( dout, codec, UPDATED_RECORD, e.getKey(),
+                             e.getValue() );
+            }
+            dout.writeByte( END_RECORD );
+        } finally {
+            dout.close();
+        }
+    }
+
+    protected static < P, ID > void writeRecord( DataOutputStream dout,
+                                                 DiffPatch.Codec< P, ID > codec,
+                                                 int record, ID id,
+                                                 Map< ID, Pair< P, P > > changes ) throws IOException {
+        dout.writeByte( record );
+        codec.writeId( dout, id );
+        if ( changes == null ) {
+            DiffPatch.writeVarInt( dout, 0 );
+            return;
+        }
+        DiffPatch.writeVarInt( dout, changes.size() );
+        for ( Map.Entry< ID, Pair< P, P > > pe : changes.entrySet() ) {
+            Pair< P, P > p = pe.getValue();
+            PropertyChange.Kind kind =
+                    p instanceof PropertyChange
+                            ? ( (PropertyChange< P >)p ).kind
+                            : PropertyChange.newChange( p.first, p.second ).kind;
+            codec.writeId( dout, pe.getKey() );
+            dout.writeByte( kind.ordinal() );
+            if ( kind != PropertyChange.Kind.ADDED ) {
+                codec.writeValue( dout, p.first );
+            }
+            if ( kind != PropertyChange.Kind.REMOVED ) {
+                codec.writeValue( dout, p.second );
+            }
+        }
+    }
+
+    protected static < T, P, ID > Map< ID, T > readShard( Spec< T, P, ID > spec,
+                                                          File file ) throws IOException {
+        Map< ID, T > map = new LinkedHashMap< ID, T >();
+        DataInputStream in = openInput( file );
+        try {
+            while ( in.readBoolean() ) {
+                ID id = spec.getCodec().readId( in );
+                map.put( id, spec.readObject( in ) );
+            }
+        } finally {
+            in.close();
+        }
+        return map;
+    }
+
+    protected static DataInputStream openInput( File file ) throws IOException {
+        return new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+    }
+
+    /**
+     * Stream the results of all shards, in shard order, to a listener. Only
+     * one object's changes are in memory at a time.
+     */
+    public void read( Listener< P, ID > listener ) throws IOException {
+        if ( !done ) {
+            throw new IllegalStateException( "PartitionedDiff: results read before run()" );
+        }
+        PropertyChange.Kind[] kinds = PropertyChange.Kind.values();
+        DiffPatch.Codec< P, ID > codec = spec.getCodec();
+        for ( int i = 0; i < numShards; ++i ) {
+            DataInputStream in = openInput( getResultFile( i ) );
+            try {
+                int record;
+                while ( ( record = in.readUnsignedByte() ) != END_RECORD ) {
+                    PropertyChange.Kind objectKind =
+                            record == ADDED_RECORD ? PropertyChange.Kind.ADDED
+                            : record == REMOVED_RECORD ? PropertyChange.Kind.REMOVED
+                            : PropertyChange.Kind.UPDATED;
+                    ID id = codec.readId( in );
+                    int n = DiffPatch.readVarInt( in );
+                    Map< ID, PropertyChange< P > > changes =
+                            new LinkedHashMap< ID, PropertyChange< P > >();
+                    for ( int j = 0; j < n; ++j ) {
+                        ID pid = codec.readId( in );
+                        PropertyChange.Kind kind = kinds[ in.readUnsignedByte() ];
+                        P first = kind == PropertyChange.Kind.ADDED
+                                  ? null : codec.readValue( in );
+                        P second = kind == PropertyChange.Kind.REMOVED
+                                   ? null : codec.readValue( in );
+                        changes.put( pid, new PropertyChange< P >( kind, first,
+                                                                   second ) );
+                    }
+                    listener.objectDiff( id, objectKind, changes );
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Load the results of all shards into one map in the form of
+     * {@link Diff#getPropertyChanges()}, with an entry for every added,
+     * removed, and updated object. Use {@link #read(Listener)} for results
+     * that do not fit in memory.
+     */
+    public Map< ID, Map< ID, Pair< P, P > > > getPropertyChanges() throws IOException {
+        final Map< ID, Map< ID, Pair< P, P > > > propertyChanges =
+                new LinkedHashMap< ID, Map< ID, Pair< P, P > > >();
+        read( new Listener< P, ID >() {
+            @Override
+            public void objectDiff( ID id, PropertyChange.Kind kind,
+                                    Map< ID, PropertyChange< P > > changes ) {
+                propertyChanges.put( id, new LinkedHashMap< ID, Pair< P, P > >( changes ) );
+            }
+        } );
+        return propertyChanges;
+    }
+
+    /**
+     * Load the ids of the added, removed, and updated objects of all shards.
+     *
+     * @return a list of the sets of added, removed, and updated ids in the
+     *         form of {@link AbstractDiff#getIdDiff()}, where the updated ids
+     *         are only those with property changes
+     */
+    public List< Set< ID > > getIdDiff() throws IOException {
+        final List< Set< ID > > idDiff = new ArrayList< Set< ID > >();
+        for ( int i = 0; i < 3; ++i ) {
+            idDiff.add( new LinkedHashSet< ID >() );
+        }
+        read( new Listener< P, ID >() {
+            @Override
+            public void objectDiff( ID id, PropertyChange.Kind kind,
+                                    Map< ID, PropertyChange< P > > changes ) {
+                idDiff.get( kind.ordinal() ).add( id );
+            }
+        } );
+        return idDiff;
+    }
+
+    /**
+     * Delete the shard and result files.
+     */
+    public void deleteFiles() {
+        for ( int i = 0; i < numShards; ++i ) {
+            getShardFile( i, true ).delete();
+            getShardFile( i, false ).delete();
+            getResultFile( i ).delete();
+        }
+    }
+
+    /**
+     * Worker entry point: diff one shard in this process.
+     *
+     * @param args
+     *            the Spec class name, the two shard files, and the result file
+     */
+    public static void main( String[] args ) {
+        if ( args.length != 4 ) {
+            System.err.println( "usage: PartitionedDiff <Spec class> <shard1> <shard2> <result>" );
+            System.exit( 2 );
+        }
+        try {
+            Spec< ?, ?, ? > spec = (Spec< ?, ?, ? >)Class.forName( args[ 0 ] ).getDeclaredConstructor().newInstance();
+            diffShard( spec, new File( args[ 1 ] ), new File( args[ 2 ] ),
+                       new File( args[ 3 ] ) );
+        } catch ( Exception e ) {
+            e.printStackTrace();
+            System.exit( 1 );
+        }
+        System.exit( 0 );
+    }
+
+    public boolean isUsingProcesses() {
+        return useProcesses;
+    }
+
+    /**
+     * @param useProcesses whether to diff each shard in a child JVM
+     */
+    public void setUseProcesses( boolean useProcesses ) {
+        this.useProcesses = useProcesses;
+    }
+
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    public void setMaxWorkers( int maxWorkers ) {
+        this.maxWorkers = maxWorkers;
+    }
+
+    public String getClasspath() {
+        return classpath;
+    }
+
+    public void setClasspath( String classpath ) {
+        this.classpath = classpath;
+    }
+
+    /**
+     * @return the options passed to child JVMs, for example, "-Xmx2g"
+     */
+    public List< String > getJvmOptions() {
+        return jvmOptions;
+    }
+
+}
@@ -0,0 +1,37 @@
+package gov.nasa.jpl.mbee.util;
+
+/**
+ * A change to a property from one value to another, tagged with the kind of
+ * change. The old value is {@link #first} and the new value is
+ * {@link #second}.
+ *
+ * @param <P>
+ *            property type
+ */
+public class PropertyChange< P > extends Pair< P, P > {
+
+    public static enum Kind { ADDED, REMOVED, UPDATED };
+
+    public Kind kind;
+
+    public PropertyChange( Kind kind, P oldValue, P newValue ) {
+        super( oldValue, newValue );
+        this.kind = kind;
+    }
+
+    /**
+     * @return a change whose kind is determined by which values are null
+     */
+    public static < P > PropertyChange< P > newChange( P oldValue, P newValue ) {
+        Kind kind = oldValue == null ? Kind.ADDED
+                                     : ( newValue == null ? Kind.REMOVED
+                                                          : Kind.UPDATED );
+        return new PropertyChange< P >( kind, oldValue, newValue );
+    }
+
+    @Override
+    public PropertyChange< P > clone() {
+        return new PropertyChange< P >( kind, first, second );
+    }
+
+}
@@ -0,0 +1,340 @@
+package gov.nasa.jpl.mbee.util;
+
+import gov.nasa.jpl.mbee.util.CompareUtils.HashingStrategy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SequenceDiff computes an edit script that turns one list into another using
+ * Myers' O(ND) difference algorithm. The linear-space variant is used: the
+ * middle snake of the edit graph is found by searching forward and backward
+ * at the same time, and the two halves are diffed recursively, so space is
+ * O(N+M).
+ * <p>
+ * Optionally, an element that is deleted and inserted elsewhere is reported
+ * as a single move.
+ *
+ * @param <E>
+ *            element type
+ */
+public class SequenceDiff< E > {
+
+    public static enum Kind { INSERT, DELETE, MOVE };
+
+    /**
+     * One edit of an edit script. {@link #index1} is the position of the
+     * element in the first list (or -1 for an insert), and {@link #index2} is
+     * its position in the second list (or -1 for a delete).
+     */
+    public static class Edit< E > {
+        public Kind kind;
+        public int index1;
+        public int index2;
+        public E element;
+
+        public Edit( Kind kind, int index1, int index2, E element ) {
+            this.kind = kind;
+            this.index1 = index1;
+            this.index2 = index2;
+            this.element = element;
+        }
+
+        @Override
+        public String toString() {
+            return kind + "(" + index1 + ", " + index2 + ", " + element + ")";
+        }
+    }
+
+    protected List< ? extends E > list1;
+    protected List< ? extends E > list2;
+    protected HashingStrategy< ? super E > strategy;
+    protected List< Edit< E > > edits = new ArrayList< Edit< E > >();
+
+    /**
+     * @param list1
+     *            the first list
+     * @param list2
+     *            the second list
+     * @param strategy
+     *            compares and hashes elements or null to use equals() and
+     *            hashCode()
+     */
+    public SequenceDiff( List< ? extends E > list1, List< ? extends E > list2,
+                         HashingStrategy< ? super E > strategy ) {
+        this.list1 = list1 == null ? Utils.<E>getEmptyList() : list1;
+        this.list2 = list2 == null ? Utils.<E>getEmptyList() : list2;
+        this.strategy = strategy;
+    }
+
+    /**
+     * @return the edits that turn the first list into the second, with inserts
+     *         and deletes only
+     */
+    public static < E > List< Edit< E > > diff( List< ? extends E > list1,
+                                                List< ? extends E > list2 ) {
+        return diff( list1, list2, null, false );
+    }
+
+    /**
+     * @param list1
+     *            the first list
+     * @param list2
+     *            the second list
+     * @param strategy
+     *            compares and hashes elements or null to use equals() and
+     *            hashCode()
+     * @param detectMoves
+     *            whether to combine a delete and an insert of equal elements
+     *            into a move
+     * @return the edits that turn the first list into the second
+     */
+    public static < E > List< Edit< E > > diff( List< ? extends E > list1,
+                                                List< ? extends E > list2,
+                                                HashingStrategy< ? super E > strategy,
+                                                boolean detectMoves ) {
+        SequenceDiff< E > sd = new SequenceDiff< E >( list1, list2, strategy );
+        sd.diff();
+        if ( detectMoves ) sd.detectMoves();
+        return sd.edits;
+    }
+
+    public List< Edit< E > > getEdits() {
+        return edits;
+    }
+
+    public List< Edit< E > > diff() {
+        edits.clear();
+        diff( 0, list1.size(), 0, list2.size() );
+        return edits;
+    }
+
+    protected boolean same( E e1, E e2 ) {
+        if ( strategy != null ) return strategy.equals( e1, e2 );
+        return e1 == e2 || ( e1 != null && e1.equals( e2 ) );
+    }
+
+    /**
+     * Append the edits for list1[start1, end1) and list2[start2, end2).
+     */
+    protected void diff( int start1, int end1, int start2, int end2 ) {
+        // Common prefixes and suffixes need no search.
+        while ( start1 < end1 && start2 < end2
+                && same( list1.get( start1 ), list2.get( start2 ) ) ) {
+            ++start1;
+            ++start2;
+        }
+        int suffix = 0;
+        while ( start1 < end1 && start2 < end2
+                && same( list1.get( end1 - 1 ), list2.get( end2 - 1 ) ) ) {
+            --end1;
+            --end2;
+            ++suffix;
+        }
+        if ( start1 == end1 ) {
+            for ( int j = start2; j < end2; ++j ) {
+                edits.add( new Edit< E >( Kind.INSERT, -1, j, list2.get( j ) ) );
+            }
+        } else if ( start2 == end2 ) {
+            for ( int i = start1; i < end1; ++i ) {
+                edits.add( new Edit< E >( Kind.DELETE, i, -1, list1.get( i ) ) );
+            }
+        } else {
+            int[] split = middleSnake( start1, end1, start2, end2 );
+            if ( split == null ) {
+                for ( int i = start1; i < end1; ++i ) {
+                    edits.add( new Edit< E >( Kind.DELETE, i, -1, list1.get( i ) ) );
+                }
+                for ( int j = start2; j < end2; ++j ) {
+                    edits.add( new Edit< E >( Kind.INSERT, -1, j, list2.get( j ) ) );
+                }
+            } else {
+                diff( start1, split[ 0 ], start2, split[ 1 ] );
+                diff( split[ 0 ], end1, split[ 1 ], end2 );
+            }
+        }
+    }
+
+    /**
+     * Find a point on the middle snake of the edit graph of the two ranges by
+     * searching from both ends until the paths overlap.
+     *
+     * @return the absolute indices {x, y} at which to split the ranges or null
+     *         if the ranges have nothing in common
+     */
+    protected int[] middleSnake( int start1, int end1, int start2, int end2 ) {
+        int n = end1 - start1;
+        int m = end2 - start2;
+        int maxD = ( n + m + 1 ) / 2;
+        int offset = maxD;
+        int length = 2 * maxD + 2;
+        int[] v1 = new int[ length ];
+        int[] v2 = new int[ length ];
+        Arrays.fill( v1, -1 );
+        Arrays.fill( v2, -1 );
+        v1[ offset + 1 ] = 0;
+        v2[ offset + 1 ] = 0;
+        int delta = n - m;
+        // If the delta is odd, the forward path overlaps the reverse path.
+        boolean front = ( delta % 2 != 0 );
+        int k1start = 0, k1end = 0, k2start = 0, k2end = 0;
+        for ( int d = 0; d < maxD; ++d ) {
+            for ( int k1 = -d + k1start; k1 <= d - k1end; k1 += 2 ) {
+                int k1Offset = offset + k1;
+                int x1;
+                if ( k1 == -d || ( k1 != d && v1[ k1Offset - 1 ] < v1[ k1Offset + 1 ] ) ) {
+                    x1 = v1[ k1Offset + 1 ];
+                } else {
+                    x1 = v1[ k1Offset - 1 ] + 1;
+                }
+                int y1 = x1 - k1;
+                while ( x1 < n && y1 < m
+                        && same( list1.get( start1 + x1 ), list2.get( start2 + y1 ) ) ) {
+                    ++x1;
+                    ++y1;
+                }
+                v1[ k1Offset ] = x1;
+                if ( x1 > n ) {
+                    k1end += 2;
+                } else if ( y1 > m ) {
+                    k1start += 2;
+                } else if ( front ) {
+                    int k2Offset = offset + delta - k1;
+                    if ( k2Offset >= 0 && k2Offset < length && v2[ k2Offset ] != -1 ) {
+                        int x2 = n - v2[ k2Offset ];
+                        if ( x1 >= x2 ) return split( start1, end1, start2, end2, x1, y1 );
+                    }
+                }
+            }
+            for ( int k2 = -d + k2start; k2 <= d - k2end; k2 += 2 ) {
+                int k2Offset = offset + k2;
+                int x2;
+                if ( k2 == -d || ( k2 != d && v2[ k2Offset - 1 ] < v2[ k2Offset + 1 ] ) ) {
+                    x2 = v2[ k2Offset + 1 ];
+                } else {
+                    x2 = v2[ k2Offset - 1 ] + 1;
+                }
+                int y2 = x2 - k2;
+                while ( x2 < n && y2 < m
+                        && same( list1.get( end1 - x2 - 1 ), list2.get( end2 - y2 - 1 ) ) ) {
+                    ++x2;
+                    ++y2;
+                }
+                v2[ k2Offset ] = x2;
+                if ( x2 > n ) {
+                    k2end += 2;
+                } else if ( y2 > m ) {
+                    k2start += 2;
+                } else if ( !front ) {
+                    int k1Offset = offset + delta - k2;
+                    if ( k1Offset >= 0 && k1Offset < length && v1[ k1Offset ] != -1 ) {
+                        int x1 = v1[ k1Offset ];
+                        int y1 = offset + x1 - k1Offset;
+                        if ( x1 >= n - x2 ) return split( start1, end1, start2, end2, x1, y1 );
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    protected int[] split( int start1, int end1, int start2, int end2, int x,
+                           int y ) {
+        // Splitting at a corner would not make progress.
+        if ( ( x == 0 && y == 0 ) || ( x == end1 - start1 && y == end2 - start2 ) ) {
+            return null;
+        }
+        return new int[] { start1 + x, start2 + y };
+    }
+
+    /**
+     * Replace each delete whose element is inserted elsewhere with a move at
+     * the position of the insert.
+     */
+    public List< Edit< E > > detectMoves() {
+        // The strategy only ever gets elements of type E.
+        @SuppressWarnings( "unchecked" )
+        HashingStrategy< E > elementStrategy = (HashingStrategy< E >)strategy;
+        Map< E, LinkedList< Edit< E > > > deletes =
+                strategy == null ? new HashMap< E, LinkedList< Edit< E > > >()
+                                 : new StrategyHashMap< E, LinkedList< Edit< E > > >( elementStrategy );
+        for ( Edit< E > edit : edits ) {
+            if ( edit.kind != Kind.DELETE ) continue;
+            LinkedList< Edit< E > > l = deletes.get( edit.element );
+            if ( l == null ) {
+                l = new LinkedList< Edit< E > >();
+                deletes.put( edit.element, l );
+            }
+            l.add( edit );
+        }
+        if ( deletes.isEmpty() ) return edits;
+        Set< Edit< E > > moved =
+                Collections.newSetFromMap( new IdentityHashMap< Edit< E >, Boolean >() );
+        List< Edit< E > > result = new ArrayList< Edit< E > >( edits.size() );
+        for ( Edit< E > edit : edits ) {
+            if ( edit.kind == Kind.INSERT ) {
+                LinkedList< Edit< E > > l = deletes.get( edit.element );
+                if ( l != null && !l.isEmpty() ) {
+                    Edit< E > delete = l.removeFirst();
+                    moved.add( delete );
+                    result.add( new Edit< E >( Kind.MOVE, delete.index1,
+                                               edit.index2, edit.element ) );
+                    continue;
+                }
+            }
+            result.add( edit );
+        }
+        // Drop the deletes that became moves.
+        List< Edit< E > > edits = new ArrayList< Edit< E > >( result.size() );
+        for ( Edit< E > edit : result ) {
+            if ( !moved.contains( edit ) ) edits.add( edit );
+        }
+        this.edits = edits;
+        return edits;
+    }
+
+    /**
+     * Apply an edit script to the list it was computed from.
+     *
+     * @param list1
+     *            the first list passed to the diff
+     * @param edits
+     *            the edit script
+     * @return a new list equal to the second list passed to the diff
+     */
+    public static < E > List< E > apply( List< ? extends E > list1,
+                                         List< Edit< E > > edits ) {
+        boolean[] removed = new boolean[ list1.size() ];
+        int size = list1.size();
+        Map< Integer, E > placed = new HashMap< Integer, E >();
+        for ( Edit< E > edit : edits ) {
+            if ( edit.kind != Kind.INSERT ) {
+                removed[ edit.index1 ] = true;
+                --size;
+            }
+            if ( edit.kind != Kind.DELETE ) {
+                placed.put( edit.index2, edit.element );
+                ++size;
+            }
+        }
+        List< E > list2 = new ArrayList< E >( size );
+        int i = 0;
+        for ( int j = 0; j < size; ++j ) {
+            if ( placed.containsKey( j ) ) {
+                list2.add( placed.get( j ) );
+                continue;
+            }
+            while ( removed[ i ] ) ++i;
+            list2.add( list1.get( i++ ) );
+        }
+        return list2;
+    }
+
+}
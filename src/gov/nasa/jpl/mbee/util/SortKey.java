@@ -0,0 +1,206 @@
+package gov.nasa.jpl.mbee.util;
+
+import gov.nasa.jpl.mbee.util.CompareUtils.GenericComparator;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * SortKey is an object prepared once for sorting in the order of
+ * {@link GenericComparator}. Comparing two SortKeys follows the same rules as
+ * {@link CompareUtils#compare(Object, Object, boolean, boolean)} but calls
+ * toString() on each object at most once, so a sort that falls through to
+ * comparing strings does O(n) toString() calls instead of O(n log n).
+ * <p>
+ * When all of the objects being sorted are Strings, all are integral
+ * Numbers, or all are Floats and Doubles (nulls are allowed), the order of
+ * GenericComparator is captured exactly by a byte array, and
+ * {@link #sort(Object[])} compares these normalized keys with unsigned byte
+ * comparisons. The order of GenericComparator for mixtures of other classes
+ * cannot in general be captured by a key, so those sorts use SortKeys.
+ */
+public class SortKey implements Comparable< SortKey > {
+
+    protected static final int MIXED = 0;
+    protected static final int STRING = 1;
+    protected static final int INTEGRAL = 2;
+    protected static final int FLOATING = 3;
+
+    public final Object object;
+    protected String string = null;
+
+    public SortKey( Object object ) {
+        this.object = object;
+    }
+
+    /**
+     * @return the object's toString(), computed once
+     */
+    public String getString() {
+        if ( string == null && object != null ) {
+            string = object.toString();
+        }
+        return string;
+    }
+
+    @Override
+    public int compareTo( SortKey o ) {
+        return CompareUtils.compare( object, o.object, true, true, this, o );
+    }
+
+    @Override
+    public String toString() {
+        return "SortKey(" + object + ")";
+    }
+
+    /**
+     * Sort a list in the order of {@link GenericComparator}. The sort is
+     * stable.
+     */
+    public static < T > void sort( List< T > list ) {
+        Object[] array = list.toArray();
+        sort( array );
+        ListIterator< T > i = list.listIterator();
+        for ( Object o : array ) {
+            i.next();
+            @SuppressWarnings( "unchecked" )
+            T t = (T)o;
+            i.set( t );
+        }
+    }
+
+    /**
+     * Sort an array in the order of {@link GenericComparator}. The sort is
+     * stable.
+     */
+    public static < T > void sort( T[] array ) {
+        int kind = keyKind( array );
+        if ( kind != MIXED ) {
+            sortByNormalizedKeys( array, kind );
+            return;
+        }
+        SortKey[] keys = new SortKey[ array.length ];
+        for ( int i = 0; i < array.length; ++i ) {
+            keys[ i ] = new SortKey( array[ i ] );
+        }
+        Arrays.sort( keys );
+        for ( int i = 0; i < array.length; ++i ) {
+            @SuppressWarnings( "unchecked" )
+            T t = (T)keys[ i ].object;
+            array[ i ] = t;
+        }
+    }
+
+    /**
+     * @return the kind of normalized key that orders all of the objects as
+     *         GenericComparator does or MIXED if there is none
+     */
+    protected static int keyKind( Object[] array ) {
+        int kind = MIXED;
+        for ( Object o : array ) {
+            if ( o == null ) continue;
+            int k = keyKind( o );
+            if ( k == MIXED ) return MIXED;
+            if ( kind == MIXED ) kind = k;
+            else if ( kind != k ) return MIXED;
+        }
+        return kind;
+    }
+
+    protected static int keyKind( Object o ) {
+        Class< ? > c = o.getClass();
+        if ( c == String.class ) return STRING;
+        if ( c == Integer.class || c == Long.class || c == Short.class
+             || c == Byte.class ) {
+            return INTEGRAL;
+        }
+        if ( c == Double.class || c == Float.class ) return FLOATING;
+        return MIXED;
+    }
+
+    /**
+     * @return a key for the object whose unsigned lexicographic order is the
+     *         order of GenericComparator among objects of the same kind, or
+     *         null if the object has no such key
+     */
+    public static byte[] normalizedKey( Object o ) {
+        return o == null ? new byte[] { 0 } : normalizedKey( o, keyKind( o ) );
+    }
+
+    protected static byte[] normalizedKey( Object o, int kind ) {
+        if ( o == null ) return new byte[] { 0 };
+        switch ( kind ) {
+            case STRING:
+                String s = (String)o;
+                byte[] key = new byte[ 1 + 2 * s.length() ];
+                key[ 0 ] = 1;
+                for ( int i = 0; i < s.length(); ++i ) {
+                    char ch = s.charAt( i );
+                    key[ 1 + 2 * i ] = (byte)( ch >>> 8 );
+                    key[ 2 + 2 * i ] = (byte)ch;
+                }
+                return key;
+            case INTEGRAL:
+                // flip the sign bit so that negative numbers come first
+                return longKey( ( (Number)o ).longValue() ^ Long.MIN_VALUE );
+            case FLOATING:
+                // the order of Double.compare(): -0.0 before 0.0, NaN last
+                long bits = Double.doubleToLongBits( ( (Number)o ).doubleValue() );
+                return longKey( bits < 0 ? ~bits : bits ^ Long.MIN_VALUE );
+            default:
+                return null;
+        }
+    }
+
+    protected static byte[] longKey( long n ) {
+        byte[] key = new byte[ 9 ];
+        key[ 0 ] = 1;
+        for ( int i = 8; i > 0; --i ) {
+            key[ i ] = (byte)n;
+            n >>>= 8;
+        }
+        return key;
+    }
+
+    /**
+     * Compare byte arrays as unsigned bytes, with a prefix before the longer
+     * array.
+     */
+    public static int compareBytes( byte[] a, byte[] b ) {
+        int n = Math.min( a.length, b.length );
+        for ( int i = 0; i < n; ++i ) {
+            int x = a[ i ] & 0xff;
+            int y = b[ i ] & 0xff;
+            if ( x != y ) return x < y ? -1 : 1;
+        }
+        return CompareUtils.compare( a.length, b.length );
+    }
+
+    protected static final Comparator< Pair< byte[], Object > > normalizedKeyComparator =
+            new Comparator< Pair< byte[], Object > >() {
+                @Override
+                public int compare( Pair< byte[], Object > p1,
+                                    Pair< byte[], Object > p2 ) {
+                    return compareBytes( p1.first, p2.first );
+                }
+            };
+
+    protected static < T > void sortByNormalizedKeys( T[] array, int kind ) {
+        @SuppressWarnings( "unchecked" )
+        Pair< byte[], Object >[] keyed =
+                (Pair< byte[], Object >[])new Pair< ?, ? >[ array.length ];
+        for ( int i = 0; i < array.length; ++i ) {
+            keyed[ i ] = new Pair< byte[], Object >( normalizedKey( array[ i ], kind ),
+                                                     array[ i ] );
+        }
+        Arrays.sort( keyed, normalizedKeyComparator );
+        for ( int i = 0; i < array.length; ++i ) {
+            @SuppressWarnings( "unchecked" )
+            T t = (T)keyed[ i ].second;
+            array[ i ] = t;
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+
+/**
+ * SortedDiff computes the differences between two streams of id/value entries
+ * that are sorted by id by walking them together (a merge join). Changes are
+ * returned one at a time in id order, so only the current entry of each stream
+ * is held in memory, and the streams may be read from disk.
+ * <p>
+ * Like {@link Utils#diff(Map, Map)}, an id is added if it is only in the
+ * second stream, removed if it is only in the first, and updated if its values
+ * are not equal.
+ *
+ * @param <ID>
+ *            id type
+ * @param <T>
+ *            value type
+ */
+public class SortedDiff< ID, T > implements Iterator< SortedDiff.Change< ID, T > > {
+
+    public static enum Kind { ADDED, REMOVED, UPDATED };
+
+    /**
+     * A single difference for an id.
+     */
+    public static class Change< ID, T > {
+        public Kind kind;
+        public ID id;
+        public T value1;
+        public T value2;
+
+        public Change( Kind kind, ID id, T value1, T value2 ) {
+            this.kind = kind;
+            this.id = id;
+            this.value1 = value1;
+            this.value2 = value2;
+        }
+
+        @Override
+        public String toString() {
+            return kind + "(" + id + ", " + value1 + ", " + value2 + ")";
+        }
+    }
+
+    /**
+     * Receives changes from {@link SortedDiff#diff(Listener)}.
+     */
+    public static interface Listener< ID, T > {
+        public void added( ID id, T value2 );
+
+        public void removed( ID id, T value1 );
+
+        public void updated( ID id, T value1, T value2 );
+    }
+
+    protected Iterator< ? extends Map.Entry< ID, T > > iter1;
+    protected Iterator< ? extends Map.Entry< ID, T > > iter2;
+    protected Comparator< ? super ID > comparator;
+    protected Map.Entry< ID, T > entry1 = null;
+    protected Map.Entry< ID, T > entry2 = null;
+    protected Change< ID, T > next = null;
+
+    /**
+     * @param iter1
+     *            the first stream of entries, sorted by id
+     * @param iter2
+     *            the second stream of entries, sorted by id
+     * @param comparator
+     *            the order of the ids or null if the ids are {@link Comparable}
+     */
+    public SortedDiff( Iterator< ? extends Map.Entry< ID, T > > iter1,
+                       Iterator< ? extends Map.Entry< ID, T > > iter2,
+                       Comparator< ? super ID > comparator ) {
+        this.iter1 = iter1;
+        this.iter2 = iter2;
+        this.comparator = comparator;
+        entry1 = advance( iter1, null );
+        entry2 = advance( iter2, null );
+    }
+
+    /**
+     * Diff two maps with the same ordering of keys.
+     */
+    public SortedDiff( SortedMap< ID, T > map1, SortedMap< ID, T > map2 ) {
+        this( map1.entrySet().iterator(), map2.entrySet().iterator(),
+              map1.comparator() );
+    }
+
+    /**
+     * Send all of the remaining changes to a listener.
+     *
+     * @param listener
+     */
+    public void diff( Listener< ID, T > listener ) {
+        while ( hasNext() ) {
+            Change< ID, T > change = next();
+            switch ( change.kind ) {
+                case ADDED:
+                    listener.added( change.id, change.value2 );
+                    break;
+                case REMOVED:
+                    listener.removed( change.id, change.value1 );
+                    break;
+                case UPDATED:
+                    listener.updated( change.id, change.value1, change.value2 );
+                    break;
+            }
+        }
+    }
+
+    public static < ID, T > void diff( SortedMap< ID, T > map1,
+                                       SortedMap< ID, T > map2,
+                                       Listener< ID, T > listener ) {
+        new SortedDiff< ID, T >( map1, map2 ).diff( listener );
+    }
+
+    /**
+     * Override this method to change how values are compared.
+     *
+     * @return whether the two values for the same id are the same
+     */
+    protected boolean same( T value1, T value2 ) {
+        return value1 == value2 || ( value1 != null && value1.equals( value2 ) );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    protected int compareIds( ID id1, ID id2 ) {
+        if ( comparator != null ) return comparator.compare( id1, id2 );
+        return ( (Comparable< ? super ID >)id1 ).compareTo( id2 );
+    }
+
+    /**
+     * Get the next entry from the iterator and make sure that it is in order.
+     */
+    protected Map.Entry< ID, T > advance( Iterator< ? extends Map.Entry< ID, T > > iter,
+                                          Map.Entry< ID, T > last ) {
+        if ( !iter.hasNext() ) return null;
+        Map.Entry< ID, T > entry = iter.next();
+        if ( last != null && compareIds( last.getKey(), entry.getKey() ) >= 0 ) {
+            throw new IllegalArgumentException( "SortedDiff: ids out of order: "
+                                                + last.getKey() + " then "
+                                                + entry.getKey() );
+        }
+        return entry;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ( next == null && ( entry1 != null || entry2 != null ) ) {
+            int comp;
+            if ( entry1 == null ) comp = 1;
+            else if ( entry2 == null ) comp = -1;
+            else comp = compareIds( entry1.getKey(), entry2.getKey() );
+            if ( comp < 0 ) {
+                next = new Change< ID, T >( Kind.REMOVED, entry1.getKey(),
+                                            entry1.getValue(), null );
+                entry1 = advance( iter1, entry1 );
+            } else if ( comp > 0 ) {
+                next = new Change< ID, T >( Kind.ADDED, entry2.getKey(), null,
+                                            entry2.getValue() );
+                entry2 = advance( iter2, entry2 );
+            } else {
+                if ( !same( entry1.getValue(), entry2.getValue() ) ) {
+                    next = new Change< ID, T >( Kind.UPDATED, entry1.getKey(),
+                                                entry1.getValue(),
+                                                entry2.getValue() );
+                }
+                entry1 = advance( iter1, entry1 );
+                entry2 = advance( iter2, entry2 );
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Change< ID, T > next() {
+        if ( !hasNext() ) throw new NoSuchElementException();
+        Change< ID, T > change = next;
+        next = null;
+        return change;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,188 @@
+package gov.nasa.jpl.mbee.util;
+
+import gov.nasa.jpl.mbee.util.CompareUtils.GenericHashingStrategy;
+import gov.nasa.jpl.mbee.util.CompareUtils.HashingStrategy;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * StrategyHashMap is a hash map whose keys are compared and hashed by a
+ * {@link HashingStrategy} instead of their equals() and hashCode(). With a
+ * {@link GenericHashingStrategy}, it has the key equality of a TreeMap with a
+ * {@link CompareUtils.GenericComparator} with constant-time operations. Keys
+ * are kept in insertion order.
+ *
+ * @param <K>
+ *            key type
+ * @param <V>
+ *            value type
+ */
+public class StrategyHashMap< K, V > extends AbstractMap< K, V > {
+
+    /**
+     * A key wrapped so that its equals() and hashCode() are the strategy's.
+     */
+    protected static class Key< K > {
+        protected final K key;
+        protected final HashingStrategy< K > strategy;
+        protected final int hash;
+
+        public Key( K key, HashingStrategy< K > strategy ) {
+            this.key = key;
+            this.strategy = strategy;
+            this.hash = strategy.computeHashCode( key );
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            if ( !( o instanceof Key ) ) return false;
+            @SuppressWarnings( "unchecked" )
+            Key< K > k = (Key< K >)o;
+            return hash == k.hash && strategy.equals( key, k.key );
+        }
+    }
+
+    protected final HashingStrategy< K > strategy;
+    protected final LinkedHashMap< Key< K >, V > map =
+            new LinkedHashMap< Key< K >, V >();
+    protected Set< Map.Entry< K, V > > entrySet = null;
+
+    public StrategyHashMap() {
+        this( GenericHashingStrategy.< K >instance() );
+    }
+
+    public StrategyHashMap( HashingStrategy< K > strategy ) {
+        this.strategy = strategy;
+    }
+
+    public StrategyHashMap( Map< ? extends K, ? extends V > m ) {
+        this();
+        putAll( m );
+    }
+
+    protected Key< K > key( Object o ) {
+        @SuppressWarnings( "unchecked" )
+        K k = (K)o;
+        return new Key< K >( k, strategy );
+    }
+
+    public HashingStrategy< K > getStrategy() {
+        return strategy;
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public boolean containsKey( Object key ) {
+        return map.containsKey( key( key ) );
+    }
+
+    @Override
+    public V get( Object key ) {
+        return map.get( key( key ) );
+    }
+
+    @Override
+    public V put( K key, V value ) {
+        return map.put( key( key ), value );
+    }
+
+    @Override
+    public V remove( Object key ) {
+        return map.remove( key( key ) );
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+    }
+
+    @Override
+    public Set< Map.Entry< K, V > > entrySet() {
+        if ( entrySet == null ) {
+            entrySet = new AbstractSet< Map.Entry< K, V > >() {
+                @Override
+                public Iterator< Map.Entry< K, V > > iterator() {
+                    final Iterator< Map.Entry< Key< K >, V > > i =
+                            map.entrySet().iterator();
+                    return new Iterator< Map.Entry< K, V > >() {
+                        @Override
+                        public boolean hasNext() {
+                            return i.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry< K, V > next() {
+                            final Map.Entry< Key< K >, V > e = i.next();
+                            return new Map.Entry< K, V >() {
+                                @Override
+                                public K getKey() {
+                                    return e.getKey().key;
+                                }
+
+                                @Override
+                                public V getValue() {
+                                    return e.getValue();
+                                }
+
+                                @Override
+                                public V setValue( V value ) {
+                                    return e.setValue( value );
+                                }
+
+                                @Override
+                                public int hashCode() {
+                                    return ( getKey() == null ? 0 : getKey().hashCode() )
+                                           ^ ( getValue() == null ? 0 : getValue().hashCode() );
+                                }
+
+                                @Override
+                                public boolean equals( Object o ) {
+                                    if ( !( o instanceof Map.Entry ) ) return false;
+                                    Map.Entry< ?, ? > oe = (Map.Entry< ?, ? >)o;
+                                    return Utils.valuesEqual( getKey(), oe.getKey() )
+                                           && Utils.valuesEqual( getValue(), oe.getValue() );
+                                }
+
+                                @Override
+                                public String toString() {
+                                    return getKey() + "=" + getValue();
+                                }
+                            };
+                        }
+
+                        @Override
+                        public void remove() {
+                            i.remove();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return map.size();
+                }
+
+                @Override
+                public void clear() {
+                    map.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+}
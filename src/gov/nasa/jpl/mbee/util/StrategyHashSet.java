@@ -0,0 +1,71 @@
+package gov.nasa.jpl.mbee.util;
+
+import gov.nasa.jpl.mbee.util.CompareUtils.GenericHashingStrategy;
+import gov.nasa.jpl.mbee.util.CompareUtils.HashingStrategy;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * StrategyHashSet is a hash set whose elements are compared and hashed by a
+ * {@link HashingStrategy} instead of their equals() and hashCode(). With a
+ * {@link GenericHashingStrategy}, it has the element equality of a TreeSet
+ * with a {@link CompareUtils.GenericComparator} with constant-time
+ * operations. Elements are kept in insertion order.
+ *
+ * @param <E>
+ *            element type
+ */
+public class StrategyHashSet< E > extends AbstractSet< E > {
+
+    protected final StrategyHashMap< E, Boolean > map;
+
+    public StrategyHashSet() {
+        this( GenericHashingStrategy.< E >instance() );
+    }
+
+    public StrategyHashSet( HashingStrategy< E > strategy ) {
+        map = new StrategyHashMap< E, Boolean >( strategy );
+    }
+
+    public StrategyHashSet( Collection< ? extends E > c ) {
+        this();
+        addAll( c );
+    }
+
+    public HashingStrategy< E > getStrategy() {
+        return map.getStrategy();
+    }
+
+    @Override
+    public Iterator< E > iterator() {
+        return map.keySet().iterator();
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public boolean contains( Object o ) {
+        return map.containsKey( o );
+    }
+
+    @Override
+    public boolean add( E e ) {
+        return map.put( e, Boolean.TRUE ) == null;
+    }
+
+    @Override
+    public boolean remove( Object o ) {
+        return map.remove( o ) != null;
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+    }
+
+}
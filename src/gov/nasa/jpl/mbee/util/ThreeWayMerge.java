@@ -0,0 +1,328 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ThreeWayMerge merges two sets of objects, ours and theirs, that were each
+ * changed from a common base, walking all three in one pass instead of
+ * diffing base against each and joining the results. Each object and
+ * property is classified as unchanged, changed only in ours or only in
+ * theirs, changed the same way in both, or in conflict.
+ * <p>
+ * Properties are found and compared with an {@link AbstractDiff}'s
+ * {@link AbstractDiff#getPropertyMap(Object, boolean)} and
+ * {@link AbstractDiff#sameProperty(Object, Object)}, with the base as the
+ * first set and ours and theirs as the second. Objects that are changed on
+ * both sides are built with a {@link DiffPatch.Target}'s
+ * {@link DiffPatch.Target#newObject(Object)} and
+ * {@link DiffPatch.Target#setProperty(Object, Object, Object)}, starting with the
+ * ignored properties of theirs and then ours, which are not merged; other
+ * objects in the merged map are the instances from base, ours, or theirs.
+ *
+ * @param <T>
+ *            object type
+ * @param <P>
+ *            property type
+ * @param <ID>
+ *            identifier type
+ */
+public class ThreeWayMerge< T, P, ID > {
+
+    public static enum Kind { UNCHANGED, OURS, THEIRS, BOTH, CONFLICT };
+
+    /**
+     * A conflict between ours and theirs. For a property conflict, the values
+     * are given. For an object conflict, the object was removed on one side
+     * and changed on the other, and propertyId is null.
+     */
+    public static class Conflict< T, P, ID > {
+        public ID id;
+        public ID propertyId;
+        public T base;
+        public T ours;
+        public T theirs;
+        public P baseValue;
+        public P ourValue;
+        public P theirValue;
+
+        public Conflict( ID id, ID propertyId, T base, T ours, T theirs,
+                         P baseValue, P ourValue, P theirValue ) {
+            this.id = id;
+            this.propertyId = propertyId;
+            this.base = base;
+            this.ours = ours;
+            this.theirs = theirs;
+            this.baseValue = baseValue;
+            this.ourValue = ourValue;
+            this.theirValue = theirValue;
+        }
+
+        public boolean isObjectConflict() {
+            return propertyId == null;
+        }
+
+        @Override
+        public String toString() {
+            if ( isObjectConflict() ) {
+                return "Conflict(" + id + ", base=" + base + ", ours=" + ours
+                       + ", theirs=" + theirs + ")";
+            }
+            return "Conflict(" + id + "." + propertyId + ", base=" + baseValue
+                   + ", ours=" + ourValue + ", theirs=" + theirValue + ")";
+        }
+    }
+
+    protected AbstractDiff< T, P, ID > diff;
+    protected DiffPatch.Target< T, P, ID > target;
+    protected Map< ID, T > base;
+    protected Map< ID, T > ours;
+    protected Map< ID, T > theirs;
+
+    protected Map< ID, T > merged = null;
+    protected List< Conflict< T, P, ID > > conflicts = null;
+    protected Map< ID, Kind > objectKinds = null;
+    protected Map< ID, Map< ID, Kind > > propertyKinds = null;
+
+    /**
+     * @param diff
+     *            finds and compares the properties of the objects
+     * @param target
+     *            builds the objects that are changed on both sides, typically
+     *            the diff
+     * @param base
+     *            the objects before the changes
+     * @param ours
+     *            our changed objects
+     * @param theirs
+     *            their changed objects
+     */
+    public ThreeWayMerge( AbstractDiff< T, P, ID > diff,
+                          DiffPatch.Target< T, P, ID > target, Map< ID, T > base,
+                          Map< ID, T > ours, Map< ID, T > theirs ) {
+        this.diff = diff;
+        this.target = target;
+        this.base = base;
+        this.ours = ours;
+        this.theirs = theirs;
+    }
+
+    /**
+     * Compute the merged objects, the conflicts, and the classifications.
+     */
+    public void merge() {
+        merged = new LinkedHashMap< ID, T >();
+        conflicts = new ArrayList< Conflict< T, P, ID > >();
+        objectKinds = new LinkedHashMap< ID, Kind >();
+        propertyKinds = new LinkedHashMap< ID, Map< ID, Kind > >();
+
+        Set< ID > ids = new LinkedHashSet< ID >( base.keySet() );
+        ids.addAll( ours.keySet() );
+        ids.addAll( theirs.keySet() );
+        for ( ID id : ids ) {
+            mergeObject( id, base.get( id ), ours.get( id ), theirs.get( id ) );
+        }
+    }
+
+    protected void mergeObject( ID id, T b, T o, T t ) {
+        // Shortcuts for objects that are the same instance on two sides
+        if ( o == t ) {
+            put( id, o, o == b ? Kind.UNCHANGED : Kind.BOTH );
+            return;
+        }
+        if ( o == b ) {
+            put( id, t, Kind.THEIRS );
+            return;
+        }
+        if ( t == b ) {
+            put( id, o, Kind.OURS );
+            return;
+        }
+
+        Map< ID, P > pb = b == null ? null : diff.getPropertyMap( b, true );
+        Map< ID, P > po = o == null ? null : diff.getPropertyMap( o, false );
+        Map< ID, P > pt = t == null ? null : diff.getPropertyMap( t, false );
+
+        if ( o == null || t == null ) {
+            // removed on one side (or added on one side if b is null)
+            if ( b == null ) {
+                put( id, o == null ? t : o, o == null ? Kind.THEIRS : Kind.OURS );
+            } else if ( o == null ) {
+                if ( sameProperties( pb, pt ) ) put( id, null, Kind.OURS );
+                else objectConflict( id, b, o, t );
+            } else {
+                if ( sameProperties( pb, po ) ) put( id, null, Kind.THEIRS );
+                else objectConflict( id, b, o, t );
+            }
+            return;
+        }
+
+        Map< ID, P > values = new LinkedHashMap< ID, P >();
+        Map< ID, Kind > kinds = new LinkedHashMap< ID, Kind >();
+        boolean oursChanged = false;
+        boolean theirsChanged = false;
+        boolean conflict = false;
+        Set< ID > pids = new LinkedHashSet< ID >();
+        if ( pb != null ) pids.addAll( pb.keySet() );
+        pids.addAll( po.keySet() );
+        pids.addAll( pt.keySet() );
+        for ( ID pid : pids ) {
+            P vb = pb == null ? null : pb.get( pid );
+            P vo = po.get( pid );
+            P vt = pt.get( pid );
+            boolean oChanged = !sameValue( vb, vo );
+            boolean tChanged = !sameValue( vb, vt );
+            P value;
+            Kind kind;
+            if ( !oChanged && !tChanged ) {
+                value = vo;
+                kind = Kind.UNCHANGED;
+            } else if ( !tChanged ) {
+                value = vo;
+                kind = Kind.OURS;
+            } else if ( !oChanged ) {
+                value = vt;
+                kind = Kind.THEIRS;
+            } else if ( sameValue( vo, vt ) ) {
+                value = vo;
+                kind = Kind.BOTH;
+            } else {
+                Conflict< T, P, ID > c =
+                        new Conflict< T, P, ID >( id, pid, b, o, t, vb, vo, vt );
+                conflicts.add( c );
+                value = resolve( c );
+                kind = Kind.CONFLICT;
+            }
+            oursChanged = oursChanged || oChanged;
+            theirsChanged = theirsChanged || tChanged;
+            conflict = conflict || kind == Kind.CONFLICT;
+            if ( kind != Kind.UNCHANGED ) kinds.put( pid, kind );
+            if ( value != null ) values.put( pid, value );
+        }
+
+        if ( !kinds.isEmpty() ) propertyKinds.put( id, kinds );
+        if ( !theirsChanged ) {
+            put( id, o, oursChanged ? Kind.OURS : Kind.UNCHANGED );
+        } else if ( !oursChanged ) {
+            put( id, t, Kind.THEIRS );
+        } else if ( !conflict && allBoth( kinds ) ) {
+            put( id, o, Kind.BOTH );
+        } else {
+            T m = target.newObject( id );
+            setIgnoredProperties( m, t );
+            setIgnoredProperties( m, o );
+            for ( Map.Entry< ID, P > e : values.entrySet() ) {
+                target.setProperty( m, e.getKey(), e.getValue() );
+            }
+            put( id, m, conflict ? Kind.CONFLICT : Kind.BOTH );
+        }
+    }
+
+    /**
+     * Copy the properties that the diff ignores, which are not merged, from
+     * an object to a merged object.
+     */
+    protected void setIgnoredProperties( T merged, T t ) {
+        Set< P > props = diff.getProperties( t, false );
+        if ( props == null ) return;
+        for ( P p : props ) {
+            ID pid = diff.getIdOfProperty( p );
+            if ( diff.isIgnoredProperty( pid ) ) {
+                target.setProperty( merged, pid, p );
+            }
+        }
+    }
+
+    protected static boolean allBoth( Map< ?, Kind > kinds ) {
+        for ( Kind k : kinds.values() ) {
+            if ( k != Kind.BOTH ) return false;
+        }
+        return true;
+    }
+
+    protected void put( ID id, T t, Kind kind ) {
+        if ( t != null ) merged.put( id, t );
+        if ( kind != Kind.UNCHANGED ) objectKinds.put( id, kind );
+    }
+
+    protected void objectConflict( ID id, T b, T o, T t ) {
+        Conflict< T, P, ID > c =
+                new Conflict< T, P, ID >( id, null, b, o, t, null, null, null );
+        conflicts.add( c );
+        T resolved = resolveObject( c );
+        put( id, resolved, Kind.CONFLICT );
+    }
+
+    /**
+     * Override this method to choose the merged value of a conflicting
+     * property. The default keeps ours.
+     */
+    protected P resolve( Conflict< T, P, ID > conflict ) {
+        return conflict.ourValue;
+    }
+
+    /**
+     * Override this method to choose the merged object when an object is
+     * removed on one side and changed on the other. The default keeps ours,
+     * which may be null.
+     */
+    protected T resolveObject( Conflict< T, P, ID > conflict ) {
+        return conflict.ours;
+    }
+
+    protected boolean sameValue( P v1, P v2 ) {
+        if ( v1 == v2 ) return true;
+        if ( v1 == null || v2 == null ) return false;
+        return diff.sameProperty( v1, v2 );
+    }
+
+    protected boolean sameProperties( Map< ID, P > props1, Map< ID, P > props2 ) {
+        if ( props1.size() != props2.size() ) return false;
+        for ( Map.Entry< ID, P > e : props1.entrySet() ) {
+            if ( !props2.containsKey( e.getKey() ) ) return false;
+            if ( !sameValue( e.getValue(), props2.get( e.getKey() ) ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the merged objects by id
+     */
+    public Map< ID, T > getMerged() {
+        if ( merged == null ) merge();
+        return merged;
+    }
+
+    public List< Conflict< T, P, ID > > getConflicts() {
+        if ( conflicts == null ) merge();
+        return conflicts;
+    }
+
+    public boolean hasConflicts() {
+        return !getConflicts().isEmpty();
+    }
+
+    /**
+     * @return the classification of each object that is not unchanged
+     */
+    public Map< ID, Kind > getObjectKinds() {
+        if ( objectKinds == null ) merge();
+        return objectKinds;
+    }
+
+    /**
+     * @return the classification of each property that is not unchanged by
+     *         object id and property id
+     */
+    public Map< ID, Map< ID, Kind > > getPropertyKinds() {
+        if ( propertyKinds == null ) merge();
+        return propertyKinds;
+    }
+
+}
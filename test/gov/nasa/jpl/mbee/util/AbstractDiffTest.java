@@ -0,0 +1,303 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Tests of the diff modes of {@link AbstractDiff} against a plain diff of the
+ * same snapshots.
+ */
+public class AbstractDiffTest {
+
+    protected static Pair< Map< String, TestDiff.Obj >, Map< String, TestDiff.Obj > > snapshots =
+            TestDiff.generate( 5000, 1 );
+
+    protected static TestDiff newDiff() {
+        return new TestDiff( snapshots.first, snapshots.second );
+    }
+
+    @Test
+    public void testParallelSameAsSequential() {
+        TestDiff sequential = newDiff();
+        TestDiff parallel = newDiff();
+        parallel.setParallel( true );
+        parallel.setParallelThreshold( 64 );
+        String expected = TestDiff.dump( sequential );
+        assertFalse( sequential.getPropertyChanges().isEmpty() );
+        assertEquals( expected, TestDiff.dump( parallel ) );
+
+        // again with results that are already there and with stats
+        parallel.setStats( new DiffStats() );
+        parallel.diff();
+        assertEquals( expected, TestDiff.dump( parallel ) );
+    }
+
+    @Test
+    public void testParallelCompactSameAsSequential() {
+        TestDiff sequential = newDiff();
+        sequential.setCompactResults( true );
+        TestDiff parallel = newDiff();
+        parallel.setCompactResults( true );
+        parallel.setParallel( true );
+        parallel.setParallelThreshold( 64 );
+        assertEquals( TestDiff.dump( sequential ), TestDiff.dump( parallel ) );
+    }
+
+    /**
+     * @return the results of a diff sorted by id, so that diffs that found
+     *         the same changes in a different order are equal
+     */
+    protected static String normalize( Diff< TestDiff.Obj, TestDiff.Prop, String > diff ) {
+        return ids( diff.getAdded() ) + "|" + ids( diff.getRemoved() ) + "|"
+               + ids( diff.getUpdated() ) + "|"
+               + sorted( diff.getAddedProperties() ) + "|"
+               + sorted( diff.getRemovedProperties() ) + "|"
+               + sorted( diff.getUpdatedProperties() ) + "|"
+               + sorted( diff.getPropertyChanges() );
+    }
+
+    protected static Set< String > ids( Collection< TestDiff.Obj > objects ) {
+        Set< String > ids = new TreeSet< String >();
+        for ( TestDiff.Obj o : objects ) ids.add( o.id );
+        return ids;
+    }
+
+    protected static < V > Map< String, Map< String, V > > sorted( Map< String, Map< String, V > > results ) {
+        Map< String, Map< String, V > > sorted = new TreeMap< String, Map< String, V > >();
+        for ( Map.Entry< String, Map< String, V > > e : results.entrySet() ) {
+            // objects without changes may or may not have empty entries
+            if ( e.getValue().isEmpty() ) continue;
+            sorted.put( e.getKey(), new TreeMap< String, V >( e.getValue() ) );
+        }
+        return sorted;
+    }
+
+    /**
+     * Apply random changes through the incremental update methods and check
+     * the results against a full diff of the changed snapshots.
+     */
+    protected static void checkIncremental( boolean compact ) {
+        Pair< Map< String, TestDiff.Obj >, Map< String, TestDiff.Obj > > maps =
+                TestDiff.generate( 500, 2 );
+        TestDiff diff = new TestDiff( new LinkedHashMap< String, TestDiff.Obj >( maps.first ),
+                                      new LinkedHashMap< String, TestDiff.Obj >( maps.second ) );
+        diff.setCompactResults( compact );
+        diff.diff();
+        Random random = new Random( 3 );
+        for ( int i = 0; i < 400; ++i ) {
+            String id = "o" + random.nextInt( 520 );
+            TestDiff.Obj o = new TestDiff.Obj( id ).put( "p0", random.nextInt( 3 ) );
+            switch ( random.nextInt( 6 ) ) {
+                case 0:
+                    diff.remove1( id );
+                    break;
+                case 1:
+                    diff.remove2( id );
+                    break;
+                case 2:
+                    diff.put1( id, o );
+                    break;
+                case 3:
+                    diff.put2( id, o );
+                    break;
+                case 4:
+                    TestDiff.Obj o2 = diff.get2( id );
+                    if ( o2 == null ) break;
+                    o2.put( "p1", random.nextInt( 3 ) );
+                    o2.props.remove( "p2" );
+                    diff.propertiesChanged( id, Arrays.asList( "p1", "p2" ) );
+                    break;
+                default:
+                    TestDiff.Obj o1 = diff.get1( id );
+                    if ( o1 == null ) break;
+                    o1.put( "p3", random.nextInt( 3 ) );
+                    diff.objectsChanged( Arrays.asList( id ) );
+            }
+        }
+        TestDiff full = new TestDiff( diff.getMap1(), diff.getMap2() );
+        assertEquals( normalize( full ), normalize( diff ) );
+    }
+
+    @Test
+    public void testIncremental() {
+        checkIncremental( false );
+    }
+
+    @Test
+    public void testIncrementalCompact() {
+        checkIncremental( true );
+    }
+
+    @Test
+    public void testPutRemoveRoundTrip() {
+        Map< String, TestDiff.Obj > map1 = new LinkedHashMap< String, TestDiff.Obj >();
+        Map< String, TestDiff.Obj > map2 = new LinkedHashMap< String, TestDiff.Obj >();
+        TestDiff.Obj a = new TestDiff.Obj( "a" ).put( "p", 1 );
+        TestDiff.Obj b = new TestDiff.Obj( "b" ).put( "p", 2 );
+        map1.put( "a", a );
+        map2.put( "a", a );
+        map2.put( "b", b );
+        TestDiff diff = new TestDiff( map1, map2 );
+        assertEquals( "[b]", ids( diff.getAdded() ).toString() );
+        assertTrue( diff.getRemoved().isEmpty() );
+
+        // a is only in map2 and b in both
+        TestDiff.Obj a1 = diff.remove1( "a" );
+        diff.put1( "b", b );
+        assertEquals( "[a]", ids( diff.getAdded() ).toString() );
+        assertTrue( diff.getRemoved().isEmpty() );
+        // an added object with properties is also in the updated set
+        assertEquals( "[a]", ids( diff.getUpdated() ).toString() );
+
+        // a is only in map1 and b only in map1
+        diff.put1( "a", a1 );
+        diff.remove2( "a" );
+        diff.remove2( "b" );
+        assertTrue( diff.getAdded().isEmpty() );
+        assertEquals( "[a, b]", ids( diff.getRemoved() ).toString() );
+
+        // back to the start
+        diff.put2( "a", a );
+        diff.put2( "b", b );
+        diff.remove1( "b" );
+        assertEquals( normalize( new TestDiff( map1, map2 ) ), normalize( diff ) );
+        assertEquals( "[b]", ids( diff.getAdded() ).toString() );
+        assertTrue( diff.getRemoved().isEmpty() );
+    }
+
+    /**
+     * A diff that leaves out the objects whose ids end in 3.
+     */
+    protected static TestDiff newFilteredDiff( Map< String, TestDiff.Obj > map1,
+                                               Map< String, TestDiff.Obj > map2,
+                                               boolean ignoreRemovedProperties ) {
+        TestDiff diff = new TestDiff( map1, map2 ) {
+            @Override
+            public Set< String > filterValues( List< Set< String > > mapDiff ) {
+                Set< String > ids = super.filterValues( mapDiff );
+                for ( Iterator< String > i = ids.iterator(); i.hasNext(); ) {
+                    if ( i.next().endsWith( "3" ) ) i.remove();
+                }
+                return ids;
+            }
+        };
+        diff.ignoreRemovedProperties = ignoreRemovedProperties;
+        return diff;
+    }
+
+    protected static void checkSortedStream( boolean ignoreRemovedProperties ) {
+        Pair< Map< String, TestDiff.Obj >, Map< String, TestDiff.Obj > > maps =
+                TestDiff.generate( 2000, 4 );
+        TreeMap< String, TestDiff.Obj > map1 = new TreeMap< String, TestDiff.Obj >( maps.first );
+        TreeMap< String, TestDiff.Obj > map2 = new TreeMap< String, TestDiff.Obj >( maps.second );
+        // an added object without properties
+        map1.remove( "o1" );
+        map2.put( "o1", new TestDiff.Obj( "o1" ) );
+        TestDiff diff = newFilteredDiff( map1, map2, ignoreRemovedProperties );
+
+        final Set< String > added = new TreeSet< String >();
+        final Set< String > removed = new TreeSet< String >();
+        final Map< String, Map< String, Pair< TestDiff.Prop, TestDiff.Prop > > > changes =
+                new LinkedHashMap< String, Map< String, Pair< TestDiff.Prop, TestDiff.Prop > > >();
+        diff.diff( map1.entrySet().iterator(), map2.entrySet().iterator(), null,
+                   new AbstractDiff.ObjectDiffListener< TestDiff.Obj, TestDiff.Prop, String >() {
+                       @Override
+                       public void objectDiff( String id, SortedDiff.Kind kind,
+                                               TestDiff.Obj t1, TestDiff.Obj t2,
+                                               AbstractDiff.ObjectDiff< TestDiff.Prop, String > objectDiff ) {
+                           if ( kind == SortedDiff.Kind.ADDED ) added.add( id );
+                           if ( kind == SortedDiff.Kind.REMOVED ) removed.add( id );
+                           changes.put( id, objectDiff.getPropertyChanges() );
+                       }
+                   } );
+
+        assertTrue( added.contains( "o1" ) );
+        assertFalse( removed.isEmpty() );
+        assertEquals( ids( diff.getAdded() ), added );
+        assertEquals( ids( diff.getRemoved() ), removed );
+        // Pair has no equals(), so compare the strings.
+        assertEquals( sorted( diff.getPropertyChanges() ).toString(),
+                      sorted( changes ).toString() );
+    }
+
+    @Test
+    public void testSortedStreamSameAsDiff() {
+        checkSortedStream( false );
+    }
+
+    @Test
+    public void testSortedStreamIgnoringRemovedProperties() {
+        checkSortedStream( true );
+    }
+
+    /**
+     * Check that areSame() gives the same answer before and after diff() in
+     * each result and fingerprint mode.
+     */
+    protected static void checkAreSame( Map< String, TestDiff.Obj > map1,
+                                        Map< String, TestDiff.Obj > map2,
+                                        boolean ignoreRemovedProperties,
+                                        boolean expected ) {
+        for ( int mode = 0; mode < 8; ++mode ) {
+            TestDiff diff = newFilteredDiff( map1, map2, ignoreRemovedProperties );
+            diff.addPropertyIdsToIgnore( Arrays.asList( "x" ) );
+            diff.setCompactResults( ( mode & 1 ) != 0 );
+            diff.setUseFingerprints( ( mode & 2 ) != 0 );
+            diff.setParallel( ( mode & 4 ) != 0 );
+            diff.setParallelThreshold( 2 );
+            String message = "mode " + mode;
+            assertEquals( message, expected, diff.areSame() );
+            diff.diff();
+            assertEquals( message, expected, diff.areSame() );
+        }
+    }
+
+    protected static Map< String, TestDiff.Obj > objects( TestDiff.Obj... objects ) {
+        Map< String, TestDiff.Obj > map = new LinkedHashMap< String, TestDiff.Obj >();
+        for ( TestDiff.Obj o : objects ) map.put( o.id, o );
+        return map;
+    }
+
+    @Test
+    public void testAreSameBeforeAndAfterDiff() {
+        TestDiff.Obj a = new TestDiff.Obj( "a" ).put( "p", 1 );
+        TestDiff.Obj b = new TestDiff.Obj( "b" ).put( "p", 2 ).put( "q", 3 );
+        TestDiff.Obj c = new TestDiff.Obj( "c" ).put( "p", 4 );
+        Map< String, TestDiff.Obj > map1 = objects( a, b, c );
+
+        // only an ignored property is changed
+        checkAreSame( map1, objects( a, b.copy().put( "x", 1 ), c ), false, true );
+        // only a property is removed
+        TestDiff.Obj b2 = b.copy();
+        b2.props.remove( "q" );
+        checkAreSame( map1, objects( a, b2, c ), true, true );
+        checkAreSame( map1, objects( a, b2, c ), false, false );
+        // only a filtered object is added, removed, or changed
+        TestDiff.Obj o3 = new TestDiff.Obj( "o3" ).put( "p", 5 );
+        checkAreSame( map1, objects( a, b, c, o3 ), false, true );
+        checkAreSame( objects( a, b, c, o3 ), objects( a, b, c, o3.copy().put( "p", 6 ) ),
+                      false, true );
+        checkAreSame( objects( a, b, c, o3 ), map1, false, true );
+        // an object without properties is added
+        checkAreSame( map1, objects( a, b, c, new TestDiff.Obj( "d" ) ), false, false );
+        // a property is changed
+        checkAreSame( map1, objects( a, b.copy().put( "q", 4 ), c ), false, false );
+        // copies of the same objects
+        checkAreSame( map1, TestDiff.copy( map1 ), false, true );
+        checkAreSame( snapshots.first, snapshots.second, false, false );
+    }
+}
@@ -0,0 +1,240 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link CompareUtils.GenericComparator} against the order it had
+ * before the comparison dispatch was cached per pair of classes.
+ */
+public class CompareUtilsTest {
+
+  enum Color { RED, GREEN }
+
+  /**
+   * A value whose compareTo() throws a ClassCastException only for some
+   * values and orders the others opposite to their strings.
+   */
+  static class Value implements Comparable< Object > {
+    final Object v;
+
+    Value( Object v ) {
+      this.v = v;
+    }
+
+    @Override
+    public int compareTo( Object o ) {
+      return ( (Integer)( (Value)o ).v ).compareTo( (Integer)v );
+    }
+
+    @Override
+    public String toString() {
+      return "Value" + v;
+    }
+  }
+
+  /**
+   * A Number class that CompareUtils does not know.
+   */
+  static class OtherNumber extends Number {
+    private static final long serialVersionUID = 1L;
+    final double v;
+
+    OtherNumber( double v ) {
+      this.v = v;
+    }
+
+    @Override
+    public int intValue() {
+      return (int)v;
+    }
+
+    @Override
+    public long longValue() {
+      return (long)v;
+    }
+
+    @Override
+    public float floatValue() {
+      return (float)v;
+    }
+
+    @Override
+    public double doubleValue() {
+      return v;
+    }
+
+    @Override
+    public String toString() {
+      return "OtherNumber" + v;
+    }
+  }
+
+  protected static List< Object > mixedValues() {
+    return new ArrayList< Object >( Arrays.< Object >asList(
+        "b", "a", "B", "10", "9", 3, 2L, -1, 2.5, 2.0f, (short)2, (byte)7,
+        new BigInteger( "5" ), new BigDecimal( "2.50" ), Arrays.asList( 1, 2 ),
+        Arrays.asList( 1 ), Arrays.asList( "x" ),
+        new LinkedHashSet< Object >( Arrays.asList( 3, 4 ) ),
+        Collections.singletonMap( "k", 1 ), Collections.singletonMap( "j", 2 ),
+        true, false, 'c', 'a', Color.GREEN, Color.RED,
+        new Pair< Object, Object >( 1, 2 ),
+        new AbstractMap.SimpleEntry< Object, Object >( "k", 1 ), Double.NaN,
+        Double.NEGATIVE_INFINITY, 1e300, Long.MAX_VALUE, Long.MIN_VALUE ) );
+  }
+
+  @Test
+  public void testSameOrderAsBefore() {
+    List< Object > values = mixedValues();
+    Collections.sort( values, CompareUtils.GenericComparator.instance() );
+    // the order of the same list sorted before the change
+    assertEquals( "[RED, GREEN, (1, 2), false, true, a, c, -Infinity, "
+                  + "-9223372036854775808, -1, 2, 2.0, 2, 2.5, 2.50, 3, 5, 7, "
+                  + "9223372036854775807, 1.0E300, NaN, 10, 9, B, a, b, k=1, "
+                  + "[1], [1, 2], [x], {j=2}, {k=1}, [3, 4]]",
+                  values.toString() );
+  }
+
+  @Test
+  public void testAntisymmetric() {
+    List< Object > values = mixedValues();
+    for ( Object o1 : values ) {
+      for ( Object o2 : values ) {
+        assertEquals( o1 + " vs " + o2,
+                      Integer.signum( CompareUtils.compare( o1, o2, true ) ),
+                      -Integer.signum( CompareUtils.compare( o2, o1, true ) ) );
+      }
+    }
+  }
+
+  @Test
+  public void testComparableAfterClassCastException() {
+    // compareTo() fails for these values and the strings are compared
+    assertTrue( CompareUtils.compare( new Value( 1 ), new Value( "x" ), true ) < 0 );
+    // which does not stop compareTo() from being used for other values
+    assertTrue( CompareUtils.compare( new Value( 1 ), new Value( 2 ), true ) > 0 );
+    assertTrue( CompareUtils.compare( new Value( 2 ), new Value( 1 ), true ) < 0 );
+  }
+
+  @Test
+  public void testComparableTypeArgument() {
+    assertTrue( CompareUtils.comparableAccepts( String.class, String.class ) );
+    assertTrue( !CompareUtils.comparableAccepts( String.class, Integer.class ) );
+    assertTrue( CompareUtils.comparableAccepts( Value.class, Integer.class ) );
+    // the type argument of Enum is a type variable
+    assertTrue( CompareUtils.comparableAccepts( Color.class, Integer.class ) );
+    // a type-caused failure compares as the class names
+    assertTrue( CompareUtils.compare( "a", 1, true ) > 0 );
+  }
+
+  /**
+   * @return numbers of each kind whose values are exact as doubles, for
+   *         which the order is the same as comparing their doubleValue()
+   */
+  protected static List< Number > exactNumbers() {
+    return Arrays.< Number >asList( 0, -0.0, 0.0, 1, 1L, 1.0, 1.0f, (short)1,
+                                    (byte)1, new BigInteger( "1" ),
+                                    new BigDecimal( "1.00" ), -1, 2.5,
+                                    new BigDecimal( "2.5" ), 1L << 53,
+                                    (double)( 1L << 53 ), Double.NaN,
+                                    Double.POSITIVE_INFINITY,
+                                    Double.NEGATIVE_INFINITY,
+                                    new BigInteger( "100000000000000000000" ),
+                                    1e20, 0.1f, 0.1 );
+  }
+
+  @Test
+  public void testExactNumbersSameOrderAsBefore() {
+    for ( Number n1 : exactNumbers() ) {
+      for ( Number n2 : exactNumbers() ) {
+        assertEquals( n1 + " vs " + n2,
+                      Integer.signum( Double.compare( n1.doubleValue(),
+                                                      n2.doubleValue() ) ),
+                      Integer.signum( CompareUtils.compare( n1, n2, true ) ) );
+      }
+    }
+  }
+
+  @Test
+  public void testNumbersCompareExactly() {
+    // these were equal when both were compared as doubles
+    assertTrue( CompareUtils.compare( Long.MAX_VALUE, (double)Long.MAX_VALUE, true ) < 0 );
+    assertTrue( CompareUtils.compare( (double)Long.MAX_VALUE, Long.MAX_VALUE - 1, true ) > 0 );
+    assertTrue( CompareUtils.compare( ( 1L << 53 ) + 1, (double)( 1L << 53 ), true ) > 0 );
+    assertTrue( CompareUtils.compare( 0.1, new BigDecimal( "0.1" ), true ) > 0 );
+    assertTrue( CompareUtils.compare( new BigInteger( "9223372036854775808" ),
+                                      Long.MAX_VALUE, true ) > 0 );
+    // the primitive overloads
+    assertEquals( -1, CompareUtils.compare( Long.MAX_VALUE, 9.223372036854775807E18 ) );
+    assertEquals( 0, CompareUtils.compare( 3L, 3.0 ) );
+    assertEquals( -1, CompareUtils.compare( -0.0, 0.0 ) );
+    assertEquals( 1, CompareUtils.compare( Double.NaN, Double.POSITIVE_INFINITY ) );
+    assertEquals( 0, CompareUtils.compareNumbers( new BigDecimal( "2.50" ), 2.5f ) );
+  }
+
+  /**
+   * @return numbers of each kind with values that are equal, or nearly equal,
+   *         to values of other kinds
+   */
+  protected static List< Object > mixedNumbers() {
+    List< Object > values = new ArrayList< Object >( exactNumbers() );
+    long big = ( 1L << 53 ) + 1;
+    values.addAll( Arrays.< Object >asList(
+        big, new BigInteger( Long.toString( big ) ),
+        new BigDecimal( Long.toString( big ) ), new BigDecimal( "9007199254740992.0" ),
+        new OtherNumber( 1L << 53 ), new OtherNumber( 1 ), new OtherNumber( 2.5 ),
+        new OtherNumber( 0.1 ), new OtherNumber( -0.0 ), new OtherNumber( 0 ),
+        new OtherNumber( 1e20 ), new OtherNumber( Double.NaN ), new BigDecimal( 0.1 ),
+        new BigDecimal( "0.1" ), new BigDecimal( "0.0" ), BigInteger.ZERO,
+        Long.MAX_VALUE, (double)Long.MAX_VALUE, new BigInteger( "9223372036854775808" ),
+        new BigDecimal( "1e20" ), 2.5f, (float)( 1L << 53 ) ) );
+    return values;
+  }
+
+  @Test
+  public void testEqualValuesHashAlike() {
+    List< Object > values = mixedValues();
+    values.addAll( mixedNumbers() );
+    for ( Object n : mixedNumbers() ) {
+      values.add( Arrays.asList( n ) );
+      values.add( new AbstractMap.SimpleEntry< Object, Object >( "k", n ) );
+      values.add( new Pair< Object, Object >( n, 1 ) );
+    }
+    CompareUtils.HashingStrategy< Object > strategy =
+        CompareUtils.GenericHashingStrategy.instance();
+    for ( Object o1 : values ) {
+      for ( Object o2 : values ) {
+        if ( strategy.equals( o1, o2 ) ) {
+          assertEquals( o1 + " vs " + o2, strategy.computeHashCode( o1 ),
+                        strategy.computeHashCode( o2 ) );
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testEqualNumbersTransitive() {
+    List< Object > values = mixedNumbers();
+    for ( Object o1 : values ) {
+      for ( Object o2 : values ) {
+        if ( CompareUtils.compare( o1, o2, true ) != 0 ) continue;
+        for ( Object o3 : values ) {
+          assertEquals( o1 + " vs " + o3 + " vs " + o2,
+                        Integer.signum( CompareUtils.compare( o1, o3, true ) ),
+                        Integer.signum( CompareUtils.compare( o2, o3, true ) ) );
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * Checks that a {@link DiffPatch} written and read back turns the first
+ * snapshot of a diff into the second.
+ */
+public class DiffPatchTest {
+
+    protected static Pair< Map< String, TestDiff.Obj >, Map< String, TestDiff.Obj > > snapshots =
+            TestDiff.generate( 2000, 5 );
+
+    protected static byte[] write( DiffPatch< TestDiff.Prop, String > patch ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        patch.write( out, TestDiff.codec );
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the values set on an object by a patch, sorted by property id,
+     *         where null and empty are the same since objects with only
+     *         removed properties are read with no values
+     */
+    protected static Map< String, TestDiff.Prop > values( DiffPatch< TestDiff.Prop, String > patch,
+                                                          String id ) {
+        Map< String, TestDiff.Prop > values = new TreeMap< String, TestDiff.Prop >();
+        if ( patch.setProperties.get( id ) != null ) {
+            values.putAll( patch.setProperties.get( id ) );
+        }
+        return values;
+    }
+
+    protected static void assertSameAsSecond( Map< String, TestDiff.Obj > patched ) {
+        assertEquals( new TreeMap< String, TestDiff.Obj >( snapshots.second ).toString(),
+                      new TreeMap< String, TestDiff.Obj >( patched ).toString() );
+        assertTrue( new TestDiff( patched, snapshots.second ).areSame() );
+    }
+
+    @Test
+    public void testWriteReadApply() throws IOException {
+        TestDiff diff = new TestDiff( snapshots.first, snapshots.second );
+        DiffPatch< TestDiff.Prop, String > patch = diff.toPatch();
+        assertFalse( patch.removedObjects.isEmpty() );
+        assertFalse( patch.removedProperties.isEmpty() );
+
+        DiffPatch< TestDiff.Prop, String > read =
+                DiffPatch.read( new ByteArrayInputStream( write( patch ) ), TestDiff.codec );
+        assertEquals( patch.removedObjects, read.removedObjects );
+        assertEquals( patch.removedProperties, read.removedProperties );
+        assertEquals( patch.getChangedObjects(), read.getChangedObjects() );
+        for ( String id : patch.getChangedObjects() ) {
+            assertEquals( values( patch, id ), values( read, id ) );
+        }
+
+        Map< String, TestDiff.Obj > patched = TestDiff.copy( snapshots.first );
+        read.applyTo( patched, diff );
+        assertSameAsSecond( patched );
+    }
+
+    @Test
+    public void testApplyWhileReading() throws IOException {
+        TestDiff diff = new TestDiff( snapshots.first, snapshots.second );
+        byte[] bytes = write( diff.toPatch() );
+        Map< String, TestDiff.Obj > patched = TestDiff.copy( snapshots.first );
+        DiffPatch.apply( new ByteArrayInputStream( bytes ), TestDiff.codec, patched, diff );
+        assertSameAsSecond( patched );
+    }
+
+    @Test
+    public void testApplyTo() {
+        TestDiff diff = new TestDiff( snapshots.first, snapshots.second );
+        Map< String, TestDiff.Obj > patched = TestDiff.copy( snapshots.first );
+        diff.applyTo( patched, diff );
+        assertSameAsSecond( patched );
+    }
+
+    @Test
+    public void testEmptyPatch() throws IOException {
+        DiffPatch< TestDiff.Prop, String > read =
+                DiffPatch.read( new ByteArrayInputStream( write( new DiffPatch< TestDiff.Prop, String >() ) ),
+                                TestDiff.codec );
+        assertTrue( read.removedObjects.isEmpty() );
+        assertTrue( read.getChangedObjects().isEmpty() );
+    }
+}
@@ -0,0 +1,47 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Checks the counts of {@link DiffStats} and when they are reset.
+ */
+public class DiffStatsTest {
+
+    @Test
+    public void testCounts() {
+        Pair< Map< String, TestDiff.Obj >, Map< String, TestDiff.Obj > > maps =
+                TestDiff.generate( 1000, 9 );
+        TestDiff diff = new TestDiff( new LinkedHashMap< String, TestDiff.Obj >( maps.first ),
+                                      new LinkedHashMap< String, TestDiff.Obj >( maps.second ) );
+        final long[] reported = new long[ 1 ];
+        DiffStats stats = new DiffStats( new DiffStats.Listener() {
+            @Override
+            public void progress( DiffStats stats, long objectsDone, long objectsTotal ) {
+                reported[ 0 ] = objectsDone;
+            }
+        }, 100 );
+        diff.setStats( stats );
+        diff.diff();
+        long done = stats.getObjectsDone();
+        assertEquals( diff.getChangedIds().size(), done );
+        assertEquals( done, stats.getObjectsTotal() );
+        assertEquals( done - done % 100, reported[ 0 ] );
+        assertTrue( stats.getPropertiesVisited() > 0 );
+        assertTrue( stats.getTotalNanos() > 0 );
+
+        // incremental updates add to the counts of the last diff()
+        long properties = stats.getPropertiesVisited();
+        diff.put2( "o1", new TestDiff.Obj( "o1" ).put( "p0", 1 ) );
+        assertTrue( stats.getPropertiesVisited() > properties );
+
+        // until the next diff() resets them
+        diff.diff();
+        assertEquals( diff.getChangedIds().size(), stats.getObjectsDone() );
+    }
+}
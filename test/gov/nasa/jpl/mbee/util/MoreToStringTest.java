@@ -0,0 +1,311 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Checks that the limits of {@link MoreToString.Helper#toLimitedString}
+ * carry into MoreToString objects that build their own strings.
+ */
+public class MoreToStringTest {
+
+  /**
+   * A binary tree node that writes its children through the Helper, as a
+   * MoreToString class that does not implement AppendsTo would.
+   */
+  static class Node implements MoreToString {
+    static int calls = 0;
+    final int id;
+    Node left;
+    Node right;
+
+    Node( int depth, int[] nextId ) {
+      id = nextId[ 0 ]++;
+      if ( depth > 0 ) {
+        left = new Node( depth - 1, nextId );
+        right = new Node( depth - 1, nextId );
+      }
+    }
+
+    @Override
+    public String toString( boolean withHash, boolean deep, Set< Object > seen,
+                            Map< String, Object > otherOptions ) {
+      ++calls;
+      return "N" + id
+             + MoreToString.Helper.toString( Arrays.asList( left, right ),
+                                             withHash, deep, seen,
+                                             otherOptions );
+    }
+
+    @Override
+    public String toString( boolean withHash, boolean deep, Set< Object > seen ) {
+      return toString( withHash, deep, seen, null );
+    }
+
+    @Override
+    public String toShortString() {
+      return "N" + id;
+    }
+
+    @Override
+    public String toString() {
+      return toString( false, true, null );
+    }
+  }
+
+  /**
+   * A list that writes itself through the Helper.
+   */
+  static class NodeList extends ArrayList< Object > implements MoreToString {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public String toString( boolean withHash, boolean deep, Set< Object > seen,
+                            Map< String, Object > otherOptions ) {
+      return MoreToString.Helper.toString( this, withHash, deep, seen,
+                                           otherOptions, false );
+    }
+
+    @Override
+    public String toString( boolean withHash, boolean deep, Set< Object > seen ) {
+      return toString( withHash, deep, seen, null );
+    }
+
+    @Override
+    public String toShortString() {
+      return "list";
+    }
+  }
+
+  @Test
+  public void testDepthCarriesIntoNestedObjects() {
+    Node root = new Node( 18, new int[ 1 ] );
+    Node.calls = 0;
+    String s = MoreToString.Helper.toLimitedString( root, 2, 2, -1 );
+    assertEquals( "N0(N1,N262144)", s );
+    assertEquals( 1, Node.calls );
+  }
+
+  @Test
+  public void testLengthCarriesIntoNestedObjects() {
+    Node root = new Node( 18, new int[ 1 ] );
+    Node.calls = 0;
+    String s = MoreToString.Helper.toLimitedString( root, -1, -1, 40 );
+    assertEquals( 40 + MoreToString.Budget.TRUNCATED.length(), s.length() );
+    assertTrue( s.endsWith( MoreToString.Budget.TRUNCATED ) );
+    assertTrue( Node.calls < 40 );
+  }
+
+  @Test
+  public void testCycleThroughNestedObjects() {
+    Node root = new Node( 2, new int[ 1 ] );
+    root.left.right = root;
+    String s = MoreToString.Helper.toLimitedString( root, -1, -1, -1 );
+    assertEquals( "N0(N1(N2(null,null),<cycle>),N4(N5(null,null),N6(null,null)))",
+                  s );
+  }
+
+  @Test
+  public void testObjectWritingItself() {
+    NodeList list = new NodeList();
+    list.add( 1 );
+    list.add( list );
+    list.add( new Node( 1, new int[ 1 ] ) );
+    String s = MoreToString.Helper.toLimitedString( list, -1, -1, -1 );
+    assertEquals( "(1,<cycle>,N0(N1(null,null),N2(null,null)))", s );
+    s = MoreToString.Helper.toLimitedString( list, 2, -1, -1 );
+    assertEquals( "(1,<cycle>,N0...)", s );
+  }
+
+  /**
+   * A MoreToString that keeps the otherOptions it is passed.
+   */
+  static class OptionsRecorder implements MoreToString {
+    Map< String, Object > options;
+
+    @Override
+    public String toString( boolean withHash, boolean deep, Set< Object > seen,
+                            Map< String, Object > otherOptions ) {
+      options = otherOptions;
+      return "recorder";
+    }
+
+    @Override
+    public String toString( boolean withHash, boolean deep, Set< Object > seen ) {
+      return toString( withHash, deep, seen, null );
+    }
+
+    @Override
+    public String toShortString() {
+      return "recorder";
+    }
+  }
+
+  /**
+   * @return nested collections, maps, pairs, and entries without arrays,
+   *         whose output without limits has not changed
+   */
+  static List< Object > sample() {
+    Map< String, Object > map = new LinkedHashMap< String, Object >();
+    map.put( "a", Arrays.asList( 1, 2, Arrays.asList( "x", "y" ) ) );
+    map.put( "b", new Pair< Object, Object >( 3, new LinkedHashSet< Object >(
+        Arrays.asList( 4, 5 ) ) ) );
+    map.put( "c", null );
+    map.put( "d", Collections.emptyMap() );
+    return Arrays.< Object >asList( map, "s", 2.5,
+                                    new AbstractMap.SimpleEntry< Object, Object >(
+                                        "k", Arrays.asList( 6 ) ),
+                                    Collections.emptyList() );
+  }
+
+  @Test
+  public void testUnlimitedOutputSameAsBefore() {
+    // the output of the same calls before limits were added
+    String deep = "({(a=(1,2,(x,y))),(b=(3,(4,5))),(c=null),(d={})},s,2.5,"
+                  + "(k=(6)),())";
+    assertEquals( deep, MoreToString.Helper.toString( sample(), false, true,
+                                                      null, null ) );
+    assertEquals( deep, MoreToString.Helper.toString( sample() ) );
+    assertEquals( deep, MoreToString.Helper.toLimitedString( sample(), -1, -1, -1 ) );
+    Map< String, Object > options = new HashMap< String, Object >();
+    options.put( "prefix", MoreToString.CURLY_BRACES );
+    assertEquals( "{{(a=(1,2,(x,y))),(b=(3,(4,5))),(c=null),(d={})},s,2.5,"
+                  + "(k=(6)),()}",
+                  MoreToString.Helper.toString( sample(), false, true, null,
+                                                options ) );
+    options.put( "prefix", "<" );
+    options.put( "delimiter", "; " );
+    options.put( "suffix", ">" );
+    options.put( "formatDeep", true );
+    assertEquals( "<<<a; <1; 2; <x; y>>>; <b; <3; <4; 5>>>; <c; null>; "
+                  + "<d; <>>>; s; 2.5; <k; <6>>; <>>",
+                  MoreToString.Helper.toString( sample(), false, true, null,
+                                                options ) );
+    assertEquals( "[1, 2]", MoreToString.Helper.toString( new Integer[] { 1, 2 },
+                                                          false, true, null,
+                                                          null ) );
+  }
+
+  @Test
+  public void testMaxElements() {
+    List< Object > list = new ArrayList< Object >();
+    for ( int i = 0; i < 10; ++i ) {
+      list.add( i );
+    }
+    assertEquals( "(0,1,2,...)",
+                  MoreToString.Helper.toLimitedString( list, -1, 3, -1 ) );
+    // the limit applies to each collection, map, and pair
+    assertEquals( "({(a=(1,2,...)),(b=(3,(4,5))),...},s,...)",
+                  MoreToString.Helper.toLimitedString( sample(), -1, 2, -1 ) );
+    assertEquals( "(...)", MoreToString.Helper.toLimitedString( list, -1, 0, -1 ) );
+    Map< String, Object > options = new HashMap< String, Object >();
+    options.put( "maxElements", 2 );
+    assertEquals( "(0,1,...)",
+                  MoreToString.Helper.toString( list, false, true, null,
+                                                options ) );
+  }
+
+  @Test
+  public void testMaxLengthWithoutNesting() {
+    List< Object > list = new ArrayList< Object >();
+    for ( int i = 0; i < 1000; ++i ) {
+      list.add( i );
+    }
+    assertEquals( "(0,1,2,3,4,5,6,7,8,9" + MoreToString.Budget.TRUNCATED,
+                  MoreToString.Helper.toLimitedString( list, -1, -1, 20 ) );
+    assertEquals( MoreToString.Budget.TRUNCATED,
+                  MoreToString.Helper.toLimitedString( list, -1, -1, 0 ) );
+    assertEquals( "abcdefghijklmnopqrst" + MoreToString.Budget.TRUNCATED,
+                  MoreToString.Helper.toLimitedString( "abcdefghijklmnopqrstuvwxyz",
+                                                       -1, -1, 20 ) );
+  }
+
+  @Test
+  public void testBudgetDoesNotUseCallerKeys() {
+    OptionsRecorder recorder = new OptionsRecorder();
+    Map< String, Object > options = new HashMap< String, Object >();
+    options.put( "budget", "caller's" );
+    options.put( "maxLength", 100 );
+    MoreToString.Helper.toString( Arrays.asList( recorder ), false, true, null,
+                                  options );
+    assertEquals( "caller's", recorder.options.get( "budget" ) );
+    assertEquals( 100, recorder.options.get( "maxLength" ) );
+  }
+
+  /**
+   * A CharSequence that counts the characters read from it.
+   */
+  static class CountingSequence implements CharSequence {
+    final String s;
+    long reads = 0;
+
+    CountingSequence( String s ) {
+      this.s = s;
+    }
+
+    @Override
+    public int length() {
+      return s.length();
+    }
+
+    @Override
+    public char charAt( int index ) {
+      ++reads;
+      return s.charAt( index );
+    }
+
+    @Override
+    public CharSequence subSequence( int start, int end ) {
+      reads += end - start;
+      return s.subSequence( start, end );
+    }
+
+    @Override
+    public String toString() {
+      return s;
+    }
+  }
+
+  @Test
+  public void testFromStringIsLinear() {
+    int n = 20000;
+    StringBuilder sb = new StringBuilder( "{" );
+    for ( int i = 0; i < n; ++i ) {
+      // every other pair has no value, which is reported as an error
+      sb.append( i == 0 ? "" : "," ).append( "(k" ).append( i ).append( '=' )
+        .append( i % 2 == 0 ? "" : "v" + i ).append( ')' );
+    }
+    sb.append( "}" );
+    CountingSequence s = new CountingSequence( sb.toString() );
+    Map< String, String > map = new HashMap< String, String >();
+    PrintStream err = System.err;
+    ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    System.setErr( new PrintStream( errors ) );
+    try {
+      MoreToString.Helper.fromString( map, s );
+    } finally {
+      System.setErr( err );
+    }
+    assertEquals( n, map.size() );
+    assertEquals( "", map.get( "k2" ) );
+    assertEquals( "v3", map.get( "k3" ) );
+    assertTrue( s.reads < 20L * s.length() );
+    // each error message has a short excerpt of the input
+    assertTrue( errors.size() < 200L * n );
+  }
+}
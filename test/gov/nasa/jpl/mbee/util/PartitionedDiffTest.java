@@ -0,0 +1,149 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a {@link PartitionedDiff} in threads and in child JVMs finds the
+ * same changes as a diff of the whole snapshots.
+ */
+public class PartitionedDiffTest {
+
+    /**
+     * The Spec of the shard diffs, public so that child JVMs can create it.
+     */
+    public static class TestSpec implements PartitionedDiff.Spec< TestDiff.Obj, TestDiff.Prop, String > {
+        @Override
+        public AbstractDiff< TestDiff.Obj, TestDiff.Prop, String > newDiff( Map< String, TestDiff.Obj > map1,
+                                                                            Map< String, TestDiff.Obj > map2 ) {
+            return new TestDiff( map1, map2 );
+        }
+
+        @Override
+        public void writeObject( DataOutput out, TestDiff.Obj t ) throws IOException {
+            out.writeUTF( t.id );
+            out.writeInt( t.props.size() );
+            for ( TestDiff.Prop p : t.props.values() ) {
+                TestDiff.codec.writeValue( out, p );
+            }
+        }
+
+        @Override
+        public TestDiff.Obj readObject( DataInput in ) throws IOException {
+            TestDiff.Obj t = new TestDiff.Obj( in.readUTF() );
+            for ( int n = in.readInt(); n > 0; --n ) {
+                TestDiff.Prop p = TestDiff.codec.readValue( in );
+                t.props.put( p.name, p );
+            }
+            return t;
+        }
+
+        @Override
+        public DiffPatch.Codec< TestDiff.Prop, String > getCodec() {
+            return TestDiff.codec;
+        }
+    }
+
+    protected static Pair< Map< String, TestDiff.Obj >, Map< String, TestDiff.Obj > > snapshots =
+            TestDiff.generate( 3000, 8 );
+
+    protected File directory;
+    protected PartitionedDiff< TestDiff.Obj, TestDiff.Prop, String > partitioned;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory( "PartitionedDiffTest" ).toFile();
+        partitioned = new PartitionedDiff< TestDiff.Obj, TestDiff.Prop, String >( new TestSpec(),
+                                                                                  3, directory );
+    }
+
+    @After
+    public void tearDown() {
+        partitioned.deleteFiles();
+        directory.delete();
+    }
+
+    protected void addSnapshots() throws IOException {
+        for ( TestDiff.Obj o : snapshots.first.values() ) {
+            partitioned.add1( o.id, o );
+        }
+        for ( TestDiff.Obj o : snapshots.second.values() ) {
+            partitioned.add2( o.id, o );
+        }
+    }
+
+    protected void checkSameAsDiff() throws IOException {
+        TestDiff diff = new TestDiff( snapshots.first, snapshots.second );
+        List< Set< String > > idDiff = partitioned.getIdDiff();
+        assertFalse( idDiff.get( 0 ).isEmpty() );
+        assertEquals( AbstractDiffTest.ids( diff.getAdded() ).toString(),
+                      new TreeSet< String >( idDiff.get( 0 ) ).toString() );
+        assertEquals( AbstractDiffTest.ids( diff.getRemoved() ).toString(),
+                      new TreeSet< String >( idDiff.get( 1 ) ).toString() );
+        // Pair has no equals(), so compare the strings.
+        assertEquals( AbstractDiffTest.sorted( diff.getPropertyChanges() ).toString(),
+                      AbstractDiffTest.sorted( partitioned.getPropertyChanges() ).toString() );
+    }
+
+    @Test
+    public void testThreadsSameAsDiff() throws IOException {
+        addSnapshots();
+        partitioned.run();
+        checkSameAsDiff();
+    }
+
+    @Test
+    public void testProcessesSameAsDiff() throws IOException {
+        addSnapshots();
+        partitioned.setUseProcesses( true );
+        partitioned.setMaxWorkers( 2 );
+        partitioned.run();
+        checkSameAsDiff();
+    }
+
+    @Test
+    public void testRunOnce() throws IOException {
+        addSnapshots();
+        partitioned.run();
+        try {
+            partitioned.run();
+            fail( "run() twice" );
+        } catch ( IllegalStateException e ) {
+            // expected
+        }
+        try {
+            partitioned.add1( "o1", new TestDiff.Obj( "o1" ) );
+            fail( "add1() after run()" );
+        } catch ( IllegalStateException e ) {
+            // expected
+        }
+        // the shard files were not truncated
+        assertTrue( partitioned.getShardFile( 0, true ).length() > 1 );
+        checkSameAsDiff();
+    }
+
+    @Test
+    public void testRunWithoutObjects() throws IOException {
+        partitioned.run();
+        for ( Set< String > ids : partitioned.getIdDiff() ) {
+            assertTrue( ids.isEmpty() );
+        }
+        assertFalse( partitioned.getShardFile( 0, true ).exists() );
+    }
+}
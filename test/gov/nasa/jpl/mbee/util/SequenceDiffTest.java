@@ -0,0 +1,119 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import gov.nasa.jpl.mbee.util.CompareUtils.HashingStrategy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the edit scripts of {@link SequenceDiff} against the longest common
+ * subsequence found by dynamic programming.
+ */
+public class SequenceDiffTest {
+
+    /**
+     * Compares strings ignoring case, which no comparator order is given for.
+     */
+    protected static HashingStrategy< Object > ignoreCase =
+            new HashingStrategy< Object >() {
+                @Override
+                public int computeHashCode( Object o ) {
+                    return o.toString().toLowerCase().hashCode();
+                }
+
+                @Override
+                public boolean equals( Object o1, Object o2 ) {
+                    return o1.toString().equalsIgnoreCase( o2.toString() );
+                }
+            };
+
+    /**
+     * @return the length of the longest common subsequence of the lists
+     */
+    protected static < E > int lcsLength( List< E > list1, List< E > list2,
+                                          HashingStrategy< Object > strategy ) {
+        int[][] lcs = new int[ list1.size() + 1 ][ list2.size() + 1 ];
+        for ( int i = 1; i <= list1.size(); ++i ) {
+            for ( int j = 1; j <= list2.size(); ++j ) {
+                E e1 = list1.get( i - 1 );
+                E e2 = list2.get( j - 1 );
+                boolean same = strategy == null ? e1.equals( e2 )
+                                                : strategy.equals( e1, e2 );
+                lcs[ i ][ j ] = same ? lcs[ i - 1 ][ j - 1 ] + 1
+                                     : Math.max( lcs[ i - 1 ][ j ], lcs[ i ][ j - 1 ] );
+            }
+        }
+        return lcs[ list1.size() ][ list2.size() ];
+    }
+
+    protected static List< String > randomList( Random random, int maxSize,
+                                                String alphabet ) {
+        List< String > list = new ArrayList< String >();
+        int size = random.nextInt( maxSize + 1 );
+        for ( int i = 0; i < size; ++i ) {
+            list.add( "" + alphabet.charAt( random.nextInt( alphabet.length() ) ) );
+        }
+        return list;
+    }
+
+    protected static void checkMinimal( List< String > list1, List< String > list2,
+                                        HashingStrategy< Object > strategy ) {
+        List< SequenceDiff.Edit< Object > > edits =
+                SequenceDiff.< Object >diff( list1, list2, strategy, false );
+        int lcs = lcsLength( list1, list2, strategy );
+        String message = list1 + " -> " + list2;
+        assertEquals( message, list1.size() + list2.size() - 2 * lcs, edits.size() );
+        List< Object > applied = SequenceDiff.apply( list1, edits );
+        if ( strategy == null ) {
+            assertEquals( message, list2, applied );
+        } else {
+            assertEquals( message, list2.size(), applied.size() );
+            for ( int i = 0; i < list2.size(); ++i ) {
+                assertTrue( message, strategy.equals( list2.get( i ), applied.get( i ) ) );
+            }
+        }
+    }
+
+    @Test
+    public void testSameAsLcs() {
+        Random random = new Random( 6 );
+        for ( int i = 0; i < 2000; ++i ) {
+            checkMinimal( randomList( random, 30, "abcd" ),
+                          randomList( random, 30, "abcd" ), null );
+        }
+    }
+
+    @Test
+    public void testSameAsLcsWithStrategy() {
+        Random random = new Random( 7 );
+        for ( int i = 0; i < 1000; ++i ) {
+            checkMinimal( randomList( random, 30, "abcABC" ),
+                          randomList( random, 30, "abcABC" ), ignoreCase );
+        }
+    }
+
+    @Test
+    public void testEmptyLists() {
+        List< String > empty = new ArrayList< String >();
+        checkMinimal( empty, empty, null );
+        checkMinimal( empty, Arrays.asList( "a", "b" ), null );
+        checkMinimal( Arrays.asList( "a", "b" ), empty, null );
+    }
+
+    @Test
+    public void testMovesWithStrategy() {
+        List< String > list1 = Arrays.asList( "a", "b", "c", "d" );
+        List< String > list2 = Arrays.asList( "b", "c", "D", "A" );
+        List< SequenceDiff.Edit< Object > > edits =
+                SequenceDiff.< Object >diff( list1, list2, ignoreCase, true );
+        assertEquals( "[MOVE(0, 3, A)]", edits.toString() );
+        assertEquals( "[b, c, d, A]", SequenceDiff.apply( list1, edits ).toString() );
+    }
+}
@@ -0,0 +1,212 @@
+package gov.nasa.jpl.mbee.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A diff of simple objects with named properties for the tests.
+ */
+public class TestDiff extends AbstractDiff< TestDiff.Obj, TestDiff.Prop, String >
+        implements DiffPatch.Target< TestDiff.Obj, TestDiff.Prop, String > {
+
+    /**
+     * A named property value.
+     */
+    public static class Prop {
+        public final String name;
+        public final Object value;
+
+        public Prop( String name, Object value ) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            if ( !( o instanceof Prop ) ) return false;
+            Prop p = (Prop)o;
+            return name.equals( p.name ) && Utils.valuesEqual( value, p.value );
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() * 31 + ( value == null ? 0 : value.hashCode() );
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + value;
+        }
+    }
+
+    /**
+     * An object with an id and properties by name.
+     */
+    public static class Obj {
+        public final String id;
+        public final Map< String, Prop > props = new LinkedHashMap< String, Prop >();
+
+        public Obj( String id ) {
+            this.id = id;
+        }
+
+        public Obj put( String name, Object value ) {
+            props.put( name, new Prop( name, value ) );
+            return this;
+        }
+
+        public Obj copy() {
+            Obj o = new Obj( id );
+            o.props.putAll( props );
+            return o;
+        }
+
+        @Override
+        public String toString() {
+            return id + props.values();
+        }
+    }
+
+    /**
+     * Writes and reads ids and properties whose values are Integers.
+     */
+    public static DiffPatch.Codec< Prop, String > codec =
+            new DiffPatch.Codec< Prop, String >() {
+                @Override
+                public void writeId( DataOutput out, String id ) throws IOException {
+                    out.writeUTF( id );
+                }
+
+                @Override
+                public String readId( DataInput in ) throws IOException {
+                    return in.readUTF();
+                }
+
+                @Override
+                public void writeValue( DataOutput out, Prop value ) throws IOException {
+                    out.writeUTF( value.name );
+                    out.writeInt( (Integer)value.value );
+                }
+
+                @Override
+                public Prop readValue( DataInput in ) throws IOException {
+                    return new Prop( in.readUTF(), in.readInt() );
+                }
+            };
+
+    public TestDiff( Map< String, Obj > map1, Map< String, Obj > map2 ) {
+        super( map1, map2, null );
+    }
+
+    @Override
+    public String getId( Obj t ) {
+        return t.id;
+    }
+
+    @Override
+    public String getPropertyName( Prop property ) {
+        return property.name;
+    }
+
+    @Override
+    public String getIdOfProperty( Prop property ) {
+        return property.name;
+    }
+
+    @Override
+    public Set< Prop > getProperties( Obj t, boolean isSet1 ) {
+        if ( t == null ) return new LinkedHashSet< Prop >();
+        return new LinkedHashSet< Prop >( t.props.values() );
+    }
+
+    @Override
+    public Prop getProperty( Obj t, String id, boolean isSet1 ) {
+        return t == null ? null : t.props.get( id );
+    }
+
+    @Override
+    public boolean same( Obj t1, Obj t2 ) {
+        return t1 == t2 || ( t1 != null && t2 != null && t1.props.equals( t2.props ) );
+    }
+
+    @Override
+    public boolean sameProperty( Prop prop1, Prop prop2 ) {
+        return prop1 == prop2
+               || ( prop1 != null && prop2 != null
+                    && Utils.valuesEqual( prop1.value, prop2.value ) );
+    }
+
+    @Override
+    public String getName( Obj t ) {
+        return t.id;
+    }
+
+    @Override
+    public Obj newObject( String id ) {
+        return new Obj( id );
+    }
+
+    @Override
+    public void setProperty( Obj t, String propertyId, Prop property ) {
+        t.props.put( propertyId, property );
+    }
+
+    @Override
+    public void removeProperty( Obj t, String propertyId ) {
+        t.props.remove( propertyId );
+    }
+
+    /**
+     * Generate two snapshots of n objects where a few objects are only in
+     * one snapshot and a few properties are changed, added, or removed.
+     *
+     * @return the first and second snapshots
+     */
+    public static Pair< Map< String, Obj >, Map< String, Obj > > generate( int n,
+                                                                         long seed ) {
+        Random random = new Random( seed );
+        Map< String, Obj > map1 = new LinkedHashMap< String, Obj >();
+        Map< String, Obj > map2 = new LinkedHashMap< String, Obj >();
+        for ( int i = 0; i < n; ++i ) {
+            Obj o1 = new Obj( "o" + i );
+            Obj o2 = new Obj( "o" + i );
+            for ( int j = 0; j < 5; ++j ) {
+                o1.put( "p" + j, i * 10 + j );
+                o2.put( "p" + j, random.nextInt( 50 ) == 0 ? -1 : i * 10 + j );
+            }
+            if ( random.nextInt( 30 ) == 0 ) o2.put( "x", 1 );
+            if ( random.nextInt( 30 ) == 0 ) o1.put( "y", 2 );
+            if ( random.nextInt( 40 ) != 0 ) map1.put( o1.id, o1 );
+            if ( random.nextInt( 40 ) != 0 ) map2.put( o2.id, o2 );
+        }
+        return new Pair< Map< String, Obj >, Map< String, Obj > >( map1, map2 );
+    }
+
+    /**
+     * @return a copy of a snapshot with copies of its objects
+     */
+    public static Map< String, Obj > copy( Map< String, Obj > map ) {
+        Map< String, Obj > copy = new LinkedHashMap< String, Obj >();
+        for ( Obj o : map.values() ) {
+            copy.put( o.id, o.copy() );
+        }
+        return copy;
+    }
+
+    /**
+     * @return all of the results of a diff as a string, in their iteration
+     *         order
+     */
+    public static String dump( Diff< Obj, Prop, String > diff ) {
+        return diff.getAdded() + "|" + diff.getRemoved() + "|" + diff.getUpdated()
+               + "|" + diff.getAddedProperties() + "|"
+               + diff.getRemovedProperties() + "|"
+               + diff.getUpdatedProperties() + "|" + diff.getPropertyChanges();
+    }
+}
@@ -0,0 +1,146 @@
+package gov.nasa.jpl.mbee.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * Checks the classifications, conflicts, and merged objects of
+ * {@link ThreeWayMerge}.
+ */
+public class ThreeWayMergeTest {
+
+    protected static TestDiff.Obj obj( String id, Object... nameValues ) {
+        TestDiff.Obj o = new TestDiff.Obj( id );
+        for ( int i = 0; i < nameValues.length; i += 2 ) {
+            o.put( (String)nameValues[ i ], nameValues[ i + 1 ] );
+        }
+        return o;
+    }
+
+    protected static String props( TestDiff.Obj o ) {
+        return o == null ? null : new TreeMap< String, TestDiff.Prop >( o.props ).values().toString();
+    }
+
+    protected static ThreeWayMerge< TestDiff.Obj, TestDiff.Prop, String >
+            newMerge( Map< String, TestDiff.Obj > base, Map< String, TestDiff.Obj > ours,
+                      Map< String, TestDiff.Obj > theirs, String... ignored ) {
+        TestDiff diff = new TestDiff( base, ours );
+        diff.addPropertyIdsToIgnore( Arrays.asList( ignored ) );
+        return new ThreeWayMerge< TestDiff.Obj, TestDiff.Prop, String >( diff, diff, base,
+                                                                        ours, theirs );
+    }
+
+    @Test
+    public void testChangesOnEachSide() {
+        TestDiff.Obj a = obj( "a", "p", 1, "q", 1 );
+        TestDiff.Obj b = obj( "b", "p", 1 );
+        TestDiff.Obj c = obj( "c", "p", 1 );
+        Map< String, TestDiff.Obj > base = AbstractDiffTest.objects( a, b, c );
+        Map< String, TestDiff.Obj > ours =
+                AbstractDiffTest.objects( obj( "a", "p", 2, "q", 1 ), obj( "b", "p", 3 ),
+                                          c.copy() );
+        Map< String, TestDiff.Obj > theirs =
+                AbstractDiffTest.objects( obj( "a", "p", 1, "q", 2 ), obj( "b", "p", 3 ),
+                                          obj( "d", "p", 4 ) );
+        ThreeWayMerge< TestDiff.Obj, TestDiff.Prop, String > merge =
+                newMerge( base, ours, theirs );
+
+        assertFalse( merge.hasConflicts() );
+        Map< String, TestDiff.Obj > merged = merge.getMerged();
+        assertEquals( "[p=2, q=2]", props( merged.get( "a" ) ) );
+        assertEquals( "[p=3]", props( merged.get( "b" ) ) );
+        // c is removed by theirs and unchanged by ours
+        assertFalse( merged.containsKey( "c" ) );
+        assertEquals( "[p=4]", props( merged.get( "d" ) ) );
+        assertEquals( "{a=BOTH, b=BOTH, c=THEIRS, d=THEIRS}",
+                      new TreeMap< String, ThreeWayMerge.Kind >( merge.getObjectKinds() ).toString() );
+        assertEquals( "{p=OURS, q=THEIRS}",
+                      new TreeMap< String, ThreeWayMerge.Kind >( merge.getPropertyKinds().get( "a" ) ).toString() );
+        assertEquals( "{p=BOTH}",
+                      new TreeMap< String, ThreeWayMerge.Kind >( merge.getPropertyKinds().get( "b" ) ).toString() );
+    }
+
+    @Test
+    public void testPropertyConflict() {
+        Map< String, TestDiff.Obj > base = AbstractDiffTest.objects( obj( "a", "p", 1, "q", 1 ) );
+        Map< String, TestDiff.Obj > ours = AbstractDiffTest.objects( obj( "a", "p", 2, "q", 1 ) );
+        Map< String, TestDiff.Obj > theirs = AbstractDiffTest.objects( obj( "a", "p", 3, "q", 4 ) );
+        ThreeWayMerge< TestDiff.Obj, TestDiff.Prop, String > merge =
+                newMerge( base, ours, theirs );
+
+        assertEquals( 1, merge.getConflicts().size() );
+        ThreeWayMerge.Conflict< TestDiff.Obj, TestDiff.Prop, String > c =
+                merge.getConflicts().get( 0 );
+        assertFalse( c.isObjectConflict() );
+        assertEquals( "Conflict(a.p, base=p=1, ours=p=2, theirs=p=3)", c.toString() );
+        // ours is kept by default
+        assertEquals( "[p=2, q=4]", props( merge.getMerged().get( "a" ) ) );
+        assertEquals( ThreeWayMerge.Kind.CONFLICT, merge.getObjectKinds().get( "a" ) );
+        assertEquals( ThreeWayMerge.Kind.CONFLICT, merge.getPropertyKinds().get( "a" ).get( "p" ) );
+
+        TestDiff diff = new TestDiff( base, ours );
+        ThreeWayMerge< TestDiff.Obj, TestDiff.Prop, String > theirsWins =
+                new ThreeWayMerge< TestDiff.Obj, TestDiff.Prop, String >( diff, diff, base,
+                                                                         ours, theirs ) {
+                    @Override
+                    protected TestDiff.Prop resolve( Conflict< TestDiff.Obj, TestDiff.Prop, String > conflict ) {
+                        return conflict.theirValue;
+                    }
+                };
+        assertEquals( "[p=3, q=4]", props( theirsWins.getMerged().get( "a" ) ) );
+    }
+
+    @Test
+    public void testObjectConflict() {
+        Map< String, TestDiff.Obj > base = AbstractDiffTest.objects( obj( "a", "p", 1 ) );
+        Map< String, TestDiff.Obj > ours = AbstractDiffTest.objects();
+        Map< String, TestDiff.Obj > theirs = AbstractDiffTest.objects( obj( "a", "p", 2 ) );
+        ThreeWayMerge< TestDiff.Obj, TestDiff.Prop, String > merge =
+                newMerge( base, ours, theirs );
+
+        assertEquals( 1, merge.getConflicts().size() );
+        ThreeWayMerge.Conflict< TestDiff.Obj, TestDiff.Prop, String > c =
+                merge.getConflicts().get( 0 );
+        assertTrue( c.isObjectConflict() );
+        assertNull( c.ours );
+        // ours, which removed the object, is kept by default
+        assertFalse( merge.getMerged().containsKey( "a" ) );
+        assertEquals( ThreeWayMerge.Kind.CONFLICT, merge.getObjectKinds().get( "a" ) );
+    }
+
+    @Test
+    public void testIgnoredProperties() {
+        Map< String, TestDiff.Obj > base =
+                AbstractDiffTest.objects( obj( "a", "p", 1, "q", 1, "x", 0 ),
+                                          obj( "b", "p", 1, "x", 0 ) );
+        Map< String, TestDiff.Obj > ours =
+                AbstractDiffTest.objects( obj( "a", "p", 2, "q", 1, "x", 1 ),
+                                          obj( "b", "p", 1, "x", 1 ) );
+        Map< String, TestDiff.Obj > theirs =
+                AbstractDiffTest.objects( obj( "a", "p", 1, "q", 2, "x", 2 ),
+                                          obj( "b", "p", 1, "x", 2 ) );
+        ThreeWayMerge< TestDiff.Obj, TestDiff.Prop, String > merge =
+                newMerge( base, ours, theirs, "x" );
+
+        // x is changed differently on both sides but is not merged
+        assertFalse( merge.hasConflicts() );
+        // a is built from both sides with the ignored properties of ours
+        assertEquals( "[p=2, q=2, x=1]", props( merge.getMerged().get( "a" ) ) );
+        assertFalse( merge.getPropertyKinds().get( "a" ).containsKey( "x" ) );
+        // b has no merged changes, so it is ours
+        assertEquals( "[p=1, x=1]", props( merge.getMerged().get( "b" ) ) );
+        assertFalse( merge.getObjectKinds().containsKey( "b" ) );
+        assertFalse( merge.getPropertyKinds().containsKey( "b" ) );
+
+        // without ignoring x, both objects conflict
+        assertEquals( 2, newMerge( base, ours, theirs ).getConflicts().size() );
+    }
+}